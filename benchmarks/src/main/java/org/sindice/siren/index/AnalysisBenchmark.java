@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 11 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end analysis of a single entity: its raw triples are flattened into
+ * tuples, which are then tokenized by the analyzer of the index writer, see
+ * {@link Indexing#createAnalyzer()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+
+  private final Analyzer analyzer = Indexing.createAnalyzer();
+
+  /**
+   * @return the number of tokens
+   */
+  @Benchmark
+  public int analyze(final EntityState state)
+  throws IOException {
+    final Entity entity = state.flatten();
+    return tokenize(Indexing.OUTGOING_TRIPLE, entity.getTriplesReader(true)) +
+           tokenize(Indexing.INCOMING_TRIPLE, entity.getTriplesReader(false));
+  }
+
+  private int tokenize(final String field, final Reader reader)
+  throws IOException {
+    final TokenStream stream = analyzer.reusableTokenStream(field, reader);
+    int tokens = 0;
+    stream.reset();
+    while (stream.incrementToken()) {
+      tokens++;
+    }
+    stream.end();
+    return tokens;
+  }
+
+}
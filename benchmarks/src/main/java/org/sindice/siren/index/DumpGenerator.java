@@ -0,0 +1,375 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 12 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.sindice.siren.index.IndexingCLI.Format;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write synthetic Sindice-DE or Sindice-ED archives, with the layout of the
+ * Sindice-2011 dumps:
+ * <ul>
+ * <li>DE: docIDxx/entityIDyy/{metadata,outgoing-triples.nt,incoming-triples.nt},
+ * the entities of a document;</li>
+ * <li>ED: entityIDyy/docIDxx/{metadata,outgoing-triples.nt,incoming-triples.nt},
+ * the documents describing an entity. The last entity of an archive is split
+ * with the next archive.</li>
+ * </ul>
+ * The predicates, the types and the targets of the links follow Zipfian
+ * distributions. Optionally, some entities are hubs with more than
+ * {@link #HUB_SIZE} bytes of incoming triples, i.e., larger than the limit of
+ * an entity in {@link SindiceEDIndexing}. The archives are generated with a
+ * fixed seed, so that they are identical from one run to the other.
+ */
+public class DumpGenerator {
+
+  private static final Logger  logger      = LoggerFactory.getLogger(DumpGenerator.class);
+
+  /* The default size of a hub entity, above the 64MB limit of an entity */
+  public static final int      HUB_SIZE    = 80 * 1048576;
+
+  private static final String  RDF_TYPE    = "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>";
+  private static final String  LABEL       = "<http://www.w3.org/2000/01/rdf-schema#label>";
+  private static final String[] WORDS      = { "entity", "search", "track", "semantic", "web", "linked", "data",
+                                               "Galway", "Ireland", "dataset", "query", "index", "tuple", "graph",
+                                               "person", "article", "conference", "journal", "university", "city" };
+  private static final String[] LANGUAGES  = { "", "", "@en", "@en", "@fr", "@de" };
+
+  private final File           outputDir;
+  private final Format         format;
+  private final int            archives;
+  private final int            entities;
+  private final int            triples;
+  private final int            maxDocuments;
+  private final int            hubEvery;
+  private int                  hubSize     = HUB_SIZE;
+
+  private final Random         random;
+  private final Zipf           predicates;
+  private final Zipf           types;
+  private final Zipf           targets;
+  private final Zipf           documents;
+
+  private final StringBuilder  sb          = new StringBuilder();
+  /* Number of entities and documents written so far: the ids are global */
+  private int                  entityId    = 0;
+  private int                  documentId  = 0;
+
+  /**
+   * @param outputDir the directory of the archives
+   * @param format the layout of the archives
+   * @param archives the number of archives
+   * @param entities the number of entities per archive
+   * @param triples the average number of outgoing triples of an entity
+   * @param maxDocuments the maximum number of documents per entity in ED,
+   * or of entities per document in DE
+   * @param hubEvery one entity out of hubEvery is a hub, 0 for no hubs
+   * @param seed the seed of the random generator
+   */
+  public DumpGenerator(final File outputDir, final Format format, final int archives, final int entities,
+                       final int triples, final int maxDocuments, final int hubEvery, final long seed) {
+    this.outputDir = outputDir;
+    this.format = format;
+    this.archives = archives;
+    this.entities = entities;
+    this.triples = triples;
+    this.maxDocuments = maxDocuments;
+    this.hubEvery = hubEvery;
+    this.random = new Random(seed);
+    this.predicates = new Zipf(500, 1.1);
+    this.types = new Zipf(200, 1.2);
+    this.targets = new Zipf(Math.max(1, archives * entities), 1.0);
+    this.documents = new Zipf(maxDocuments, 2.0);
+  }
+
+  /**
+   * @param hubSize the size in bytes of the incoming triples of a hub
+   */
+  public void setHubSize(final int hubSize) {
+    this.hubSize = hubSize;
+  }
+
+  /**
+   * Write the archives
+   */
+  public void generate()
+  throws IOException {
+    if (!outputDir.exists() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create " + outputDir);
+    }
+    /* The documents of the entity split between two archives, in ED */
+    int split = 0;
+    for (int i = 1; i <= archives; i++) {
+      final String prefix = format == Format.SINDICE_ED ? "ED-" : "DE-";
+      final File file = new File(outputDir, String.format("%s%05d.tar.gz", prefix, i));
+      final TarArchiveOutputStream out = new TarArchiveOutputStream(new GZIPOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 20), 1 << 16));
+      try {
+        out.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        if (format == Format.SINDICE_ED) {
+          split = writeED(out, split, i == archives);
+        } else {
+          writeDE(out);
+        }
+      } finally {
+        out.close();
+      }
+      logger.info("Wrote {}: {} bytes", file, file.length());
+    }
+  }
+
+  /**
+   * Write the entities of an ED archive
+   * @param split the number of documents left of the last entity of the
+   * previous archive
+   * @param last true if this is the last archive
+   * @return the number of documents of the last entity left for the next
+   * archive
+   */
+  private int writeED(final TarArchiveOutputStream out, final int split, final boolean last)
+  throws IOException {
+    if (split > 0) { // the rest of the entity of the previous archive
+      writeEntityDocuments(out, entityId - 1, split);
+    }
+    for (int i = 0; i < entities; i++) {
+      final int entity = entityId++;
+      final int docs = documents.next() + 1;
+      if (i == entities - 1 && !last) {
+        // split the last entity with the next archive
+        final int here = Math.max(1, docs / 2);
+        writeEntityDocuments(out, entity, here);
+        return Math.max(1, docs - here);
+      }
+      writeEntityDocuments(out, entity, docs);
+    }
+    return 0;
+  }
+
+  private void writeEntityDocuments(final TarArchiveOutputStream out, final int entity, final int docs)
+  throws IOException {
+    final String subject = subject(entity);
+    for (int d = 0; d < docs; d++) {
+      final String dir = String.format("entityID%08d/docID%08d/", entity, documentId++);
+      writeEntity(out, dir, subject, entity, triples / docs + 1);
+    }
+  }
+
+  /**
+   * Write the documents of a DE archive, with their entities
+   */
+  private void writeDE(final TarArchiveOutputStream out)
+  throws IOException {
+    for (int i = 0; i < entities; documentId++) {
+      final int n = Math.min(entities - i, documents.next() + 1);
+      for (int e = 0; e < n; e++, i++) {
+        final int entity = entityId++;
+        final String dir = String.format("docID%08d/entityID%08d/", documentId, e);
+        writeEntity(out, dir, subject(entity), entity, triples);
+      }
+    }
+  }
+
+  /**
+   * Write the three entries of an entity
+   * @param mean the average number of outgoing triples
+   */
+  private void writeEntity(final TarArchiveOutputStream out, final String dir, final String subject,
+                           final int entity, final int mean)
+  throws IOException {
+    final String uri = subject.substring(1, subject.length() - 1);
+    putEntry(out, dir + "metadata", ("http://" + host(entity) + "/document/" + documentId + ".rdf\n" + uri).getBytes("UTF-8"));
+    putEntry(out, dir + "outgoing-triples.nt", outgoing(subject, mean));
+    if (hubEvery > 0 && entity % hubEvery == hubEvery - 1) {
+      putEntry(out, dir + "incoming-triples.nt", hub(subject));
+    } else {
+      putEntry(out, dir + "incoming-triples.nt", incoming(subject, mean / 3));
+    }
+  }
+
+  private byte[] outgoing(final String subject, final int mean)
+  throws IOException {
+    sb.setLength(0);
+    final int nTypes = 1 + random.nextInt(3);
+    for (int i = 0; i < nTypes; i++) {
+      sb.append(subject).append(' ').append(RDF_TYPE).append(" <http://example.org/ontology#Class")
+        .append(types.next()).append("> .\n");
+    }
+    sb.append(subject).append(' ').append(LABEL).append(' ');
+    literal();
+    sb.append(" .\n");
+    // predicates in the order of the dumps, each with one or more objects
+    final int[] props = new int[exponential(mean)];
+    for (int i = 0; i < props.length; i++) {
+      props[i] = predicates.next();
+    }
+    Arrays.sort(props);
+    for (int p : props) {
+      sb.append(subject).append(" <http://example.org/ontology#property").append(p).append("> ");
+      if (p % 3 == 0) { // a third of the predicates are datatype properties
+        literal();
+      } else {
+        sb.append(subject(targets.next()));
+      }
+      sb.append(" .\n");
+    }
+    return sb.toString().getBytes("UTF-8");
+  }
+
+  private byte[] incoming(final String subject, final int mean)
+  throws IOException {
+    sb.setLength(0);
+    for (int i = exponential(mean); i > 0; i--) {
+      sb.append(subject(random.nextInt(targets.size()))).append(" <http://example.org/ontology#property")
+        .append(predicates.next()).append("> ").append(subject).append(" .\n");
+    }
+    return sb.toString().getBytes("UTF-8");
+  }
+
+  /**
+   * The incoming triples of a hub, of at least #hubSize bytes
+   */
+  private byte[] hub(final String subject)
+  throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(hubSize + 1024);
+    for (int i = 0; bytes.size() < hubSize; i++) {
+      sb.setLength(0);
+      sb.append(subject(i)).append(" <http://example.org/ontology#link> ").append(subject).append(" .\n");
+      bytes.write(sb.toString().getBytes("UTF-8"));
+    }
+    return bytes.toByteArray();
+  }
+
+  private void literal() {
+    sb.append('"');
+    for (int w = 1 + random.nextInt(6); w > 0; w--) {
+      sb.append(WORDS[random.nextInt(WORDS.length)]).append(w > 1 ? " " : "");
+    }
+    sb.append('"').append(LANGUAGES[random.nextInt(LANGUAGES.length)]);
+  }
+
+  /**
+   * A number of triples around mean, with a long tail
+   */
+  private int exponential(final int mean) {
+    return (int) (-mean * Math.log(1 - random.nextDouble()));
+  }
+
+  private String subject(final int entity) {
+    return "<http://" + host(entity) + "/resource/" + entity + ">";
+  }
+
+  private String host(final int entity) {
+    // the same entity is always on the same host
+    return "www.example" + Math.abs((entity * 31) % 1000) + ".org";
+  }
+
+  private static void putEntry(final TarArchiveOutputStream out, final String name, final byte[] content)
+  throws IOException {
+    final TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(content.length);
+    out.putArchiveEntry(entry);
+    out.write(content);
+    out.closeArchiveEntry();
+  }
+
+  /**
+   * Draw ranks in [0, n[ with a Zipfian distribution of the given exponent
+   */
+  private class Zipf {
+
+    private final double[] cumulative;
+
+    Zipf(final int n, final double exponent) {
+      cumulative = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; i++) {
+        sum += 1 / Math.pow(i + 1, exponent);
+        cumulative[i] = sum;
+      }
+      for (int i = 0; i < n; i++) {
+        cumulative[i] /= sum;
+      }
+    }
+
+    int next() {
+      final int i = Arrays.binarySearch(cumulative, random.nextDouble());
+      return Math.min(i < 0 ? ~i : i, cumulative.length - 1);
+    }
+
+    int size() {
+      return cumulative.length;
+    }
+
+  }
+
+  public static void main(final String[] args)
+  throws IOException {
+    final OptionParser parser = new OptionParser();
+    parser.accepts("help", "Print this help.");
+    parser.accepts("output-dir", "The directory where the archives are written")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts("format", "The dataset format, either SINDICE_ED or SINDICE_DE")
+          .withRequiredArg().ofType(Format.class).defaultsTo(Format.SINDICE_ED);
+    parser.accepts("archives", "The number of archives")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(2);
+    parser.accepts("entities", "The number of entities per archive")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(10000);
+    parser.accepts("triples", "The average number of outgoing triples of an entity")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(20);
+    parser.accepts("documents", "The maximum number of documents of an entity (ED), or entities of a document (DE)")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(8);
+    parser.accepts("hub-every", "One entity out of X has more than --hub-size MB of incoming triples, 0 for none")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+    parser.accepts("hub-size", "The size in MB of the incoming triples of a hub")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(HUB_SIZE / 1048576);
+    parser.accepts("seed", "The seed of the random generator")
+          .withRequiredArg().ofType(Long.class).defaultsTo(42L);
+
+    final OptionSet opts = parser.parse(args);
+    if (opts.has("help") || !opts.has("output-dir")) {
+      parser.printHelpOn(System.out);
+      return;
+    }
+    final DumpGenerator generator = new DumpGenerator((File) opts.valueOf("output-dir"),
+      (Format) opts.valueOf("format"), (Integer) opts.valueOf("archives"), (Integer) opts.valueOf("entities"),
+      (Integer) opts.valueOf("triples"), (Integer) opts.valueOf("documents"), (Integer) opts.valueOf("hub-every"),
+      (Long) opts.valueOf("seed"));
+    generator.setHubSize((Integer) opts.valueOf("hub-size") * 1048576);
+    generator.generate();
+  }
+
+}
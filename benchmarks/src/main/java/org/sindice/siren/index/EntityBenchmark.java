@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 11 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the conversion of the tuples of an entity back into text, as
+ * given to the analyzer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityBenchmark {
+
+  private final char[] buffer = new char[4096];
+  private Entity       entity;
+
+  @Setup(Level.Trial)
+  public void flatten(final EntityState state) {
+    entity = state.flatten();
+  }
+
+  /**
+   * The tuples as a string, used for the stored fields
+   */
+  @Benchmark
+  public int getTriples() {
+    return entity.getTriples(true).length() + entity.getTriples(false).length();
+  }
+
+  /**
+   * The tuples read through a {@link TupleReader}, used for the indexed
+   * fields
+   */
+  @Benchmark
+  public int getTriplesReader()
+  throws IOException {
+    return drain(entity.getTriplesReader(true)) + drain(entity.getTriplesReader(false));
+  }
+
+  private int drain(final TupleReader reader)
+  throws IOException {
+    int length = 0;
+    int n;
+    while ((n = reader.read(buffer, 0, buffer.length)) != -1) {
+      length += n;
+    }
+    return length;
+  }
+
+}
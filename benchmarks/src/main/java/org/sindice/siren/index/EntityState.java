@@ -0,0 +1,151 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 11 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A synthetic entity, in the layout of a Sindice-DE archive: a metadata
+ * entry, the outgoing triples and the incoming triples. The entity is
+ * generated with a fixed seed, so that all the runs measure the same bytes.
+ * <ul>
+ * <li>triples: the number of outgoing triples; an entity has four times less
+ * incoming triples;</li>
+ * <li>literals: the fraction of the outgoing triples that have a literal
+ * object, the others have a URI object.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+public class EntityState {
+
+  @Param({ "10", "100", "1000" })
+  public int             triples;
+
+  @Param({ "0.0", "0.5", "1.0" })
+  public double          literals;
+
+  private static final String SUBJECT    = "<http://example.org/entity/0>";
+  private static final String RDF_TYPE   = "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>";
+  private static final String[] WORDS    = { "entity", "search", "track", "semantic", "web", "linked", "data",
+                                             "Galway", "Ireland", "dataset", "query", "index", "tuple", "graph" };
+
+  /* the raw entries of the entity */
+  byte[]                 metadata;
+  byte[]                 outgoing;
+  byte[]                 incoming;
+  /* the entity as a tar archive */
+  byte[]                 tar;
+
+  /* An entity with its own dictionary, reused across the invocations */
+  Entity                 entity;
+
+  @Setup(Level.Trial)
+  public void generate()
+  throws IOException {
+    final Random random = new Random(42);
+    final StringBuilder sb = new StringBuilder();
+
+    // outgoing triples, grouped by predicate as in the dumps
+    final int types = Math.max(1, triples / 20);
+    for (int i = 0; i < types; i++) {
+      sb.append(SUBJECT).append(' ').append(RDF_TYPE).append(" <http://example.org/vocab#Class")
+        .append(random.nextInt(50)).append("> .\n");
+    }
+    for (int i = types; i < triples; i++) {
+      sb.append(SUBJECT).append(" <http://example.org/vocab#property").append(i * 20 / triples).append("> ");
+      if (random.nextDouble() < literals) {
+        sb.append('"');
+        for (int w = 1 + random.nextInt(8); w > 0; w--) {
+          sb.append(WORDS[random.nextInt(WORDS.length)]).append(w > 1 ? " " : "");
+        }
+        sb.append("\"@en .\n");
+      } else {
+        sb.append("<http://example.org/resource/").append(random.nextInt(1000)).append("> .\n");
+      }
+    }
+    outgoing = sb.toString().getBytes("UTF-8");
+
+    sb.setLength(0);
+    for (int i = 0; i < Math.max(1, triples / 4); i++) {
+      sb.append("<http://example.org/resource/").append(random.nextInt(1000)).append("> <http://example.org/vocab#link")
+        .append(random.nextInt(5)).append("> ").append(SUBJECT).append(" .\n");
+    }
+    incoming = sb.toString().getBytes("UTF-8");
+
+    metadata = ("http://example.org/document/0\n" + SUBJECT.substring(1, SUBJECT.length() - 1)).getBytes("UTF-8");
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final TarArchiveOutputStream out = new TarArchiveOutputStream(bytes);
+    putEntry(out, "0/metadata", metadata);
+    putEntry(out, "0/outgoing-triples.nt", outgoing);
+    putEntry(out, "0/incoming-triples.nt", incoming);
+    out.close();
+    tar = bytes.toByteArray();
+
+    entity = new Entity(new TermDictionary(TermDictionary.MAX_TERMS, TermDictionary.MIN_FREQUENCY));
+  }
+
+  private void putEntry(final TarArchiveOutputStream out, final String name, final byte[] content)
+  throws IOException {
+    final TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(content.length);
+    out.putArchiveEntry(entry);
+    out.write(content);
+    out.closeArchiveEntry();
+  }
+
+  /**
+   * Clear the entity and fill it with the raw triples, as read from the
+   * archive
+   */
+  Entity fill() {
+    entity.clear();
+    append(entity.rawOut, outgoing);
+    append(entity.rawIn, incoming);
+    return entity;
+  }
+
+  /**
+   * Fill the entity with its triples and flatten them into tuples
+   */
+  Entity flatten() {
+    fill().flatten();
+    return entity;
+  }
+
+  private void append(final ByteArray array, final byte[] content) {
+    array.grow(content.length);
+    System.arraycopy(content, 0, array.bytes, 0, content.length);
+    array.length = content.length;
+  }
+
+}
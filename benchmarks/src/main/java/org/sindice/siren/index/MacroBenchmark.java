@@ -0,0 +1,257 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 12 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+import org.sindice.siren.index.IndexingCLI.Format;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index a set of archives with {@link IndexingCLI}, in this JVM, and record
+ * the indexing rate, the peak heap and the size of the index as a JSON
+ * baseline. Given a previous baseline, the run fails if one of the measures
+ * regressed by more than a tolerance.<br>
+ * The archives are typically written by {@link DumpGenerator}. The arguments
+ * after "--" are given to {@link IndexingCLI}.
+ */
+public class MacroBenchmark {
+
+  private static final Logger logger  = LoggerFactory.getLogger(MacroBenchmark.class);
+
+  /* The measures compared to the baseline, and if a higher value is better */
+  private static final String DOCS_PER_SECOND = "docs_per_second";
+  private static final String PEAK_HEAP_MB    = "peak_heap_mb";
+  private static final String INDEX_SIZE_MB   = "index_size_mb";
+
+  /**
+   * Index the archives and return the measures of the run
+   */
+  static Map<String, Object> run(final File dumpsDir, final Format format, final File indexDir, final List<String> options)
+  throws IOException {
+    final List<String> args = new ArrayList<String>(options);
+    args.add("--dumps-dir");
+    args.add(dumpsDir.getPath());
+    args.add("--index-dir");
+    args.add(indexDir.getPath());
+    args.add("--format");
+    args.add(format.toString());
+
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    final long start = System.nanoTime();
+    new IndexingCLI().parseAndExecute(args.toArray(new String[args.size()]));
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    // the peaks of the pools may not be simultaneous: an upper bound of the peak heap
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+    }
+
+    final IndexReader reader = IndexReader.open(FSDirectory.open(indexDir));
+    final int docs;
+    try {
+      docs = reader.numDocs();
+    } finally {
+      reader.close();
+    }
+
+    final Map<String, Object> measures = new LinkedHashMap<String, Object>();
+    measures.put("format", format.toString());
+    measures.put("archives_mb", size(dumpsDir) / 1048576d);
+    measures.put("options", options.toString());
+    measures.put("docs", docs);
+    measures.put("seconds", seconds);
+    measures.put(DOCS_PER_SECOND, docs / seconds);
+    measures.put(PEAK_HEAP_MB, peakHeap / 1048576d);
+    measures.put(INDEX_SIZE_MB, size(indexDir) / 1048576d);
+    measures.put("java", System.getProperty("java.version"));
+    measures.put("max_heap_mb", Runtime.getRuntime().maxMemory() / 1048576d);
+    return measures;
+  }
+
+  /**
+   * The total size of the files in dir
+   */
+  private static long size(final File dir) {
+    long size = 0;
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        size += f.isDirectory() ? size(f) : f.length();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Write the measures as a flat JSON object
+   */
+  static void write(final Map<String, Object> measures, final File file)
+  throws IOException {
+    final StringBuilder sb = new StringBuilder("{\n");
+    for (Map.Entry<String, Object> e : measures.entrySet()) {
+      sb.append("  \"").append(e.getKey()).append("\": ");
+      final Object value = e.getValue();
+      if (value instanceof Double) {
+        sb.append(String.format(Locale.ENGLISH, "%.3f", value));
+      } else if (value instanceof Number) {
+        sb.append(value);
+      } else {
+        sb.append('"').append(value.toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      }
+      sb.append(",\n");
+    }
+    sb.setLength(sb.length() - 2);
+    sb.append("\n}\n");
+    final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      out.write(sb.toString());
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Read the numeric measures of a baseline written by #write
+   */
+  static Map<String, Double> read(final File file)
+  throws IOException {
+    final byte[] bytes = new byte[(int) file.length()];
+    final InputStream in = new FileInputStream(file);
+    try {
+      int n = 0;
+      while (n < bytes.length) {
+        final int r = in.read(bytes, n, bytes.length - n);
+        if (r == -1) {
+          break;
+        }
+        n += r;
+      }
+    } finally {
+      in.close();
+    }
+    final Map<String, Double> measures = new LinkedHashMap<String, Double>();
+    final Matcher m = Pattern.compile("\"([^\"]+)\"\\s*:\\s*(-?[0-9.]+(?:[eE][-+]?[0-9]+)?)").matcher(new String(bytes, "UTF-8"));
+    while (m.find()) {
+      measures.put(m.group(1), Double.valueOf(m.group(2)));
+    }
+    return measures;
+  }
+
+  /**
+   * Compare the run to the baseline
+   * @param tolerance the accepted regression, as a fraction
+   * @return false if a measure regressed by more than the tolerance
+   */
+  static boolean compare(final Map<String, Object> run, final Map<String, Double> baseline, final double tolerance) {
+    boolean ok = true;
+    ok &= compare(DOCS_PER_SECOND, run, baseline, tolerance, true);
+    ok &= compare(PEAK_HEAP_MB, run, baseline, tolerance, false);
+    ok &= compare(INDEX_SIZE_MB, run, baseline, tolerance, false);
+    return ok;
+  }
+
+  private static boolean compare(final String measure, final Map<String, Object> run, final Map<String, Double> baseline,
+                                 final double tolerance, final boolean higherIsBetter) {
+    if (!baseline.containsKey(measure)) {
+      logger.warn("No {} in the baseline", measure);
+      return true;
+    }
+    final double before = baseline.get(measure);
+    final double after = ((Number) run.get(measure)).doubleValue();
+    final double change = before == 0 ? 0 : (after - before) / before;
+    final boolean regressed = higherIsBetter ? change < -tolerance : change > tolerance;
+    logger.info(String.format(Locale.ENGLISH, "%s: %.3f -> %.3f (%+.1f%%)%s", measure, before, after, change * 100,
+      regressed ? " REGRESSION" : ""));
+    return !regressed;
+  }
+
+  public static void main(final String[] args)
+  throws IOException {
+    final OptionParser parser = new OptionParser();
+    parser.accepts("help", "Print this help.");
+    parser.accepts("dumps-dir", "The directory with the archives to index")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts("format", "The dataset format, either SINDICE_ED or SINDICE_DE")
+          .withRequiredArg().ofType(Format.class).defaultsTo(Format.SINDICE_ED);
+    parser.accepts("index-dir", "The directory of the index, which must not exist")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts("output", "The file where the measures are written, as JSON")
+          .withRequiredArg().ofType(File.class).defaultsTo(new File("macrobenchmark.json"));
+    parser.accepts("baseline", "A previous output to compare the measures with")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts("tolerance", "The accepted regression in percent")
+          .withRequiredArg().ofType(Double.class).defaultsTo(10d);
+
+    final OptionSet opts = parser.parse(args);
+    if (opts.has("help") || !opts.has("dumps-dir") || !opts.has("index-dir")) {
+      parser.printHelpOn(System.out);
+      return;
+    }
+    final File indexDir = (File) opts.valueOf("index-dir");
+    if (indexDir.exists()) {
+      // an existing index would be appended to, and the measures meaningless
+      throw new IllegalArgumentException("The index directory already exists: " + indexDir);
+    }
+    final Map<String, Object> measures = run((File) opts.valueOf("dumps-dir"), (Format) opts.valueOf("format"),
+      indexDir, opts.nonOptionArguments());
+    final File output = (File) opts.valueOf("output");
+    write(measures, output);
+    logger.info("Wrote the measures to {}: {}", output, measures);
+
+    if (opts.has("baseline")) {
+      final Map<String, Double> baseline = read((File) opts.valueOf("baseline"));
+      if (!compare(measures, baseline, (Double) opts.valueOf("tolerance") / 100)) {
+        logger.error("The run regressed compared to {}", opts.valueOf("baseline"));
+        System.exit(1);
+      }
+    }
+  }
+
+}
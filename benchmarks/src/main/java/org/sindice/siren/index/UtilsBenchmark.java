@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 11 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the methods of {@link Utils} that read and flatten the
+ * triples of an entity
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+  private final ByteArray data = new ByteArray();
+
+  /**
+   * Read the entries of the entity from a tar archive in memory
+   */
+  @Benchmark
+  public int getFile(final EntityState state)
+  throws IOException {
+    final TarArchiveInputStream reader = new TarArchiveInputStream(new ByteArrayInputStream(state.tar));
+    TarArchiveEntry entry;
+    data.clear();
+    while ((entry = reader.getNextTarEntry()) != null) {
+      Utils.getFile(reader, entry.getSize(), data);
+    }
+    return data.length();
+  }
+
+  /**
+   * Flatten the outgoing triples into tuples of term ids
+   */
+  @Benchmark
+  public int sortAndFlattenNTriples(final EntityState state) {
+    final Entity entity = state.fill();
+    Utils.sortAndFlattenNTriples(entity.rawOut, entity, entity.outTuples, entity.type, true);
+    return entity.outTuples.size();
+  }
+
+}
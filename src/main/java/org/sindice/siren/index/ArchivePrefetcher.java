@@ -0,0 +1,339 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 27 Jun 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decompress a list of gzipped archives in a background thread, ahead of the
+ * consumer. The decompressed bytes are handed over through a bounded ring of
+ * buffers, so that reading the file and inflating it overlap with the
+ * indexing. Once an archive is fully decompressed, the thread continues with
+ * the next one while buffers are available.<br>
+ * The archives are consumed in order, with {@link #nextArchive()}. The number
+ * of times the consumer had to wait for data is reported, in order to size
+ * the ring.
+ */
+public class ArchivePrefetcher {
+
+  private final Logger                  logger        = LoggerFactory.getLogger(ArchivePrefetcher.class);
+
+  /* Marks the end of an archive */
+  private static final int              END           = -1;
+
+  private final File[]                  input;
+  /* Decompressed chunks, in the order of the input */
+  private final BlockingQueue<Chunk>    chunks;
+  /* Buffers available to the decompressing thread */
+  private final BlockingQueue<byte[]>   buffers;
+  private final Thread                  thread;
+  /* Index of the next archive returned by #nextArchive */
+  private int                           next          = 0;
+
+  /* Number of times the consumer waited for a chunk, and for how long */
+  private final AtomicLong              stalls        = new AtomicLong();
+  private final AtomicLong              stallTime     = new AtomicLong();
+  /* Compressed bytes read from the archives */
+  private final AtomicLong              compressed;
+
+  /**
+   * @param input the archives to decompress, in order
+   * @param depth the number of buffers in the ring
+   * @param bufferSize the size of a buffer, in bytes
+   */
+  public ArchivePrefetcher(final File[] input, final int depth, final int bufferSize) {
+    this(input, depth, bufferSize, new AtomicLong());
+  }
+
+  /**
+   * @param input the archives to decompress, in order
+   * @param depth the number of buffers in the ring
+   * @param bufferSize the size of a buffer, in bytes
+   * @param compressed incremented with the number of bytes read from the archives
+   */
+  public ArchivePrefetcher(final File[] input, final int depth, final int bufferSize, final AtomicLong compressed) {
+    if (depth < 1 || bufferSize < 1) {
+      throw new IllegalArgumentException("Invalid prefetch ring: " + depth + " buffers of " + bufferSize + " bytes");
+    }
+    this.input = input;
+    this.compressed = compressed;
+    this.chunks = new ArrayBlockingQueue<Chunk>(depth + input.length);
+    this.buffers = new ArrayBlockingQueue<byte[]>(depth);
+    for (int i = 0; i < depth; i++) {
+      buffers.add(new byte[bufferSize]);
+    }
+    thread = new Thread(new Producer(), "prefetch-" + input[0].getName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the decompressed content of the next archive. The previous stream
+   * must be closed first.
+   */
+  public InputStream nextArchive() {
+    if (next >= input.length) {
+      throw new IllegalStateException("No more archives to read");
+    }
+    return new ChunkInputStream(next++);
+  }
+
+  /**
+   * Number of times the consumer had to wait for the decompressing thread
+   */
+  public long getStalls() {
+    return stalls.get();
+  }
+
+  /**
+   * Time in nanoseconds the consumer waited for the decompressing thread
+   */
+  public long getStallTime() {
+    return stallTime.get();
+  }
+
+  /**
+   * Stop the decompressing thread and release the ring of buffers
+   */
+  public void close() {
+    thread.interrupt();
+    buffers.clear();
+    chunks.clear();
+  }
+
+  /**
+   * A decompressed part of an archive
+   */
+  private static class Chunk {
+
+    final int         archive;
+    final byte[]      bytes;
+    /* the number of bytes, or #END */
+    final int         length;
+    final IOException error;
+    /* at the #END, the time the decompression of the archive waited for free buffers */
+    final long        wait;
+
+    Chunk(final int archive, final byte[] bytes, final int length, final IOException error, final long wait) {
+      this.archive = archive;
+      this.bytes = bytes;
+      this.length = length;
+      this.error = error;
+      this.wait = wait;
+    }
+
+  }
+
+  /**
+   * Decompress the archives into the ring of buffers
+   */
+  private class Producer implements Runnable {
+
+    /* Time the decompression of the current archive waited for a free buffer */
+    private long wait;
+
+    @Override
+    public void run() {
+      try {
+        for (int i = 0; i < input.length; i++) {
+          wait = 0;
+          try {
+            decompress(i);
+            chunks.put(new Chunk(i, null, END, null, wait));
+          } catch (IOException e) {
+            chunks.put(new Chunk(i, null, END, e, wait));
+          }
+        }
+      } catch (InterruptedException e) {
+        // closed
+      }
+    }
+
+    private void decompress(final int archive)
+    throws IOException, InterruptedException {
+      final InputStream in = new GZIPInputStream(new BufferedInputStream(new CountingInputStream(new FileInputStream(input[archive]),
+        compressed), 1 << 20), 1 << 16);
+      try {
+        int length;
+        do {
+          byte[] buffer = buffers.poll();
+          if (buffer == null) {
+            final long start = System.nanoTime();
+            buffer = buffers.take();
+            wait += System.nanoTime() - start;
+          }
+          length = 0;
+          int n;
+          while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+          }
+          if (length > 0) {
+            chunks.put(new Chunk(archive, buffer, length, null, 0));
+          } else {
+            buffers.put(buffer);
+          }
+        } while (length > 0);
+      } finally {
+        in.close();
+      }
+    }
+
+  }
+
+  /**
+   * Reads the chunks of an archive, giving back the buffers to the ring once
+   * read.
+   */
+  private class ChunkInputStream extends InputStream {
+
+    private final int archive;
+    private Chunk     chunk            = null;
+    private int       pos              = 0;
+    private boolean   eof              = false;
+    /* Number of times this archive waited for a chunk, and for how long */
+    private long      archiveStalls    = 0;
+    private long      archiveStallTime = 0;
+
+    ChunkInputStream(final int archive) {
+      this.archive = archive;
+    }
+
+    /**
+     * Move to the next chunk if the current one has been read
+     * @return false if the end of the archive is reached
+     */
+    private boolean fill()
+    throws IOException {
+      if (eof) {
+        return false;
+      }
+      if (chunk != null && pos < chunk.length) {
+        return true;
+      }
+      if (chunk != null) {
+        buffers.offer(chunk.bytes);
+        chunk = null;
+      }
+      Chunk c = chunks.poll();
+      try {
+        if (c == null) {
+          final long start = System.nanoTime();
+          stalls.incrementAndGet();
+          archiveStalls++;
+          while ((c = chunks.poll(1, TimeUnit.SECONDS)) == null) {
+            if (!thread.isAlive()) {
+              throw new IOException("The decompressing thread has stopped");
+            }
+          }
+          final long time = System.nanoTime() - start;
+          stallTime.addAndGet(time);
+          archiveStallTime += time;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading " + input[archive]);
+      }
+      if (c.archive != archive) {
+        throw new IllegalStateException("Archives read out of order: expected " + input[archive] + ", got " + input[c.archive]);
+      }
+      if (c.length == END) {
+        eof = true;
+        logger.info("Finished reading {}: waited {} times for decompressed data ({} ms in total), " +
+                    "decompression waited {} ms for free buffers", new Object[] { input[archive].getName(),
+                    archiveStalls, archiveStallTime / 1000000, c.wait / 1000000 });
+        if (c.error != null) {
+          throw c.error;
+        }
+        return false;
+      }
+      chunk = c;
+      pos = 0;
+      return true;
+    }
+
+    @Override
+    public int read()
+    throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return chunk.bytes[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+    throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      final int n = Math.min(len, chunk.length - pos);
+      System.arraycopy(chunk.bytes, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public long skip(final long n)
+    throws IOException {
+      if (n <= 0 || !fill()) {
+        return 0;
+      }
+      final int skipped = (int) Math.min(n, chunk.length - pos);
+      pos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return chunk == null ? 0 : chunk.length - pos;
+    }
+
+    /**
+     * Skip the rest of the archive, so that the next one can be read
+     */
+    @Override
+    public void close()
+    throws IOException {
+      while (fill()) {
+        pos = chunk.length;
+      }
+    }
+
+  }
+
+}
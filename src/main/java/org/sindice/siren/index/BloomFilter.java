@@ -0,0 +1,88 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 6 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings, safe for concurrent use. A string added is always
+ * reported as present; a string never added is reported as present with the
+ * false positive probability given at construction.
+ */
+public class BloomFilter {
+
+  private final AtomicLongArray bits;
+  private final long            numBits;
+  private final int             numHashes;
+
+  /**
+   * @param expected the number of strings to be added
+   * @param fpp the false positive probability once they are added
+   */
+  public BloomFilter(final long expected, final double fpp) {
+    if (fpp <= 0 || fpp >= 1) {
+      throw new IllegalArgumentException("Invalid false positive probability: " + fpp);
+    }
+    final long n = Math.max(1, expected);
+    final long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    final int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+    bits = new AtomicLongArray(words);
+    numBits = words * 64L;
+    numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+  }
+
+  /**
+   * Add s to the filter. Its 64 bits FNV-1a hash is split into the two hashes
+   * from which the positions of the bits are derived.
+   */
+  public void add(final String s) {
+    final long h = Utils.fnv1a64(s);
+    final int h1 = (int) h;
+    final int h2 = (int) (h >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+      final int word = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      long current;
+      while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+        // retry
+      }
+    }
+  }
+
+  /**
+   * Returns false if s has never been added, true if it probably has.
+   */
+  public boolean mightContain(final String s) {
+    final long h = Utils.fnv1a64(s);
+    final int h1 = (int) h;
+    final int h2 = (int) (h >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 22 Jun 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * A growable array of bytes, holding the raw content of archive entries. The
+ * array is kept across calls to {@link #clear()} so that it can be reused.
+ */
+public class ByteArray {
+
+  byte[] bytes;
+  int    length = 0;
+
+  public ByteArray() {
+    this(1024);
+  }
+
+  public ByteArray(final int capacity) {
+    bytes = new byte[capacity];
+  }
+
+  /**
+   * Ensure that the array can hold at least capacity bytes
+   * @param capacity
+   */
+  public void grow(final int capacity) {
+    if (bytes.length < capacity) {
+      bytes = ArrayUtil.grow(bytes, capacity);
+    }
+  }
+
+  public void append(final byte b) {
+    grow(length + 1);
+    bytes[length++] = b;
+  }
+
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public void clear() {
+    length = 0;
+  }
+
+  /**
+   * Clear the array, and release it if it holds more than capacity bytes
+   * @param capacity
+   */
+  public void trim(final int capacity) {
+    length = 0;
+    if (bytes.length > capacity) {
+      bytes = new byte[capacity];
+    }
+  }
+
+}
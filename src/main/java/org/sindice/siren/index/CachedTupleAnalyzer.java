@@ -0,0 +1,307 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 22 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.LengthFilter;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.StopFilter;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.Version;
+import org.sindice.siren.analysis.TupleAnalyzer;
+import org.sindice.siren.analysis.TupleTokenizer;
+import org.sindice.siren.analysis.filter.SirenPayloadFilter;
+import org.sindice.siren.analysis.filter.TokenTypeFilter;
+import org.sindice.siren.analysis.filter.URILocalnameFilter;
+import org.sindice.siren.analysis.filter.URITrailingSlashFilter;
+
+/**
+ * The analysis of a {@link TupleAnalyzer} with the localname normalisation of
+ * the URIs, where the tokens of a URI are taken from a {@link LocalnameCache}.
+ * A URI is split, lowercased and filtered once, and the cached tokens replace
+ * the work of the {@link URILocalnameFilter}, {@link URITrailingSlashFilter},
+ * {@link LowerCaseFilter}, {@link StopFilter} and {@link LengthFilter} on the
+ * following occurrences of the URI. The other tokens go through the same
+ * lowercasing and filtering as in the {@link TupleAnalyzer}, so that the
+ * tokens, with their positions, are the same.
+ */
+public class CachedTupleAnalyzer extends Analyzer {
+
+  /* The types of tokens removed from the tuples, as in TupleAnalyzer */
+  private static final int[]   FILTERED = { TupleTokenizer.BNODE, TupleTokenizer.DOT,
+                                            TupleTokenizer.DATATYPE, TupleTokenizer.LANGUAGE };
+  /* The bounds of the length of a token, as in TupleAnalyzer */
+  private static final int     MIN_LENGTH = 2;
+  private static final int     MAX_LENGTH = 256;
+
+  private final Analyzer       literalAnalyzer;
+  private final LocalnameCache cache;
+
+  /**
+   * @param literalAnalyzer the analyzer of the literals
+   * @param cache the tokens of the URIs
+   */
+  public CachedTupleAnalyzer(final Analyzer literalAnalyzer, final LocalnameCache cache) {
+    this.literalAnalyzer = literalAnalyzer;
+    this.cache = cache;
+  }
+
+  private static class SavedStreams {
+    TupleTokenizer tokenizer;
+    TokenStream    filter;
+  }
+
+  private TokenStream filter(final TupleTokenizer tokenizer) {
+    TokenStream ts = new TokenTypeFilter(tokenizer, FILTERED);
+    ts = new StandardFilter(Version.LUCENE_31, ts);
+    ts = new CachingFilter(ts, cache);
+    return new SirenPayloadFilter(ts);
+  }
+
+  @Override
+  public TokenStream tokenStream(final String fieldName, final Reader reader) {
+    return filter(new TupleTokenizer(reader, Integer.MAX_VALUE, literalAnalyzer));
+  }
+
+  @Override
+  public TokenStream reusableTokenStream(final String fieldName, final Reader reader)
+  throws IOException {
+    SavedStreams streams = (SavedStreams) this.getPreviousTokenStream();
+    if (streams == null) {
+      streams = new SavedStreams();
+      streams.tokenizer = new TupleTokenizer(reader, Integer.MAX_VALUE, literalAnalyzer);
+      streams.filter = filter(streams.tokenizer);
+      this.setPreviousTokenStream(streams);
+    } else {
+      streams.tokenizer.reset(reader);
+    }
+    return streams.filter;
+  }
+
+  /**
+   * Replace a URI by its cached tokens, then remove the stop words and the
+   * tokens too short or too long. The other attributes of the URI, e.g., its
+   * offsets and its position in the tuple, are left as they are, as the
+   * localname normalisation does.
+   */
+  static class CachingFilter extends TokenFilter {
+
+    private static final String              URI     = TupleTokenizer.getTokenTypes()[TupleTokenizer.URI];
+
+    private final LocalnameCache             cache;
+    private final CharArraySet               stopWords = new CharArraySet(Version.LUCENE_31, TupleAnalyzer.STOP_WORDS, false);
+    private final CharTermAttribute          termAtt = addAttribute(CharTermAttribute.class);
+    private final TypeAttribute              typeAtt = addAttribute(TypeAttribute.class);
+    private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+
+    /* the tokens of the current URI, and the next one to return */
+    private LocalnameCache.Entry             entry   = null;
+    private int                              next;
+    /* the kind of the current token, see LocalnameCache.Entry */
+    private byte                             kind;
+
+    /* the lookups since the last count, added to the cache at the end of a stream */
+    private long                             hits    = 0;
+    private long                             misses  = 0;
+
+    /* splits the URIs missing from the cache */
+    private final SingleTokenStream          single  = new SingleTokenStream();
+    private final TokenStream                normalisation = new URITrailingSlashFilter(new URILocalnameFilter(single));
+
+    CachingFilter(final TokenStream input, final LocalnameCache cache) {
+      super(input);
+      this.cache = cache;
+    }
+
+    @Override
+    public boolean incrementToken()
+    throws IOException {
+      // as the StopFilter, the increments of the skipped stop words go to the next token
+      int skipped = 0;
+      while (nextToken()) {
+        if (kind == LocalnameCache.Entry.STOP) {
+          skipped += posIncrAtt.getPositionIncrement();
+          continue;
+        }
+        posIncrAtt.setPositionIncrement(posIncrAtt.getPositionIncrement() + skipped);
+        // as the LengthFilter, which does not move the skipped increments
+        skipped = 0;
+        if (kind == LocalnameCache.Entry.KEEP) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Move to the next token before the removal of the stop words, and set
+     * its kind
+     */
+    private boolean nextToken()
+    throws IOException {
+      while (entry == null || next == entry.terms.length) {
+        entry = null;
+        if (!input.incrementToken()) {
+          return false;
+        }
+        if (!URI.equals(typeAtt.type())) {
+          lowerCase(termAtt.buffer(), termAtt.length());
+          kind = kind(termAtt.buffer(), termAtt.length());
+          return true;
+        }
+        final int hash = LocalnameCache.hash(termAtt.buffer(), termAtt.length());
+        entry = cache.get(termAtt.buffer(), termAtt.length(), hash);
+        if (entry == null) {
+          misses++;
+          entry = split(hash);
+          cache.put(entry);
+        } else {
+          hits++;
+        }
+        next = 0;
+      }
+      final char[] term = entry.terms[next];
+      termAtt.copyBuffer(term, 0, term.length);
+      typeAtt.setType(entry.types[next]);
+      // as the normalisation, an inherited increment is left as set by the previous filters
+      if (entry.increments[next] != LocalnameCache.Entry.INHERIT) {
+        posIncrAtt.setPositionIncrement(entry.increments[next]);
+      }
+      kind = entry.kinds[next];
+      next++;
+      return true;
+    }
+
+    /**
+     * Lowercase the term as the LowerCaseFilter
+     */
+    private static void lowerCase(final char[] buffer, final int length) {
+      for (int i = 0; i < length;) {
+        i += Character.toChars(Character.toLowerCase(Character.codePointAt(buffer, i)), buffer, i);
+      }
+    }
+
+    private byte kind(final char[] term, final int length) {
+      if (stopWords.contains(term, 0, length)) {
+        return LocalnameCache.Entry.STOP;
+      }
+      if (length < MIN_LENGTH || length > MAX_LENGTH) {
+        return LocalnameCache.Entry.LENGTH;
+      }
+      return LocalnameCache.Entry.KEEP;
+    }
+
+    /**
+     * Split the current URI with the filters of the localname normalisation
+     */
+    private LocalnameCache.Entry split(final int hash)
+    throws IOException {
+      final char[] uri = new char[termAtt.length()];
+      System.arraycopy(termAtt.buffer(), 0, uri, 0, uri.length);
+      single.set(uri, typeAtt.type());
+      final List<char[]> terms = new ArrayList<char[]>();
+      final List<String> types = new ArrayList<String>();
+      final List<Integer> increments = new ArrayList<Integer>();
+      while (normalisation.incrementToken()) {
+        final char[] term = new char[single.termAtt.length()];
+        System.arraycopy(single.termAtt.buffer(), 0, term, 0, term.length);
+        lowerCase(term, term.length);
+        terms.add(term);
+        types.add(single.typeAtt.type());
+        final int inc = single.posIncrAtt.getPositionIncrement();
+        increments.add(inc == SingleTokenStream.INCREMENT ? LocalnameCache.Entry.INHERIT : inc);
+      }
+      final int[] incs = new int[increments.size()];
+      final byte[] kinds = new byte[terms.size()];
+      for (int i = 0; i < incs.length; i++) {
+        incs[i] = increments.get(i);
+        kinds[i] = kind(terms.get(i), terms.get(i).length);
+      }
+      return new LocalnameCache.Entry(uri, hash, terms.toArray(new char[terms.size()][]),
+        types.toArray(new String[types.size()]), incs, kinds);
+    }
+
+    @Override
+    public void end()
+    throws IOException {
+      super.end();
+      cache.count(hits, misses);
+      hits = misses = 0;
+    }
+
+    @Override
+    public void reset()
+    throws IOException {
+      super.reset();
+      entry = null;
+    }
+
+  }
+
+  /**
+   * Returns one URI, with an increment that tells whether the normalisation
+   * leaves the increment of a token as it is or sets its own
+   */
+  private static class SingleTokenStream extends TokenStream {
+
+    /* an increment no filter sets */
+    static final int                         INCREMENT  = 1 << 20;
+
+    final CharTermAttribute                  termAtt    = addAttribute(CharTermAttribute.class);
+    final TypeAttribute                      typeAtt    = addAttribute(TypeAttribute.class);
+    final PositionIncrementAttribute         posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+
+    private char[]                           uri;
+    private String                           type;
+
+    void set(final char[] uri, final String type) {
+      this.uri = uri;
+      this.type = type;
+    }
+
+    @Override
+    public boolean incrementToken() {
+      if (uri == null) {
+        return false;
+      }
+      clearAttributes();
+      termAtt.copyBuffer(uri, 0, uri.length);
+      typeAtt.setType(type);
+      posIncrAtt.setPositionIncrement(INCREMENT);
+      uri = null;
+      return true;
+    }
+
+  }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 8 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes read from the underlying stream
+ */
+public class CountingInputStream extends FilterInputStream {
+
+  private final AtomicLong count;
+
+  /**
+   * @param in the stream to read
+   * @param count incremented by the number of bytes read or skipped
+   */
+  public CountingInputStream(final InputStream in, final AtomicLong count) {
+    super(in);
+    this.count = count;
+  }
+
+  @Override
+  public int read()
+  throws IOException {
+    final int b = super.read();
+    if (b != -1) {
+      count.incrementAndGet();
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+  throws IOException {
+    final int n = super.read(b, off, len);
+    if (n > 0) {
+      count.addAndGet(n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(final long n)
+  throws IOException {
+    final long skipped = super.skip(n);
+    count.addAndGet(skipped);
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+}
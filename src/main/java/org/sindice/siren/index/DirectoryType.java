@@ -0,0 +1,70 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 25 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+/**
+ * The implementation of the directories of the indexes, see
+ * {@link Indexing#DIRECTORY}.
+ * <ul>
+ * <li>FS: chosen by Lucene for the platform, i.e., MMAP on a 64 bits JVM;</li>
+ * <li>MMAP: the files are memory mapped, and served from the page cache
+ * without copies. The address space must hold the index;</li>
+ * <li>NIO: positional reads, which do not synchronize the threads reading a
+ * same file, except on Windows;</li>
+ * <li>SIMPLE: synchronized reads of a RandomAccessFile.</li>
+ * </ul>
+ */
+public enum DirectoryType {
+
+  FS, MMAP, NIO, SIMPLE;
+
+  /**
+   * Open the directory at path with this implementation
+   * @throws IOException
+   */
+  public Directory open(final File path)
+  throws IOException {
+    switch (this) {
+      case MMAP:
+        final MMapDirectory dir = new MMapDirectory(path);
+        // release the mappings of the merged segments without waiting for a GC
+        dir.setUseUnmap(MMapDirectory.UNMAP_SUPPORTED);
+        return dir;
+      case NIO:
+        return new NIOFSDirectory(path);
+      case SIMPLE:
+        return new SimpleFSDirectory(path);
+      default:
+        return FSDirectory.open(path);
+    }
+  }
+
+}
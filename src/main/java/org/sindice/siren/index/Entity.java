@@ -21,47 +21,263 @@
  */
 package org.sindice.siren.index;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map.Entry;
+import org.apache.lucene.util.RamUsageEstimator;
 
 /**
- * An entity of the dataset
+ * An entity of the dataset.<br>
+ * The terms of the tuples are stored as int ids: a non-negative id refers to a URI
+ * of the shared {@link TermDictionary}, and a negative id to a term local to
+ * the entity, see {@link #termId(NTriplesTokenizer, int)}.
  */
 public class Entity {
 
   /* incoming-triples.nt */
-  final HashMap<String, HashSet<String>> inTuples = new HashMap<String, HashSet<String>>();
+  final TupleTable inTuples = new TupleTable();
   /* outgoing-triples.nt */
-  final HashMap<String, HashSet<String>> outTuples = new HashMap<String, HashSet<String>>();
-  /* metadata */
-  final StringBuilder sbMetadata = new StringBuilder();
+  final TupleTable outTuples = new TupleTable();
   /* rdf:type statement's objects */
-  final HashSet<String> type = new HashSet<String>();
+  final IntSet type = new IntSet();
+  
+  /* the URIs shared by the entities */
+  final TermDictionary dictionary;
+  /* the terms not in the dictionary */
+  final LocalTerms locals = new LocalTerms();
+  
+  /* raw content of the outgoing-triples.nt files, flattened into outTuples */
+  final ByteArray rawOut = new ByteArray();
+  /* raw content of the incoming-triples.nt files, flattened into inTuples */
+  final ByteArray rawIn = new ByteArray();
+  
+  /*
+   * High-water mark in bytes of each reusable buffer of an entity: a buffer
+   * above it is released when the entity is cleared, so that one oversized
+   * entity does not keep the buffers of its successors inflated
+   */
+  public static int RETAINED = 1 << 20;
   
   final StringBuilder sb = new StringBuilder();
+  /* read the tuples into the fields when they are not stored */
+  private final TupleReader outReader = new TupleReader(this, outTuples);
+  private final TupleReader inReader = new TupleReader(this, inTuples);
   
   String subject = ""; // The URI of the entity
   String context = ""; // The URL of the document where the entity is from
+  int triples = 0; // The number of well-formed triples flattened
+  boolean truncated = false; // True if some triples were dropped, see Indexing#ENTITY_BUDGET
+  int contexts = 0; // The number of documents describing the entity
+  long held = 0; // The bytes acquired from the HeapGovernor while the entity is in flight
+  
+  public Entity() {
+    this(TermDictionary.getInstance());
+  }
+  
+  public Entity(final TermDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
   
   public void clear() {
     subject = "";
     context = "";
-    inTuples.clear();
-    outTuples.clear();
+    triples = 0;
+    truncated = false;
+    contexts = 0;
+    held = 0;
+    // an oversized entity does not keep the buffers of its successors inflated
+    inTuples.trim(inTuples.ramBytesUsed() > RETAINED ? 8 : Integer.MAX_VALUE);
+    outTuples.trim(outTuples.ramBytesUsed() > RETAINED ? 8 : Integer.MAX_VALUE);
+    locals.trim(locals.ramBytesUsed() > RETAINED ? 16 : Integer.MAX_VALUE);
+    rawOut.trim(RETAINED);
+    rawIn.trim(RETAINED);
     sb.setLength(0);
-    type.clear();
-    sbMetadata.setLength(0);
+    if (sb.capacity() > RETAINED) {
+      sb.trimToSize();
+    }
+    type.trim(type.ramBytesUsed() > RETAINED ? 8 : Integer.MAX_VALUE);
+  }
+  
+  /**
+   * The memory held by the buffers and the tuples of the entity, in bytes
+   */
+  public long ramBytesUsed() {
+    return rawOut.bytes.length + rawIn.bytes.length + sb.capacity() * (long) RamUsageEstimator.NUM_BYTES_CHAR +
+           inTuples.ramBytesUsed() + outTuples.ramBytesUsed() + type.ramBytesUsed() + locals.ramBytesUsed();
+  }
+  
+  /**
+   * Flatten the raw triples read from the archive into n-tuples, with the
+   * filters of {@link Indexing#FILTER}. This is done by the indexing
+   * threads, outside of the archive reader.
+   * @return the number of malformed triples that were skipped
+   */
+  public int flatten() {
+    final FilterProfile filter = Indexing.FILTER;
+    if (!filter.isIncoming()) {
+      rawIn.clear();
+    }
+    // Strip outgoing triples from rdf:type statements
+    return Utils.sortAndFlattenNTriples(rawOut, this, outTuples, type, true, filter) +
+           Utils.sortAndFlattenNTriples(rawIn, this, inTuples, null, false, filter);
+  }
+  
+  /**
+   * Returns the id of the given term of the current triple. A URI found in
+   * the dictionary is not decoded.<br>
+   * A term already local to this entity stays local, even if it has been
+   * admitted in the dictionary meanwhile. A URI admitted by another thread
+   * between two of its occurrences can still be given two ids, i.e., appear
+   * twice in a tuple, which has no effect on the matching.
+   * @param term one of {@link NTriplesTokenizer#SUBJECT},
+   * {@link NTriplesTokenizer#PREDICATE}, {@link NTriplesTokenizer#OBJECT}
+   */
+  int termId(final NTriplesTokenizer tokenizer, final int term) {
+    final boolean isURI = tokenizer.isURI(term);
+    final int start = tokenizer.start(term);
+    final int length = tokenizer.end(term) - start;
+    
+    if (isURI) {
+      final int id = dictionary.get(tokenizer.bytes(), start, length);
+      if (id != TermDictionary.NOT_FOUND) {
+        return id;
+      }
+    }
+    final String value = tokenizer.term(term);
+    final int local = locals.indexOf(value);
+    if (local != -1) {
+      return ~local;
+    }
+    if (isURI) {
+      final int id = dictionary.add(tokenizer.bytes(), start, length, value);
+      if (id != TermDictionary.NOT_FOUND) {
+        return id;
+      }
+    }
+    return ~locals.add(value);
+  }
+  
+  /**
+   * Returns the id of a decoded term, e.g., of the stored tuples of a
+   * document. A URI is looked up in the dictionary but not added to it.
+   */
+  int termId(final String term) {
+    if (term.startsWith("<")) {
+      final byte[] bytes = StoredTuples.utf8(term);
+      final int id = dictionary.get(bytes, 0, bytes.length);
+      if (id != TermDictionary.NOT_FOUND) {
+        return id;
+      }
+    }
+    return ~locals.add(term);
+  }
+  
+  /**
+   * The term with the given id
+   */
+  String term(final int id) {
+    return id < 0 ? locals.get(~id) : dictionary.term(id);
+  }
+  
+  /**
+   * The id in this entity of a term of other
+   */
+  private int importId(final Entity other, final int id) {
+    return id < 0 ? ~locals.add(other.locals.get(~id)) : id;
+  }
+  
+  /**
+   * Add the flattened tuples and types of other to this entity. Both entities
+   * must have been flattened.
+   * @param other another part of this entity
+   */
+  public void merge(final Entity other) {
+    merge(other, other.outTuples, outTuples);
+    merge(other, other.inTuples, inTuples);
+    for (int i = 0; i < other.type.size(); i++) {
+      type.add(importId(other, other.type.get(i)));
+    }
+    contexts += other.contexts;
+  }
+  
+  /**
+   * A query independent score of a flattened entity, from the number of
+   * values of its incoming and outgoing tuples, of its types, and of the
+   * documents describing it. The incoming values, i.e., the entities linking
+   * to this one, weigh the most.
+   */
+  public float getStaticRank() {
+    return (float) (2 * Math.log1p(degree(inTuples)) + Math.log1p(degree(outTuples)) +
+                    Math.log1p(type.size()) + Math.log1p(contexts));
+  }
+  
+  private static int degree(final TupleTable tuples) {
+    int degree = 0;
+    for (int i = 0; i < tuples.size(); i++) {
+      degree += tuples.values(i).size();
+    }
+    return degree;
+  }
+  
+  private void merge(final Entity other, final TupleTable from, final TupleTable to) {
+    for (int i = 0; i < from.size(); i++) {
+      final int predicate = to.addPredicate(importId(other, from.predicate(i)));
+      final IntSet values = from.values(i);
+      for (int j = 0; j < values.size() && !to.isFull(predicate); j++) {
+        to.add(predicate, importId(other, values.get(j)));
+      }
+    }
+  }
+  
+  /**
+   * The URI of the entity
+   */
+  public String getSubject() {
+    return subject;
+  }
+  
+  /**
+   * The raw N-Triples of the entity as read from the archive, before it is
+   * flattened
+   */
+  public ByteArray getRawTriples(boolean out) {
+    return out ? rawOut : rawIn;
   }
   
   public String getTriples(boolean out) {
-    final HashMap<String, HashSet<String>> map = out ? this.outTuples : this.inTuples;
+    final TupleTable tuples = out ? this.outTuples : this.inTuples;
     
     sb.setLength(0);
-    for (Entry<String, HashSet<String>> e : map.entrySet()) {
-      sb.append(e.getKey()).append(' ').append(Utils.toString(e.getValue()));
+    for (int i = 0; i < tuples.size(); i++) {
+      sb.append(term(tuples.predicate(i))).append(' ');
+      appendTerms(tuples.values(i));
     }
     return sb.toString();
   }
   
+  /**
+   * Returns a reader of the tuples, with the same content as
+   * {@link #getTriples(boolean)}. The reader is shared: it is valid until the
+   * next call with the same direction.
+   */
+  public TupleReader getTriplesReader(boolean out) {
+    final TupleReader reader = out ? outReader : inReader;
+    reader.reset();
+    return reader;
+  }
+  
+  /**
+   * The objects of the rdf:type statements, separated by a whitespace and
+   * ending with a dot.
+   */
+  public String getTypes() {
+    sb.setLength(0);
+    appendTerms(type);
+    return sb.toString();
+  }
+  
+  private void appendTerms(final IntSet ids) {
+    for (int i = 0; i < ids.size(); i++) {
+      sb.append(term(ids.get(i))).append(' ');
+    }
+    sb.append(".\n");
+  }
+  
 }
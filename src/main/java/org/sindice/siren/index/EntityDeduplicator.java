@@ -0,0 +1,242 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 24 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Merge the parts of an entity indexed as separate documents, e.g., an entity
+ * of the Sindice-ED dataset split across two archives, see
+ * {@link Indexing#DEDUP}. The tuples of the documents must be stored.<br>
+ * The subjects already indexed are kept in a {@link BloomFilter}. A subject
+ * which is probably there is looked up in the index, through a reader of the
+ * writer: the stored tuples of its document are merged into the entity, which
+ * then replaces the document. The lookups flush the writer, but are rare since
+ * only the false positives and the actual duplicates are looked up.<br>
+ * The parts of an entity indexed concurrently are serialized, so that the
+ * second one sees the document of the first.
+ */
+public class EntityDeduplicator {
+
+  private final BloomFilter   seen;
+  private final IndexWriter[] writers;
+  /* the readers of the writers, opened on the first lookup */
+  private final IndexReader[] readers;
+  /* the subjects being indexed */
+  private final Set<String>   inFlight = new HashSet<String>();
+  /* Number of entities merged with a document of the index */
+  private final AtomicLong    merged;
+  /* Number of subjects looked up in vain */
+  private final AtomicLong    falsePositives = new AtomicLong();
+
+  /**
+   * @param seen the subjects already in the index
+   * @param writers the writers of the shards of the index
+   * @param merged incremented with the number of entities merged
+   */
+  public EntityDeduplicator(final BloomFilter seen, final IndexWriter[] writers, final AtomicLong merged) {
+    this.seen = seen;
+    this.writers = writers;
+    this.readers = new IndexReader[writers.length];
+    this.merged = merged;
+  }
+
+  /**
+   * Add the flattened entity to the shard of its subject, merged with the
+   * document already in the index for that subject, if any.
+   */
+  public void addDocument(final Entity entity)
+  throws CorruptIndexException, IOException {
+    final int shard = ShardedIndex.shard(entity.subject, writers.length);
+    final boolean likely = acquire(entity.subject);
+    try {
+      if (likely && merge(shard, entity)) {
+        writers[shard].updateDocument(new Term(Indexing.SUBJECT, entity.subject), Indexing.toDocument(entity));
+        merged.incrementAndGet();
+      } else {
+        writers[shard].addDocument(Indexing.toDocument(entity));
+      }
+    } finally {
+      release(entity.subject);
+    }
+  }
+
+  /**
+   * Wait until no other part of the entity is being indexed, and record the
+   * subject as seen.
+   * @return true if the subject has probably been seen before
+   */
+  private boolean acquire(final String subject)
+  throws InterruptedIOException {
+    synchronized (inFlight) {
+      try {
+        while (inFlight.contains(subject)) {
+          inFlight.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for another part of " + subject);
+      }
+      inFlight.add(subject);
+      if (seen.mightContain(subject)) {
+        return true;
+      }
+      seen.add(subject);
+      return false;
+    }
+  }
+
+  private void release(final String subject) {
+    synchronized (inFlight) {
+      inFlight.remove(subject);
+      inFlight.notifyAll();
+    }
+  }
+
+  /**
+   * Merge the documents of the index with the subject of the entity into it
+   * @return false if there is no such document
+   */
+  private synchronized boolean merge(final int shard, final Entity entity)
+  throws IOException {
+    final IndexReader reader = reopen(shard);
+    final TermDocs docs = reader.termDocs(new Term(Indexing.SUBJECT, entity.subject));
+    boolean found = false;
+    try {
+      while (docs.next()) {
+        mergeInto(reader.document(docs.doc(), StoredTuples.SELECTOR), entity);
+        found = true;
+      }
+    } finally {
+      docs.close();
+    }
+    if (!found) {
+      falsePositives.incrementAndGet();
+    }
+    return found;
+  }
+
+  private static void mergeInto(final Document doc, final Entity entity)
+  throws IOException {
+    try {
+      new StoredTuples(doc).mergeInto(entity);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * The reader of the shard, with the documents added so far
+   */
+  private IndexReader reopen(final int shard)
+  throws IOException {
+    if (readers[shard] == null) {
+      readers[shard] = IndexReader.open(writers[shard], true);
+    } else {
+      final IndexReader reader = readers[shard].reopen();
+      if (reader != readers[shard]) {
+        readers[shard].close();
+        readers[shard] = reader;
+      }
+    }
+    return readers[shard];
+  }
+
+  /**
+   * Number of subjects which were probably indexed, but were not
+   */
+  public long getFalsePositives() {
+    return falsePositives.get();
+  }
+
+  /**
+   * Close the readers
+   */
+  public synchronized void close()
+  throws IOException {
+    for (int i = 0; i < readers.length; i++) {
+      if (readers[i] != null) {
+        readers[i].close();
+        readers[i] = null;
+      }
+    }
+  }
+
+  /**
+   * Merge the documents of the index which have a same subject, e.g., after
+   * the archives were indexed independently. The subjects are found from the
+   * frequencies of the terms of the subject field, without a filter.
+   * @return the number of documents merged into another
+   */
+  public static long mergeDuplicates(final IndexWriter writer)
+  throws CorruptIndexException, IOException {
+    final IndexReader reader = IndexReader.open(writer, true);
+    long merged = 0;
+    try {
+      final TermEnum terms = reader.terms(new Term(Indexing.SUBJECT, ""));
+      try {
+        do {
+          final Term term = terms.term();
+          if (term == null || !Indexing.SUBJECT.equals(term.field())) {
+            break;
+          }
+          if (terms.docFreq() > 1) {
+            final Entity entity = new Entity();
+            entity.subject = term.text();
+            int parts = 0;
+            final TermDocs docs = reader.termDocs(term);
+            try {
+              while (docs.next()) {
+                mergeInto(reader.document(docs.doc(), StoredTuples.SELECTOR), entity);
+                parts++;
+              }
+            } finally {
+              docs.close();
+            }
+            if (parts > 1) { // the frequency includes the deleted documents
+              writer.updateDocument(term, Indexing.toDocument(entity));
+              merged += parts - 1;
+            }
+          }
+        } while (terms.next());
+      } finally {
+        terms.close();
+      }
+    } finally {
+      reader.close();
+    }
+    return merged;
+  }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 19 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.File;
+import java.io.IOException;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import org.apache.lucene.store.RAMDirectory;
+import org.sindice.siren.index.IndexingCLI.Format;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Repack the Sindice-DE or Sindice-ED archives into containers of
+ * {@link EntityStore}, one per archive, so that the raw triples of an entity
+ * can be read given its subject. A .tar.gz archive can only be read from the
+ * start. The entities are read as by {@link Indexing}, i.e., within the
+ * {@link Indexing#ENTITY_BUDGET}.
+ */
+public class EntityRepack {
+
+  private static final Logger   logger      = LoggerFactory.getLogger(EntityRepack.class);
+
+  private final OptionParser    parser;
+  private OptionSet             opts;
+
+  private final String          HELP        = "help";
+  private final String          DUMPS_DIR   = "dumps-dir";
+  private final String          FORMAT      = "format";
+  private final String          OUTPUT_DIR  = "output-dir";
+  private final String          BLOCK_SIZE  = "block-size";
+
+  public EntityRepack() {
+    parser = new OptionParser();
+    parser.accepts(HELP, "Print this help.");
+    parser.accepts(DUMPS_DIR, "The directory with Sindice-ED or Sindice-DE dumps files")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts(FORMAT, "The dataset format, either SINDICE_ED or SINDICE_DE")
+          .withRequiredArg().ofType(Format.class);
+    parser.accepts(OUTPUT_DIR, "The directory where the containers are written to")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts(BLOCK_SIZE, "The size in KB of the uncompressed blocks: a larger block compresses better," +
+                               " but is slower to read")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(64);
+  }
+
+  /**
+   * Repack an archive into the container with the same name in outputDir
+   * @param format the dataset format
+   * @param archive the archive
+   * @param outputDir the folder of the containers
+   * @param blockSize the size in bytes of the uncompressed blocks
+   * @return the number of entities
+   * @throws IOException
+   */
+  public static long repack(final Format format, final File archive, final File outputDir, final int blockSize)
+  throws IOException {
+    final File[] in = new File[] { archive };
+    // the entities are only read
+    final Indexing reader;
+    switch (format) {
+      case SINDICE_DE:
+        reader = new SindiceDEIndexing(in, new RAMDirectory());
+        break;
+      case SINDICE_ED:
+        reader = new SindiceEDIndexing(in, new RAMDirectory());
+        break;
+      default:
+        throw new IllegalArgumentException("No such dataset format: " + format);
+    }
+    final String name = archive.getName().substring(0, archive.getName().indexOf('.'));
+    final EntityStoreWriter writer = new EntityStoreWriter(outputDir, name, blockSize);
+    long entities = 0;
+    try {
+      while (reader.hasNext()) {
+        writer.add(reader.next());
+        entities++;
+      }
+    } finally {
+      try {
+        writer.close();
+      } finally {
+        reader.close();
+      }
+    }
+    return entities;
+  }
+
+  private void printError(final String opt)
+  throws IOException {
+    parser.printHelpOn(System.out);
+    throw new IOException("Missing option: " + opt);
+  }
+
+  public final void parseAndExecute(final String[] cmds)
+  throws IOException {
+    opts = parser.parse(cmds);
+    if (opts.has(HELP)) {
+      parser.printHelpOn(System.out);
+      return;
+    }
+    for (String opt : new String[] { DUMPS_DIR, FORMAT, OUTPUT_DIR }) {
+      if (!opts.has(opt)) {
+        printError(opt);
+      }
+    }
+    final Format format = (Format) opts.valueOf(FORMAT);
+    final File outputDir = (File) opts.valueOf(OUTPUT_DIR);
+    final int blockSize = (Integer) opts.valueOf(BLOCK_SIZE) * 1024;
+    final File[] archives = Indexing.listArchives((File) opts.valueOf(DUMPS_DIR),
+      format == Format.SINDICE_DE ? SindiceDEIndexing.PATTERN : SindiceEDIndexing.PATTERN);
+    if (archives.length == 0) {
+      throw new IOException("No archive files in the folder: " + opts.valueOf(DUMPS_DIR));
+    }
+    if (!outputDir.exists() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create the folder " + outputDir);
+    }
+    for (File archive : archives) {
+      final long entities = repack(format, archive, outputDir, blockSize);
+      logger.info("Repacked {} entities from {}", entities, archive);
+    }
+  }
+
+  public static void main(String[] args)
+  throws IOException {
+    final EntityRepack cli = new EntityRepack();
+
+    cli.parseAndExecute(args);
+  }
+
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 19 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to the raw triples of the entities, from the containers
+ * written by {@link EntityRepack}, one per archive. A container is made of:
+ * <ul>
+ * <li>a data file, {@link #DATA}: blocks of entities, each one deflated on
+ * its own;</li>
+ * <li>a side table, {@link #INDEX}: the subject and block offset of each
+ * entity, sorted by subject.</li>
+ * </ul>
+ * Only one entry every {@link #INTERVAL} of the side tables is kept in
+ * memory, with the first and last subjects of each container. An entity is
+ * only looked up in the containers which subjects range over its subject:
+ * there, it is found by scanning at most {@link #INTERVAL} entries from the
+ * disk, and its triples are read and decompressed with one block read.
+ */
+public class EntityStore {
+
+  /* The extensions of the files of a container */
+  public static final String DATA     = ".blk";
+  public static final String INDEX    = ".idx";
+
+  /* One entry every INTERVAL of a side table is kept in memory */
+  static final int           INTERVAL = 128;
+
+  private final Container[]  containers;
+  private final Inflater     inflater = new Inflater();
+
+  /**
+   * Open the containers in dir
+   * @throws IOException
+   */
+  public EntityStore(final File dir)
+  throws IOException {
+    final File[] indexes = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(INDEX);
+      }
+    });
+    if (indexes == null || indexes.length == 0) {
+      throw new IOException("No entity containers in " + dir);
+    }
+    Arrays.sort(indexes);
+    containers = new Container[indexes.length];
+    try {
+      for (int i = 0; i < indexes.length; i++) {
+        final String name = indexes[i].getName();
+        containers[i] = new Container(indexes[i], new File(dir, name.substring(0, name.length() - INDEX.length()) + DATA));
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the entity with the given subject, or <code>null</code> if there
+   * is none. The raw triples of the parts of the entity, e.g., in several
+   * documents of a Sindice-DE archive or across two Sindice-ED archives, are
+   * concatenated in the order of the archives. The context is the one of the
+   * first part.<br>
+   * The entity is not flattened.
+   * @throws IOException
+   */
+  public synchronized Entity get(final String subject)
+  throws IOException {
+    Entity entity = null;
+    for (Container c : containers) {
+      final List<Long> offsets = c.find(subject);
+      long read = -1;
+      for (long offset : offsets) {
+        if (offset == read) { // the parts in a same block are already read
+          continue;
+        }
+        final DataInputStream block = c.readBlock(offset);
+        read = offset;
+        while (block.available() > 0) {
+          final String s = readString(block);
+          final String context = readString(block);
+          if (!s.equals(subject)) {
+            block.skipBytes(block.readInt());
+            block.skipBytes(block.readInt());
+            continue;
+          }
+          if (entity == null) {
+            entity = new Entity();
+            entity.subject = subject;
+            entity.context = context;
+          }
+          readTriples(block, entity.rawOut);
+          readTriples(block, entity.rawIn);
+        }
+      }
+    }
+    return entity;
+  }
+
+  /**
+   * Append the triples of a record to data, after a line break
+   */
+  private static void readTriples(final DataInput in, final ByteArray data)
+  throws IOException {
+    final int length = in.readInt();
+    if (data.length > 0 && data.bytes[data.length - 1] != '\n') {
+      data.append((byte) '\n');
+    }
+    data.grow(data.length + length);
+    in.readFully(data.bytes, data.length, length);
+    data.length += length;
+  }
+
+  /**
+   * The number of entities in the side tables, counting each part of an
+   * entity
+   */
+  public long size() {
+    long size = 0;
+    for (Container c : containers) {
+      size += c.size;
+    }
+    return size;
+  }
+
+  public synchronized void close()
+  throws IOException {
+    inflater.end();
+    for (Container c : containers) {
+      if (c != null) {
+        c.close();
+      }
+    }
+  }
+
+  static void writeString(final DataOutput out, final String s)
+  throws IOException {
+    final byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(final DataInput in)
+  throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * The data file and side table of an archive
+   */
+  private class Container {
+
+    private final RandomAccessFile data;
+    private final RandomAccessFile index;
+    private final int              size;
+    /* every INTERVAL-th subject of the side table, and the position of its entry */
+    private final String[]         subjects;
+    private final long[]           positions;
+    /* the last subject of the side table, null if it is empty */
+    private String                 last     = null;
+
+    Container(final File indexFile, final File dataFile)
+    throws IOException {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16));
+      try {
+        size = in.readInt();
+        subjects = new String[(size + INTERVAL - 1) / INTERVAL];
+        positions = new long[subjects.length];
+        long position = 4;
+        for (int i = 0; i < size; i++) {
+          final String subject = readString(in);
+          in.readLong();
+          if (i % INTERVAL == 0) {
+            subjects[i / INTERVAL] = subject;
+            positions[i / INTERVAL] = position;
+          }
+          position += 4 + utf8Length(subject) + 8;
+          last = subject;
+        }
+      } finally {
+        in.close();
+      }
+      this.index = new RandomAccessFile(indexFile, "r");
+      this.data = new RandomAccessFile(dataFile, "r");
+    }
+
+    private int utf8Length(final String s)
+    throws IOException {
+      return s.getBytes("UTF-8").length;
+    }
+
+    /**
+     * The offsets of the blocks with a part of the entity, in the order of
+     * the data file
+     */
+    List<Long> find(final String subject)
+    throws IOException {
+      final List<Long> offsets = new ArrayList<Long>(1);
+      if (last == null || subject.compareTo(subjects[0]) < 0 || subject.compareTo(last) > 0) {
+        return offsets; // not in the range of the container
+      }
+      // the last sampled entry strictly before the subject, since its parts may precede a sampled entry
+      int lo = 0, hi = subjects.length - 1, start = -1;
+      while (lo <= hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (subjects[mid].compareTo(subject) < 0) {
+          start = mid;
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      // the parts of the entity may continue over the next intervals
+      for (int i = Math.max(start, 0); i < subjects.length; i++) {
+        final DataInputStream entries = readInterval(i);
+        while (entries.available() > 0) {
+          final int c = readString(entries).compareTo(subject);
+          if (c > 0) {
+            return offsets;
+          }
+          final long offset = entries.readLong();
+          if (c == 0) {
+            offsets.add(offset);
+          }
+        }
+      }
+      return offsets;
+    }
+
+    /**
+     * Read the entries of the side table from the i-th sampled one to the
+     * next one
+     */
+    private DataInputStream readInterval(final int i)
+    throws IOException {
+      final long end = i + 1 < positions.length ? positions[i + 1] : index.length();
+      final byte[] bytes = new byte[(int) (end - positions[i])];
+      index.seek(positions[i]);
+      index.readFully(bytes);
+      return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Read and decompress the block at offset
+     */
+    DataInputStream readBlock(final long offset)
+    throws IOException {
+      data.seek(offset);
+      final byte[] compressed = new byte[data.readInt()];
+      final byte[] bytes = new byte[data.readInt()];
+      data.readFully(compressed);
+      inflater.reset();
+      inflater.setInput(compressed);
+      try {
+        if (inflater.inflate(bytes) != bytes.length) {
+          throw new IOException("Truncated block at " + offset);
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupted block at " + offset + ": " + e.getMessage());
+      }
+      return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    void close()
+    throws IOException {
+      try {
+        index.close();
+      } finally {
+        data.close();
+      }
+    }
+
+  }
+
+}
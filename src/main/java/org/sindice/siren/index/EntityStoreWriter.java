@@ -0,0 +1,166 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 19 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Write the raw triples of entities into a container of {@link EntityStore}:
+ * the entities are packed into blocks of about blockSize bytes, each block
+ * being deflated on its own, so that it can be read and decompressed
+ * independently of the others. An entity is never split across two blocks.
+ * Once closed, the side table of the container maps the subject of each
+ * entity to the offset of its block.
+ */
+public class EntityStoreWriter {
+
+  private final File             indexFile;
+  private final DataOutputStream data;
+  private final int              blockSize;
+
+  /* the entities of the current block */
+  private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+  private final DataOutputStream records = new DataOutputStream(block);
+  private final Deflater         deflater = new Deflater();
+  private final byte[]           buffer   = new byte[1 << 16];
+  /* the offset of the current block in the data file */
+  private long                   offset   = 0;
+
+  /* the side table, sorted when the container is closed */
+  private final List<Entry>      entries  = new ArrayList<Entry>();
+
+  /**
+   * @param dir the folder of the container
+   * @param name the name of the container
+   * @param blockSize the size in bytes above which a block is written
+   * @throws IOException
+   */
+  public EntityStoreWriter(final File dir, final String name, final int blockSize)
+  throws IOException {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("The block size must be positive: " + blockSize);
+    }
+    this.indexFile = new File(dir, name + EntityStore.INDEX);
+    this.data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name + EntityStore.DATA)),
+      1 << 16));
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Add the raw triples of an entity
+   * @throws IOException
+   */
+  public void add(final Entity entity)
+  throws IOException {
+    entries.add(new Entry(entity.subject, offset));
+    EntityStore.writeString(records, entity.subject);
+    EntityStore.writeString(records, entity.context);
+    records.writeInt(entity.rawOut.length);
+    records.write(entity.rawOut.bytes, 0, entity.rawOut.length);
+    records.writeInt(entity.rawIn.length);
+    records.write(entity.rawIn.bytes, 0, entity.rawIn.length);
+    if (block.size() >= blockSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Write the current block: its compressed length, its length, and its
+   * deflated content
+   */
+  private void flush()
+  throws IOException {
+    if (block.size() == 0) {
+      return;
+    }
+    final byte[] bytes = block.toByteArray();
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+    deflater.reset();
+    deflater.setInput(bytes);
+    deflater.finish();
+    while (!deflater.finished()) {
+      compressed.write(buffer, 0, deflater.deflate(buffer));
+    }
+    data.writeInt(compressed.size());
+    data.writeInt(bytes.length);
+    compressed.writeTo(data);
+    offset += 8 + compressed.size();
+    block.reset();
+  }
+
+  /**
+   * Write the last block and the side table of the container
+   * @throws IOException
+   */
+  public void close()
+  throws IOException {
+    try {
+      flush();
+    } finally {
+      data.close();
+      deflater.end();
+    }
+    // the sort is stable: the parts of an entity stay in the order of the data
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(final Entry a, final Entry b) {
+        return a.subject.compareTo(b.subject);
+      }
+    });
+    final DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+    try {
+      index.writeInt(entries.size());
+      for (Entry e : entries) {
+        EntityStore.writeString(index, e.subject);
+        index.writeLong(e.offset);
+      }
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * An entry of the side table
+   */
+  private static class Entry {
+
+    final String subject;
+    final long   offset;
+
+    Entry(final String subject, final long offset) {
+      this.subject = subject;
+      this.offset = offset;
+    }
+
+  }
+
+}
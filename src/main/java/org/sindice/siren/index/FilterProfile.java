@@ -0,0 +1,208 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 23 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Which triples of an entity are indexed. The filters are applied while the
+ * triples are flattened, on the bytes of the triples: a filtered predicate or
+ * value is never decoded. A profile is a properties file with the keys:
+ * <ul>
+ * <li>incoming: false to drop the incoming triples, which are then not even
+ * read from the archive;</li>
+ * <li>outgoing.allow, incoming.allow: the only predicates indexed in that
+ * direction, separated by whitespaces;</li>
+ * <li>outgoing.deny, incoming.deny: predicates never indexed in that
+ * direction;</li>
+ * <li>outgoing.max-values, incoming.max-values: the maximum number of values
+ * of a predicate in that direction, see also {@link TupleTable#MAX_VALUES};</li>
+ * <li>literal.max-length: the maximum number of bytes of the label of a
+ * literal, the following ones are dropped.</li>
+ * </ul>
+ * The predicates are full URIs, with or without angle brackets. The rdf:type
+ * statements are always kept as the types of the entity.
+ */
+public class FilterProfile {
+
+  /* The keys of a profile */
+  public static final String        INCOMING           = "incoming";
+  public static final String        OUTGOING_ALLOW     = "outgoing.allow";
+  public static final String        OUTGOING_DENY      = "outgoing.deny";
+  public static final String        OUTGOING_MAX       = "outgoing.max-values";
+  public static final String        INCOMING_ALLOW     = "incoming.allow";
+  public static final String        INCOMING_DENY      = "incoming.deny";
+  public static final String        INCOMING_MAX       = "incoming.max-values";
+  public static final String        LITERAL_MAX_LENGTH = "literal.max-length";
+
+  private static final Set<String>  KEYS               = new HashSet<String>(Arrays.asList(INCOMING,
+    OUTGOING_ALLOW, OUTGOING_DENY, OUTGOING_MAX, INCOMING_ALLOW, INCOMING_DENY, INCOMING_MAX, LITERAL_MAX_LENGTH));
+
+  /* Indexes all the triples */
+  public static final FilterProfile NONE               = new FilterProfile(new Properties());
+
+  private final boolean             incoming;
+  private final Direction           out;
+  private final Direction           in;
+  private final int                 maxLiteralLength;
+
+  /**
+   * The filters of the triples in one direction
+   */
+  private static class Direction {
+
+    /* the UTF-8 bytes of the predicates, with their angle brackets; allow is null if all are */
+    final byte[][] allow;
+    final byte[][] deny;
+    /* 0 if not limited */
+    final int      maxValues;
+
+    Direction(final byte[][] allow, final byte[][] deny, final int maxValues) {
+      this.allow = allow;
+      this.deny = deny;
+      this.maxValues = maxValues;
+    }
+
+  }
+
+  private FilterProfile(final Properties profile) {
+    for (Object key : profile.keySet()) {
+      if (!KEYS.contains(key)) {
+        throw new IllegalArgumentException("Unknown key in the filter profile: " + key);
+      }
+    }
+    incoming = Boolean.parseBoolean(profile.getProperty(INCOMING, "true"));
+    out = new Direction(predicates(profile.getProperty(OUTGOING_ALLOW)),
+      predicates(profile.getProperty(OUTGOING_DENY, "")), positive(profile, OUTGOING_MAX));
+    in = new Direction(predicates(profile.getProperty(INCOMING_ALLOW)),
+      predicates(profile.getProperty(INCOMING_DENY, "")), positive(profile, INCOMING_MAX));
+    maxLiteralLength = positive(profile, LITERAL_MAX_LENGTH);
+  }
+
+  /**
+   * Read the profile in the properties file
+   * @throws IOException
+   */
+  public static FilterProfile load(final File file)
+  throws IOException {
+    final Properties profile = new Properties();
+    final InputStream in = new FileInputStream(file);
+    try {
+      profile.load(in);
+    } finally {
+      in.close();
+    }
+    try {
+      return new FilterProfile(profile);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(file + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * The profile with the given properties
+   */
+  public static FilterProfile create(final Properties profile) {
+    return new FilterProfile(profile);
+  }
+
+  private static byte[][] predicates(final String list) {
+    if (list == null) {
+      return null;
+    }
+    final String[] uris = list.trim().length() == 0 ? new String[0] : list.trim().split("\\s+");
+    final byte[][] predicates = new byte[uris.length][];
+    for (int i = 0; i < uris.length; i++) {
+      final String uri = uris[i].startsWith("<") ? uris[i] : "<" + uris[i] + ">";
+      try {
+        predicates[i] = uri.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return predicates;
+  }
+
+  private static int positive(final Properties profile, final String key) {
+    final String value = profile.getProperty(key);
+    if (value == null) {
+      return 0;
+    }
+    final int n = Integer.parseInt(value.trim());
+    if (n < 1) {
+      throw new IllegalArgumentException("The value of " + key + " must be positive: " + n);
+    }
+    return n;
+  }
+
+  /**
+   * Returns false if the incoming triples are not indexed
+   */
+  public boolean isIncoming() {
+    return incoming;
+  }
+
+  /**
+   * Returns true if the predicate of the current triple is indexed
+   * @param isOut the direction of the triple
+   */
+  boolean accepts(final NTriplesTokenizer tokenizer, final boolean isOut) {
+    final Direction d = isOut ? out : in;
+    if (d.allow != null && !contains(tokenizer, d.allow)) {
+      return false;
+    }
+    return !contains(tokenizer, d.deny);
+  }
+
+  private static boolean contains(final NTriplesTokenizer tokenizer, final byte[][] predicates) {
+    for (byte[] predicate : predicates) {
+      if (tokenizer.isPredicate(predicate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The maximum number of values of a predicate in the given direction
+   */
+  int getMaxValues(final boolean isOut) {
+    final int max = (isOut ? out : in).maxValues;
+    return max == 0 ? TupleTable.MAX_VALUES : Math.min(max, TupleTable.MAX_VALUES);
+  }
+
+  /**
+   * The maximum number of bytes of the label of a literal, 0 if not limited
+   */
+  int getMaxLiteralLength() {
+    return maxLiteralLength;
+  }
+
+}
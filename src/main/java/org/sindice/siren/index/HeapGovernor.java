@@ -0,0 +1,159 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 26 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+/**
+ * Bound the memory held by the entities in flight, i.e., read from the
+ * archives but not yet added to the index. The reading stage acquires the
+ * bytes of an entity before handing it over to the indexing threads, and
+ * waits while the budget is exceeded. Once flattened, the entity is
+ * accounted for again with its decoded tuples, see {@link #resize(long, long)};
+ * the bytes are released once the entity is indexed. An entity larger than
+ * the budget is admitted when nothing else is in flight, so that the indexing
+ * always progresses. The budget is therefore exceeded by at most the growth of
+ * the entities being flattened, one per indexing thread.<br>
+ * With the RAM buffer of the index writers and the fixed size caches, see
+ * {@link TermDictionary} and {@link LocalnameCache}, this bounds the heap
+ * needed by the indexing. The governor is shared by the indexings of a JVM,
+ * e.g., the archives indexed in parallel.
+ */
+public class HeapGovernor {
+
+  /* The budget in bytes of the entities in flight; 0 disables the governor */
+  public static long          BUDGET   = 0;
+
+  private static HeapGovernor instance = null;
+
+  private final long          budget;
+  private long                held     = 0;
+  private long                peak     = 0;
+  /* The most bytes held by one entity */
+  private long                largest  = 0;
+  /* Number of times the reading stage waited, and for how long */
+  private long                waits    = 0;
+  private long                waitTime = 0;
+
+  /**
+   * The governor shared by the indexings, with the current {@link #BUDGET}
+   */
+  public static synchronized HeapGovernor getInstance() {
+    if (instance == null || instance.budget != BUDGET) {
+      instance = new HeapGovernor(BUDGET);
+    }
+    return instance;
+  }
+
+  public HeapGovernor(final long budget) {
+    if (budget < 1) {
+      throw new IllegalArgumentException("Invalid heap budget: " + budget + " bytes");
+    }
+    this.budget = budget;
+  }
+
+  /**
+   * Acquire the bytes of an entity, waiting at most timeout milliseconds for
+   * the budget to have room for them.
+   * @return false if the bytes were not acquired within the timeout
+   * @throws InterruptedException
+   */
+  public synchronized boolean tryAcquire(final long bytes, final long timeout)
+  throws InterruptedException {
+    if (held != 0 && held + bytes > budget) {
+      final long start = System.nanoTime();
+      final long deadline = start + timeout * 1000000L;
+      waits++;
+      long left;
+      while (held != 0 && held + bytes > budget && (left = deadline - System.nanoTime()) > 0) {
+        wait(left / 1000000L + 1);
+      }
+      waitTime += System.nanoTime() - start;
+      if (held != 0 && held + bytes > budget) {
+        return false;
+      }
+    }
+    held += bytes;
+    peak = Math.max(peak, held);
+    largest = Math.max(largest, bytes);
+    return true;
+  }
+
+  /**
+   * Change the bytes held by an entity in flight, e.g., once its tuples are
+   * decoded, without waiting: the budget may be exceeded until the entities
+   * in flight are indexed, while the reading stage waits.
+   * @param from the bytes acquired so far for the entity
+   * @param to the bytes the entity holds now
+   */
+  public synchronized void resize(final long from, final long to) {
+    held += to - from;
+    peak = Math.max(peak, held);
+    largest = Math.max(largest, to);
+    if (to < from) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Give back the bytes of an indexed entity
+   */
+  public synchronized void release(final long bytes) {
+    held -= bytes;
+    notifyAll();
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * The bytes held by the entities in flight
+   */
+  public synchronized long getHeld() {
+    return held;
+  }
+
+  public synchronized long getPeak() {
+    return peak;
+  }
+
+  /**
+   * The most bytes held by one entity
+   */
+  public synchronized long getLargest() {
+    return largest;
+  }
+
+  /**
+   * Number of times the reading stage waited for room in the budget
+   */
+  public synchronized long getWaits() {
+    return waits;
+  }
+
+  /**
+   * Time in nanoseconds the reading stage waited for room in the budget
+   */
+  public synchronized long getWaitTime() {
+    return waitTime;
+  }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 25 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.ReaderUtil;
+import org.sindice.siren.index.TopicSearch.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warm a searcher up before it serves queries, so that the first queries do
+ * not wait for the index to be read from the disk:
+ * <ul>
+ * <li>the postings of the tuple fields and of the types are read through,
+ * with their positions and payloads, which loads them into the page cache and
+ * the terms index into the heap. This is done once per segment: after a
+ * reopen, only the new segments are read;</li>
+ * <li>a sample of recent topics is replayed, e.g., the end of a query log,
+ * which also computes the bitsets of their types if a
+ * {@link TypeFilterCache} is used.</li>
+ * </ul>
+ * An instance is thread-safe.
+ */
+public class IndexWarmer {
+
+  private static final Logger         logger   = LoggerFactory.getLogger(IndexWarmer.class);
+
+  /* The fields which postings are preloaded */
+  private static final String[]       FIELDS   = { Indexing.OUTGOING_TRIPLE, Indexing.INCOMING_TRIPLE, Indexing.TYPE };
+
+  private final boolean               postings;
+  private final List<Query>           queries  = new ArrayList<Query>();
+  private final List<Filter>          filters  = new ArrayList<Filter>();
+  /* The core cache keys of the segments already preloaded */
+  private final Map<Object, Boolean>  warmed   = Collections.synchronizedMap(new WeakHashMap<Object, Boolean>());
+
+  /**
+   * @param postings preload the postings of the segments
+   * @param topics the topics replayed, e.g., the most recent ones
+   * @param parser the parser of the topics
+   * @param typeFilters applies the required types of the topics as cached
+   * filters, as {@link TopicSearch#setTypeFilterCache(TypeFilterCache)}; may
+   * be null
+   */
+  public IndexWarmer(final boolean postings, final List<Topic> topics, final TopicQueryParser parser,
+                     final TypeFilterCache typeFilters) {
+    this.postings = postings;
+    TopicSearch.parse(topics, parser, typeFilters, queries, filters);
+  }
+
+  /**
+   * Preload the new segments of the searcher and replay the topics
+   * @throws IOException
+   */
+  public void warm(final IndexSearcher searcher)
+  throws IOException {
+    final long start = System.nanoTime();
+    int segments = 0;
+    long positions = 0;
+    if (postings) {
+      final List<IndexReader> readers = new ArrayList<IndexReader>();
+      ReaderUtil.gatherSubReaders(readers, searcher.getIndexReader());
+      for (IndexReader reader : readers) {
+        if (warmed.put(reader.getCoreCacheKey(), Boolean.TRUE) == null) {
+          positions += preload(reader);
+          segments++;
+        }
+      }
+    }
+    for (int i = 0; i < queries.size(); i++) {
+      searcher.search(queries.get(i), filters.get(i), 10);
+    }
+    logger.info("Warmed up {} new segments ({} positions) and replayed {} topics in {} ms",
+      new Object[] { segments, positions, queries.size(), (System.nanoTime() - start) / 1000000 });
+  }
+
+  /**
+   * Read the postings of the fields of a segment
+   * @return the number of positions read
+   */
+  private static long preload(final IndexReader reader)
+  throws IOException {
+    long positions = 0;
+    final TermPositions tp = reader.termPositions();
+    try {
+      for (String field : FIELDS) {
+        final TermEnum terms = reader.terms(new Term(field, ""));
+        try {
+          do {
+            final Term term = terms.term();
+            if (term == null || !field.equals(term.field())) {
+              break;
+            }
+            tp.seek(terms);
+            while (tp.next()) {
+              for (int i = tp.freq(); i > 0; i--) {
+                tp.nextPosition();
+                if (tp.isPayloadAvailable()) {
+                  tp.getPayload(null, 0);
+                }
+                positions++;
+              }
+            }
+          } while (terms.next());
+        } finally {
+          terms.close();
+        }
+      }
+    } finally {
+      tp.close();
+    }
+    return positions;
+  }
+
+}
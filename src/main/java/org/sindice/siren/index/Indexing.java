@@ -27,10 +27,26 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
@@ -43,10 +59,17 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.LogMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Version;
 import org.sindice.siren.analysis.TupleAnalyzer;
@@ -61,22 +84,88 @@ import org.slf4j.LoggerFactory;
  * Outgoing triples are stored as n-tuples where a predicate has all its related
  * values.
  * Incoming triples are also stored as n-tuples, the difference being that a
- * predicate possess its related subject URIs.
+ * predicate possess its related subject URIs.<br>
+ * The indexing is a pipeline: the calling thread reads the raw entities from
+ * the archives and queues them; a pool of #THREADS threads flattens the
+ * triples and adds the documents to the shared #IndexWriter.
  */
 public abstract class Indexing implements Iterator<Entity> {
   
   protected final Logger            logger            = LoggerFactory.getLogger(Indexing.class);
   
-  /* Perform a commit by batch of COMMIT documents */
+  /*
+   * Perform a commit by batch of COMMIT documents, every COMMIT_INTERVAL
+   * seconds or every COMMIT_BYTES bytes of raw triples, whichever comes
+   * first; 0 disables a criterion
+   */
   public static int                 COMMIT            = 10000;
+  public static int                 COMMIT_INTERVAL   = 0;
+  public static long                COMMIT_BYTES      = 0;
+  /* IndexWriter settings: RAM buffer in MB, merge factor, and number of merge threads (0 for the default) */
+  public static double              RAM_BUFFER        = 256;
+  public static int                 MERGE_FACTOR      = 20;
+  public static int                 MERGE_THREADS     = 0;
+  /* Optimize the index down to OPTIMIZE segments at the end; 0 disables the optimize */
+  public static int                 OPTIMIZE          = 1;
+  /* Log the progress every PROGRESS_INTERVAL seconds; 0 disables the log */
+  public static int                 PROGRESS_INTERVAL = 60;
+  /* Store the tuples of the entities, compressed, see StoredTuples */
   public static boolean             STORE             = false;
   public static int                 SKIP_TO           = 0;
+  /*
+   * Maximum size in bytes of the raw triples of an entity. The outgoing
+   * triples take precedence: the incoming triples get at most half the room
+   * they leave. The triples over the budget are sampled, see
+   * Utils#getFile(TarArchiveInputStream, long, ByteArray, long)
+   */
+  public static long                ENTITY_BUDGET     = 64L * 1048576L;
+  /* The predicates, values and literals indexed, see FilterProfile */
+  public static FilterProfile       FILTER            = FilterProfile.NONE;
+  /* Number of threads flattening and indexing the entities */
+  public static int                 THREADS           = Runtime.getRuntime().availableProcessors();
+  /* Number and size of the buffers of decompressed data read ahead; 0 disables the read-ahead */
+  public static int                 PREFETCH_BUFFERS  = 8;
+  public static int                 PREFETCH_BUFFER_SIZE = 1 << 20;
+  /* Continue the indexing from the checkpoint of the last commit of the index */
+  public static boolean             RESUME            = false;
+  /*
+   * Add the archives after the last one of an existing index, replacing the
+   * entities already in it
+   */
+  public static boolean             UPDATE            = false;
+  /*
+   * Expected number of entities, which sizes the filter of the subjects seen:
+   * an entity with the subject of a document of the index is merged into it,
+   * see EntityDeduplicator. 0 disables the deduplication.
+   */
+  public static long                DEDUP             = 0;
+  /* The implementation of the directories of the indexes */
+  public static DirectoryType       DIRECTORY         = DirectoryType.FS;
   
   // FIELDS
   final static public String        INCOMING_TRIPLE   = "incoming-triple";
   final static public String        OUTGOING_TRIPLE   = "outgoing-triple";
   final static public String        SUBJECT           = "subject";
   final static public String        TYPE              = "type";
+  /* The stored tuples, see StoredTuples */
+  final static public String        TUPLES            = "tuples";
+  /* The static rank of the entity, see Entity#getStaticRank() */
+  final static public String        RANK              = "rank";
+  
+  // CHECKPOINT, in the commit user data
+  /* The archive of the next entity to index */
+  final static public String        CHECKPOINT_ARCHIVE  = "archive";
+  /* The ordinal of the tar entry where the next entity starts */
+  final static public String        CHECKPOINT_ENTRY    = "entry";
+  /* The number of entities in the index */
+  final static public String        CHECKPOINT_ENTITIES = "entities";
+  /* Set once all the input is indexed */
+  final static public String        CHECKPOINT_COMPLETE = "complete";
+  /* The last archive of the input, once complete */
+  final static public String        CHECKPOINT_LAST_ARCHIVE = "last-archive";
+  
+  /* False positive probability of the filter of the subjects in the index */
+  private static final double       SUBJECTS_FPP      = 0.01;
   
   /* The dataset files */
   protected final File[]            input;
@@ -85,10 +174,65 @@ public abstract class Indexing implements Iterator<Entity> {
   protected TarArchiveInputStream   reader            = null;
   /* A file entry in the archive */
   protected TarArchiveEntry         tarEntry;
+  /* The number of tar entries of the current archive met so far */
+  private int                       entries           = 0;
+  /* Decompresses the archives ahead of the reader */
+  private final ArchivePrefetcher   prefetcher;
+  
+  /* SIREn index, partitioned into shards by the subject of the entities, see ShardedIndex */
+  protected final Directory[]       indexDirs;
+  protected final IndexWriter[]     writers;
+  /* Counters of the run, exposed through JMX */
+  protected final IndexingMetrics   metrics;
+  
+  /* Entities read from the archives, waiting to be indexed */
+  private final BlockingQueue<Entity> queue;
+  /* Indexed entities, available for reuse by the reader */
+  private final BlockingQueue<Entity> pool;
+  /* Signals the end of the input to an indexing thread */
+  private static final Entity       POISON            = new Entity();
+  /* The first error raised by an indexing thread */
+  private volatile Throwable        failure           = null;
+  /* Number of indexed entities */
+  private final AtomicLong          counter           = new AtomicLong();
+  /* Number of entities handed over to the indexing threads */
+  private volatile long             queued            = 0;
+  /* The value of #queued at the last commit */
+  private long                      committed         = 0;
+  /* Raw bytes of the entities queued since the last commit, and its time */
+  private long                      bytesSinceCommit  = 0;
+  private long                      lastCommit        = System.nanoTime();
+  /* Notified when #counter reaches #queued, see #drain */
+  private final Object              drained           = new Object();
+  /* Number of malformed triples skipped */
+  private final AtomicLong          malformed         = new AtomicLong();
+  /* Number of entities which triples were sampled or values dropped */
+  private final AtomicLong          truncated         = new AtomicLong();
+  
+  /* The subjects of the index being updated, null if not updating or deduplicating */
+  private final BloomFilter         subjects;
+  /* Merges the entities already in the index, null if #DEDUP is 0 */
+  private final EntityDeduplicator  dedup;
+  /*
+   * The subjects which documents in the index were deleted by this update.
+   * The other parts of these entities are then added without deleting the
+   * parts added before them.
+   */
+  private final Set<String>         replaced          = new HashSet<String>();
+  /* Number of entities which replaced a document, or may have */
+  private final AtomicLong          updated           = new AtomicLong();
+  /* Bounds the bytes of the entities in flight, null if HeapGovernor#BUDGET is 0 */
+  private final HeapGovernor        governor;
   
-  /* SIREn index */
-  protected final Directory         indexDir;
-  protected final IndexWriter       writer;
+  /* Optimize the index once all entities are added */
+  private boolean                   optimize          = true;
+  /*
+   * Withhold the first and last entities of the input, instead of indexing
+   * them, so that they can be reconciled with the ones of adjacent archives.
+   */
+  private boolean                   keepBoundaries    = false;
+  private Entity                    head              = null;
+  private Entity                    tail              = null;
 
   /**
    * Create a SIREn index at indexDir, taking the files at inputDir as input.
@@ -98,11 +242,244 @@ public abstract class Indexing implements Iterator<Entity> {
    */
   public Indexing(final File inputDir, final Directory dir)
   throws IOException {
-    this.input = inputDir.listFiles(new FilenameFilter() {
+    this(null, inputDir, new Directory[] { dir });
+  }
+  
+  /**
+   * Create a SIREn index at indexDir, taking the given archive files as input.
+   * @param input
+   * @param dir
+   * @throws IOException
+   */
+  public Indexing(final File[] input, final Directory dir)
+  throws IOException {
+    this(input, null, new Directory[] { dir });
+  }
+  
+  /**
+   * Create a SIREn index partitioned into the shards, taking the files at
+   * inputDir as input. The RAM buffer is shared by the shards.
+   * @param inputDir
+   * @param shards
+   * @throws IOException
+   */
+  public Indexing(final File inputDir, final Directory[] shards)
+  throws IOException {
+    this(null, inputDir, shards);
+  }
+  
+  /**
+   * Create a SIREn index partitioned into the shards, taking the given
+   * archive files as input. The RAM buffer is shared by the shards.
+   * @param input
+   * @param shards
+   * @throws IOException
+   */
+  public Indexing(final File[] input, final Directory[] shards)
+  throws IOException {
+    this(input, null, shards);
+  }
+  
+  private Indexing(final File[] files, final File inputDir, final Directory[] dirs)
+  throws IOException {
+    final File[] input = files != null ? files : listArchives(inputDir, getPattern());
+    if (input.length == 0) {
+      throw new RuntimeException(files != null ? "No archive files to index"
+                                               : "No archive files in the folder: " + inputDir.getAbsolutePath());
+    }
+    if (DEDUP > 0 && !STORE) {
+      throw new IllegalArgumentException("The entities can only be deduplicated if their tuples are stored");
+    }
+    if (dirs.length > 1 && (RESUME || UPDATE)) {
+      // the shards are not committed atomically
+      throw new IllegalArgumentException("Cannot resume or update a sharded index");
+    }
+    final Map<String, String> checkpoint = RESUME || UPDATE ? readCheckpoint(dirs[0]) : null;
+    if (UPDATE && checkpoint == null) {
+      throw new IOException("No index to update");
+    }
+    final boolean resuming = checkpoint != null && !checkpoint.containsKey(CHECKPOINT_COMPLETE);
+    if (resuming && !RESUME) {
+      throw new IOException("The last indexing of the index did not complete: it must be resumed first");
+    }
+    
+    final File[] remaining;
+    if (resuming) {
+      remaining = resumeInput(input, checkpoint);
+    } else if (UPDATE) {
+      remaining = newArchives(input, checkpoint);
+    } else if (checkpoint != null) {
+      remaining = new File[0];
+    } else {
+      remaining = input;
+    }
+    this.input = remaining.length != 0 ? remaining : input;
+    this.indexDirs = dirs;
+    final BloomFilter seen = UPDATE || DEDUP > 0 ? readSubjects(dirs, DEDUP) : null;
+    this.subjects = DEDUP > 0 ? null : seen;
+    this.writers = new IndexWriter[dirs.length];
+    for (int i = 0; i < dirs.length; i++) {
+      writers[i] = initializeIndexWriter(dirs[i], RAM_BUFFER / dirs.length);
+    }
+    this.governor = HeapGovernor.BUDGET > 0 ? HeapGovernor.getInstance() : null;
+    this.metrics = new IndexingMetrics(this.input, this.writers);
+    metrics.governor = governor;
+    this.dedup = DEDUP > 0 ? new EntityDeduplicator(seen, writers, metrics.merged) : null;
+    this.queue = new ArrayBlockingQueue<Entity>(2 * THREADS);
+    this.pool = new ArrayBlockingQueue<Entity>(3 * THREADS + 1);
+    if (checkpoint != null) {
+      counter.set(Long.parseLong(checkpoint.get(CHECKPOINT_ENTITIES)));
+      queued = committed = counter.get();
+    }
+    // An update adds a few archives: optimizing would rewrite the whole index
+    optimize = !UPDATE;
+    if (remaining.length == 0) {
+      logger.info("The index is up to date with the input: nothing to index");
+      this.prefetcher = null;
+      this.inputPos = this.input.length;
+      return;
+    }
+    this.prefetcher = PREFETCH_BUFFERS > 0 ? new ArchivePrefetcher(this.input, PREFETCH_BUFFERS, PREFETCH_BUFFER_SIZE,
+                                                                   metrics.compressedBytes)
+                                           : null;
+    reader = getTarInputStream(this.input[0]);
+    logger.info("Creating index from input located at {} ({} files)",
+      this.input[0].getParentFile().getAbsolutePath(), this.input.length);
+    logger.info("Reading dump: {}", this.input[0]);
+    if (resuming) {
+      resume(checkpoint);
+    }
+  }
+  
+  /**
+   * Returns the checkpoint of the last commit of the index at dir, or
+   * <code>null</code> if there is no index.
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  static Map<String, String> readCheckpoint(final Directory dir)
+  throws IOException {
+    if (!IndexReader.indexExists(dir)) {
+      return null;
+    }
+    final Map<String, String> checkpoint = IndexReader.getCommitUserData(dir);
+    if (!checkpoint.containsKey(CHECKPOINT_ENTITIES)) {
+      throw new IOException("The index has no checkpoint");
+    }
+    return checkpoint;
+  }
+  
+  /**
+   * The archives left to read from the checkpoint
+   */
+  private static File[] resumeInput(final File[] input, final Map<String, String> checkpoint)
+  throws IOException {
+    final String archive = checkpoint.get(CHECKPOINT_ARCHIVE);
+    for (int i = 0; i < input.length; i++) {
+      if (input[i].getName().equals(archive)) {
+        return Arrays.copyOfRange(input, i, input.length);
+      }
+    }
+    throw new IOException("The archive of the checkpoint is not in the input: " + archive);
+  }
+  
+  /**
+   * The archives after the last one of a complete index
+   */
+  private static File[] newArchives(final File[] input, final Map<String, String> checkpoint)
+  throws IOException {
+    final String last = checkpoint.get(CHECKPOINT_LAST_ARCHIVE);
+    if (last == null) {
+      throw new IOException("The index does not record its last archive");
+    }
+    final List<File> archives = new ArrayList<File>();
+    for (File archive : input) {
+      if (archive.getName().compareTo(last) > 0) {
+        archives.add(archive);
+      }
+    }
+    return archives.toArray(new File[archives.size()]);
+  }
+  
+  /**
+   * Load the subjects of the indexes at dirs into a filter, with room for
+   * the given number of new ones. The terms of the subject field are read,
+   * not the documents.
+   */
+  private static BloomFilter readSubjects(final Directory[] dirs, final long expected)
+  throws IOException {
+    long size = expected;
+    for (Directory dir : dirs) {
+      if (IndexReader.indexExists(dir)) {
+        final IndexReader reader = IndexReader.open(dir, true);
+        size += reader.numDocs();
+        reader.close();
+      }
+    }
+    final BloomFilter filter = new BloomFilter(size, SUBJECTS_FPP);
+    for (Directory dir : dirs) {
+      if (IndexReader.indexExists(dir)) {
+        readSubjects(dir, filter);
+      }
+    }
+    return filter;
+  }
+  
+  private static void readSubjects(final Directory dir, final BloomFilter filter)
+  throws IOException {
+    final IndexReader reader = IndexReader.open(dir, true);
+    try {
+      final TermEnum terms = reader.terms(new Term(SUBJECT, ""));
+      try {
+        do {
+          final Term term = terms.term();
+          if (term == null || !SUBJECT.equals(term.field())) {
+            break;
+          }
+          filter.add(term.text());
+        } while (terms.next());
+      } finally {
+        terms.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * Move the reader to the entity of the checkpoint. The tar entries are
+   * skipped without being read.
+   */
+  private void resume(final Map<String, String> checkpoint)
+  throws IOException {
+    final int entry = Integer.parseInt(checkpoint.get(CHECKPOINT_ENTRY));
+    while (entries < entry) {
+      if ((tarEntry = reader.getNextTarEntry()) == null) {
+        throw new IOException("The checkpoint is past the end of " + input[0] + ": entry " + entry);
+      }
+      entries++;
+    }
+    // the last skipped entry was read before the checkpoint
+    while (reader.available() > 0) {
+      reader.skip(reader.available());
+    }
+    logger.info("Resuming at entity {}, from entry {} of {}", new Object[] { counter.get(), entry, input[0] });
+  }
+  
+  /**
+   * List the archive files in inputDir which name matches the pattern, sorted
+   * by name.
+   * @param inputDir
+   * @param pattern
+   * @return
+   */
+  static File[] listArchives(final File inputDir, final String pattern) {
+    final File[] input = inputDir.listFiles(new FilenameFilter() {
       
       @Override
       public boolean accept(File dir, String name) {
-        if (name.matches(getPattern())) {
+        if (name.matches(pattern)) {
           final int dump = Integer.valueOf(name.substring(3, name.indexOf('.')));
           return dump >= SKIP_TO; // discards any dump files lower than #SKIP_TO
         }
@@ -110,19 +487,15 @@ public abstract class Indexing implements Iterator<Entity> {
       }
       
     });
+    if (input == null) {
+      throw new RuntimeException("Not a folder: " + inputDir.getAbsolutePath());
+    }
     /*
      *  Sort by filename: important because in the SIndice-ED dataset, two
      *  consecutive dumps can store a same entity
      */
-    Arrays.sort(this.input);
-    if (this.input.length == 0) {
-      throw new RuntimeException("No archive files in the folder: " + inputDir.getAbsolutePath());
-    }
-    this.indexDir = dir;
-    this.writer = initializeIndexWriter(this.indexDir);
-    reader = getTarInputStream(this.input[0]);
-    logger.info("Creating index from input located at {} ({} files)", inputDir.getAbsolutePath(), input.length);
-    logger.info("Reading dump: {}", this.input[0]);
+    Arrays.sort(input);
+    return input;
   }
   
   /**
@@ -132,7 +505,9 @@ public abstract class Indexing implements Iterator<Entity> {
   protected abstract String getPattern();
 
   /**
-   * Create a buffered tar inputstream from the file in
+   * Create a buffered tar inputstream from the file in. The archives must be
+   * opened in the order of #input, as they may be decompressed ahead by the
+   * #prefetcher.
    * @param in
    * @return
    * @throws FileNotFoundException
@@ -140,7 +515,13 @@ public abstract class Indexing implements Iterator<Entity> {
    */
   private TarArchiveInputStream getTarInputStream(final File in)
   throws FileNotFoundException, IOException {
-    return new TarArchiveInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(in))));
+    if (prefetcher != null) {
+      return new TarArchiveInputStream(new CountingInputStream(prefetcher.nextArchive(), metrics.decompressedBytes));
+    }
+    // Large buffers, so that the file is read and inflated in big chunks
+    final InputStream file = new CountingInputStream(new FileInputStream(in), metrics.compressedBytes);
+    final InputStream gzip = new GZIPInputStream(new BufferedInputStream(file, 1 << 20), 1 << 16);
+    return new TarArchiveInputStream(new CountingInputStream(new BufferedInputStream(gzip, 1 << 16), metrics.decompressedBytes));
   }
   
   @Override
@@ -159,7 +540,15 @@ public abstract class Indexing implements Iterator<Entity> {
        * if reader.available() is not equal to 0, then it means that this entry
        * has been loaded, but not read.
        */
-      while (reader.available() == 0 && (tarEntry = reader.getNextTarEntry()) == null) { // Next tar entry
+      if (inputPos >= input.length) {
+        return false;
+      }
+      while (reader.available() == 0) {
+        if ((tarEntry = reader.getNextTarEntry()) != null) { // Next tar entry
+          entries++;
+          metrics.tarEntries.incrementAndGet();
+          break;
+        }
         if (++inputPos >= input.length) {
           reader.close();
           return false;
@@ -168,6 +557,7 @@ public abstract class Indexing implements Iterator<Entity> {
         reader.close();
         logger.info("Reading dump: {}", this.input[inputPos]);
         reader = getTarInputStream(input[inputPos]);
+        entries = 0;
       }
     } catch (IOException e) {
       logger.error("Error while reading the input: {}\n{}", input[inputPos], e);
@@ -183,30 +573,63 @@ public abstract class Indexing implements Iterator<Entity> {
   }
   
   /**
-   * Create a index writer that uses a #TupleAnalyzer on the triples fields with
-   * a tokenization of the URI's localname, and the default #WhitespaceAnalyzer
-   * on the others.
-   * @param dir
-   * @return
-   * @throws IOException
+   * Create the analyzer of the index: a #TupleAnalyzer on the triples fields
+   * with a tokenization of the URI's localname, cached with a
+   * #LocalnameCache unless its size is 0, and the default
+   * #WhitespaceAnalyzer on the others.
    */
-  private IndexWriter initializeIndexWriter(final Directory dir)
-  throws IOException {
+  static Analyzer createAnalyzer() {
     final Analyzer defaultAnalyzer = new WhitespaceAnalyzer(Version.LUCENE_31);
     final Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
-    final TupleAnalyzer tuple = new TupleAnalyzer(new StandardAnalyzer(Version.LUCENE_31));
-    tuple.setURINormalisation(URINormalisation.LOCALNAME);
+    final Analyzer tuple;
+    if (LocalnameCache.MAX_ENTRIES > 0) {
+      tuple = new CachedTupleAnalyzer(new StandardAnalyzer(Version.LUCENE_31), LocalnameCache.getInstance());
+    } else {
+      final TupleAnalyzer localname = new TupleAnalyzer(new StandardAnalyzer(Version.LUCENE_31));
+      localname.setURINormalisation(URINormalisation.LOCALNAME);
+      tuple = localname;
+    }
     fieldAnalyzers.put(OUTGOING_TRIPLE, tuple);
     fieldAnalyzers.put(INCOMING_TRIPLE, tuple);
+    return new PerFieldAnalyzerWrapper(defaultAnalyzer, fieldAnalyzers);
+  }
+
+  /**
+   * Create a index writer that uses the analyzer of #createAnalyzer
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  static IndexWriter initializeIndexWriter(final Directory dir)
+  throws IOException {
+    return initializeIndexWriter(dir, RAM_BUFFER);
+  }
 
-    final IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, new PerFieldAnalyzerWrapper(defaultAnalyzer, fieldAnalyzers));
+  /**
+   * Create a index writer that uses the analyzer of #createAnalyzer
+   * @param dir
+   * @param ramBuffer the size in MB of the buffer of the writer
+   * @return
+   * @throws IOException
+   */
+  private static IndexWriter initializeIndexWriter(final Directory dir, final double ramBuffer)
+  throws IOException {
+    final IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, createAnalyzer());
     
     // Disable compound file
     ((LogMergePolicy) config.getMergePolicy()).setUseCompoundFile(false);
-    // Increase merge factor to 20 - more adapted to batch creation
-    ((LogMergePolicy) config.getMergePolicy()).setMergeFactor(20);
+    // Increase merge factor to 20 by default - more adapted to batch creation
+    ((LogMergePolicy) config.getMergePolicy()).setMergeFactor(MERGE_FACTOR);
+    // Merges run in background threads, concurrently with the indexing
+    final ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+    if (MERGE_THREADS > 0) {
+      scheduler.setMaxThreadCount(MERGE_THREADS);
+    }
+    config.setMergeScheduler(scheduler);
     
-    config.setRAMBufferSizeMB(256);
+    // An update adds to an existing index
+    config.setOpenMode(UPDATE ? OpenMode.APPEND : OpenMode.CREATE_OR_APPEND);
+    config.setRAMBufferSizeMB(ramBuffer);
     config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
     config.setMaxBufferedDeleteTerms(IndexWriterConfig.DISABLE_AUTO_FLUSH);
 
@@ -215,6 +638,50 @@ public abstract class Indexing implements Iterator<Entity> {
     return writer;
   }
 
+  /**
+   * Returns an empty entity, recycled from the ones already indexed if
+   * possible.
+   * @return
+   */
+  protected Entity acquireEntity() {
+    final Entity entity = pool.poll();
+    return entity == null ? new Entity() : entity;
+  }
+  
+  /**
+   * Append the triples of the current tar entry to the outgoing or incoming
+   * triples of the entity, within the {@link #ENTITY_BUDGET}. The incoming
+   * triples are skipped if the {@link #FILTER} does not index them.
+   * @param entity
+   * @param outgoing true for an outgoing-triples.nt entry
+   * @throws IOException
+   */
+  protected void getTriples(final Entity entity, final boolean outgoing)
+  throws IOException {
+    if (!outgoing && !FILTER.isIncoming()) {
+      reader.skip(tarEntry.getSize());
+      return;
+    }
+    final long room = ENTITY_BUDGET - entity.rawOut.length() - entity.rawIn.length();
+    final ByteArray triples = outgoing ? entity.rawOut : entity.rawIn;
+    final long limit = triples.length() + (outgoing ? room : room / 2);
+    if (Utils.getFile(reader, tarEntry.getSize(), triples, limit)) {
+      entity.truncated = true;
+    }
+  }
+  
+  /**
+   * Give back an indexed entity for reuse
+   * @param entity
+   */
+  private void releaseEntity(final Entity entity) {
+    if (governor != null) {
+      governor.release(entity.held);
+    }
+    entity.clear();
+    pool.offer(entity);
+  }
+  
   /**
    * Creates an entity index
    * @throws CorruptIndexException
@@ -222,40 +689,424 @@ public abstract class Indexing implements Iterator<Entity> {
    */
   public void indexIt()
   throws CorruptIndexException, IOException {
-    Entity entity = null;
-    long counter = 0;
+    metrics.start(input.length > 0 ? input[0].getName() : indexDirs[0].toString(), PROGRESS_INTERVAL);
+    try {
+      index();
+    } finally {
+      metrics.stop();
+    }
+  }
+
+  private void index()
+  throws CorruptIndexException, IOException {
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    final List<Future<Void>> workers = new ArrayList<Future<Void>>();
     
-    while (hasNext()) { // for each entity
-      entity = next();
-      
-      Document doc = new Document();
-      doc.add(new Field(SUBJECT, entity.subject, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
-      doc.add(new Field(TYPE, Utils.toString(entity.type), Store.YES, Index.ANALYZED_NO_NORMS));
-      doc.add(new Field(OUTGOING_TRIPLE, entity.getTriples(true), STORE ? Store.YES : Store.NO, Index.ANALYZED_NO_NORMS));
-      doc.add(new Field(INCOMING_TRIPLE, entity.getTriples(false), STORE ? Store.YES : Store.NO, Index.ANALYZED_NO_NORMS));
-      writer.addDocument(doc);
-      counter = commit(true, counter, entity.subject);
+    for (int i = 0; i < THREADS; i++) {
+      workers.add(executor.submit(new Worker()));
+    }
+    try {
+      Entity previous = null;
+      String subject = null;
+      while (failure == null && hasNext()) { // for each entity
+        // The reader is at the first entry of the entity: a checkpoint can be taken
+        if (isCommitDue()) {
+          commit(subject);
+        }
+        final Entity entity = next();
+        subject = entity.subject;
+        final long size = entity.rawOut.length() + entity.rawIn.length();
+        bytesSinceCommit += size;
+        metrics.entitySize(size);
+        if (!keepBoundaries) {
+          enqueue(entity);
+        } else if (head == null) {
+          head = entity;
+        } else {
+          if (previous != null) {
+            enqueue(previous);
+          }
+          previous = entity;
+        }
+      }
+      tail = previous;
+    } finally {
+      for (int i = 0; i < THREADS; i++) {
+        enqueue(POISON);
+      }
+      if (failure != null) { // discard the queued entities
+        executor.shutdownNow();
+      } else {
+        executor.shutdown();
+      }
+      for (Future<Void> worker : workers) {
+        try {
+          worker.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the indexing threads");
+        } catch (ExecutionException e) {
+          // the failure has been recorded by the worker
+        }
+      }
+      // give back the bytes of the discarded entities to the shared governor
+      Entity discarded;
+      while ((discarded = queue.poll()) != null) {
+        if (discarded != POISON) {
+          releaseEntity(discarded);
+        }
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new RuntimeException("Indexing thread failed", failure);
+    }
+    commit(); // Commit what is left
+    if (optimize && OPTIMIZE > 0) {
+      for (IndexWriter writer : writers) {
+        writer.optimize(OPTIMIZE);
+      }
+    }
+  }
+  
+  /**
+   * Optimize or not the index at the end of #indexIt. Defaults to true.
+   * @param optimize
+   */
+  void setOptimize(final boolean optimize) {
+    this.optimize = optimize;
+  }
+  
+  /**
+   * If true, #indexIt does not index the first and last entities of the input.
+   * They are instead made available through #getHead and #getTail, not
+   * flattened.
+   * @param keepBoundaries
+   */
+  void setKeepBoundaries(final boolean keepBoundaries) {
+    this.keepBoundaries = keepBoundaries;
+  }
+  
+  /**
+   * The first entity of the input, or <code>null</code> if there is none.
+   * @see #setKeepBoundaries(boolean)
+   */
+  Entity getHead() {
+    return head;
+  }
+  
+  /**
+   * The last entity of the input, or <code>null</code> if the input has less
+   * than two entities.
+   * @see #setKeepBoundaries(boolean)
+   */
+  Entity getTail() {
+    return tail;
+  }
+  
+  /**
+   * Hand over an entity to the indexing threads, waiting if they are all busy
+   * or if the entities in flight exceed the heap budget.
+   * Gives up if an indexing thread failed, since the queue might never be
+   * drained.
+   * @param entity
+   * @throws InterruptedIOException
+   */
+  private void enqueue(final Entity entity)
+  throws InterruptedIOException {
+    if (entity != POISON) {
+      queued++;
+    }
+    boolean handedOver = false;
+    try {
+      if (governor != null && entity != POISON) {
+        final long bytes = entity.ramBytesUsed();
+        while (!governor.tryAcquire(bytes, 1000)) {
+          if (failure != null) {
+            return;
+          }
+        }
+        entity.held = bytes;
+      }
+      while (!queue.offer(entity, 1, TimeUnit.SECONDS)) {
+        if (failure != null) {
+          return;
+        }
+      }
+      handedOver = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while queuing entity: " + entity.subject);
+    } finally {
+      if (!handedOver && entity.held != 0) { // the entity will not be indexed
+        governor.release(entity.held);
+        entity.held = 0;
+      }
     }
-    commit(false, counter, entity.subject); // Commit what is left
-    writer.optimize();
   }
   
   /**
-   * Commits the documents by batch
-   * @param indexing
-   * @param counter
-   * @param subject
+   * Account to the governor for the memory of the entity once flattened: the
+   * tuples, their decoded terms and the buffers the document is analyzed from,
+   * as well as the stored tuples of the document. The worker does not wait
+   * for the budget, since the bytes it would wait for may be held by the
+   * queued entities only the workers can index: the reading stage waits
+   * instead.
+   * @param doc the document of the entity, null if not built yet
+   */
+  private void account(final Entity entity, final Document doc) {
+    if (governor == null) {
+      return;
+    }
+    long bytes = entity.ramBytesUsed();
+    final Fieldable stored = doc == null ? null : doc.getFieldable(TUPLES);
+    if (stored != null) {
+      bytes += stored.getBinaryLength();
+    }
+    governor.resize(entity.held, bytes);
+    entity.held = bytes;
+  }
+  
+  /**
+   * Delete the documents of the subject already in the index, the first time
+   * one of its parts is met. The delete is done while holding the lock, so
+   * that another part of the subject is added after it and is not deleted.
+   */
+  private void replace(final IndexWriter writer, final String subject)
+  throws IOException {
+    synchronized (replaced) {
+      if (replaced.add(subject)) {
+        writer.deleteDocuments(new Term(SUBJECT, subject));
+        updated.incrementAndGet();
+      }
+    }
+  }
+  
+  /**
+   * Flattens the queued entities and adds them to the index, until the
+   * #POISON entity is met.
+   */
+  private class Worker implements Callable<Void> {
+    
+    @Override
+    public Void call()
+    throws Exception {
+      try {
+        Entity entity;
+        while ((entity = queue.take()) != POISON) {
+          try {
+            final int errors = entity.flatten();
+            if (errors != 0) {
+              malformed.addAndGet(errors);
+              logger.debug("Skipped {} malformed triples in entity {}", errors, entity.subject);
+            }
+            if (entity.truncated) {
+              truncated.incrementAndGet();
+              logger.debug("Truncated entity {}", entity.subject);
+            }
+            metrics.triples.addAndGet(entity.triples);
+            final long start = System.nanoTime();
+            if (dedup != null) {
+              account(entity, null);
+              dedup.addDocument(entity);
+            } else {
+              final Document doc = toDocument(entity);
+              account(entity, doc);
+              final IndexWriter writer = writers[ShardedIndex.shard(entity.subject, writers.length)];
+              if (subjects != null && subjects.mightContain(entity.subject)) {
+                replace(writer, entity.subject);
+              }
+              writer.addDocument(doc);
+            }
+            metrics.addDocument(System.nanoTime() - start);
+            metrics.entities.incrementAndGet();
+            if (counter.incrementAndGet() == queued) {
+              synchronized (drained) {
+                drained.notifyAll();
+              }
+            }
+          } finally {
+            releaseEntity(entity);
+          }
+        }
+      } catch (InterruptedException e) {
+        // Stopped because another indexing thread failed
+        Thread.currentThread().interrupt();
+      } catch (Throwable e) {
+        synchronized (Indexing.this) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+        logger.error("Indexing thread failed", e);
+        if (e instanceof Exception) {
+          throw (Exception) e;
+        }
+        throw (Error) e;
+      }
+      return null;
+    }
+    
+  }
+  
+  /**
+   * Create the document of a flattened entity
+   * @param entity
    * @return
+   */
+  static Document toDocument(final Entity entity) {
+    final Document doc = new Document();
+    doc.add(new Field(SUBJECT, entity.subject, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+    doc.add(new Field(TYPE, entity.getTypes(), Store.YES, Index.ANALYZED_NO_NORMS));
+    doc.add(new NumericField(RANK).setFloatValue(entity.getStaticRank()));
+    // The tuples are analyzed as they are read, without building the strings
+    doc.add(tupleField(OUTGOING_TRIPLE, entity.getTriplesReader(true)));
+    if (FILTER.isIncoming()) {
+      doc.add(tupleField(INCOMING_TRIPLE, entity.getTriplesReader(false)));
+    }
+    if (STORE) {
+      doc.add(new Field(TUPLES, StoredTuples.encode(entity)));
+    }
+    return doc;
+  }
+  
+  private static Field tupleField(final String name, final Reader reader) {
+    final Field field = new Field(name, reader);
+    field.setOmitNorms(true);
+    return field;
+  }
+  
+  /**
+   * Returns true if a commit is due, after #COMMIT entities, #COMMIT_BYTES
+   * bytes or #COMMIT_INTERVAL seconds
+   */
+  private boolean isCommitDue() {
+    if (queued == committed) {
+      return false;
+    }
+    return (COMMIT > 0 && queued - committed >= COMMIT) ||
+           (COMMIT_BYTES > 0 && bytesSinceCommit >= COMMIT_BYTES) ||
+           (COMMIT_INTERVAL > 0 && System.nanoTime() - lastCommit >= COMMIT_INTERVAL * 1000000000L);
+  }
+  
+  /**
+   * Commits the documents by batch, with a checkpoint. The indexing threads
+   * are drained first, so that the commit holds exactly the entities read so
+   * far.
+   * @param subject the last read entity
    * @throws CorruptIndexException
    * @throws IOException
    */
-  private long commit(boolean indexing, long counter, String subject)
+  private void commit(final String subject)
   throws CorruptIndexException, IOException {
-    if (!indexing || (++counter % COMMIT) == 0) { // Index by batch
-      writer.commit();
-      logger.info("Commited {} entities. Last entity: {}", (indexing ? COMMIT : counter), subject);
+    if (!drain()) { // an indexing thread failed
+      return;
+    }
+    final long start = System.nanoTime();
+    final Map<String, String> checkpoint = checkpoint();
+    for (IndexWriter writer : writers) {
+      writer.commit(checkpoint);
+    }
+    metrics.commit(System.nanoTime() - start);
+    committed = queued;
+    bytesSinceCommit = 0;
+    lastCommit = System.nanoTime();
+    logger.info("Commited {} entities. Last entity: {}", counter.get(), subject);
+  }
+  
+  /**
+   * Wait until the indexing threads have added all the queued entities
+   * @return false if an indexing thread failed
+   * @throws InterruptedIOException
+   */
+  private boolean drain()
+  throws InterruptedIOException {
+    synchronized (drained) {
+      while (counter.get() < queued) {
+        if (failure != null) {
+          return false;
+        }
+        try {
+          drained.wait(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the indexing threads");
+        }
+      }
+    }
+    return failure == null;
+  }
+  
+  /**
+   * The position of the next entity to read, stored with a commit. The
+   * position is the tar entry of an archive where the entity starts, i.e., the
+   * current entry. It is not recorded if the boundaries are withheld.
+   */
+  private Map<String, String> checkpoint() {
+    final Map<String, String> checkpoint = new HashMap<String, String>();
+    checkpoint.put(CHECKPOINT_ENTITIES, Long.toString(counter.get()));
+    if (!keepBoundaries) {
+      checkpoint.put(CHECKPOINT_ARCHIVE, input[inputPos].getName());
+      checkpoint.put(CHECKPOINT_ENTRY, Integer.toString(entries - 1));
+    }
+    return checkpoint;
+  }
+  
+  /**
+   * The checkpoint of a complete index
+   * @param entities the number of entities in the index
+   * @param lastArchive the last archive of the input
+   */
+  static Map<String, String> completeCheckpoint(final long entities, final File lastArchive) {
+    final Map<String, String> checkpoint = new HashMap<String, String>();
+    checkpoint.put(CHECKPOINT_ENTITIES, Long.toString(entities));
+    checkpoint.put(CHECKPOINT_COMPLETE, "true");
+    checkpoint.put(CHECKPOINT_LAST_ARCHIVE, lastArchive.getName());
+    return checkpoint;
+  }
+  
+  /**
+   * Commits the remaining documents
+   * @throws CorruptIndexException
+   * @throws IOException
+   */
+  private void commit()
+  throws CorruptIndexException, IOException {
+    final long start = System.nanoTime();
+    final Map<String, String> checkpoint = completeCheckpoint(counter.get(), input[input.length - 1]);
+    for (IndexWriter writer : writers) {
+      writer.commit(checkpoint);
+    }
+    metrics.commit(System.nanoTime() - start);
+    logger.info("Commited {} entities in total", counter.get());
+    if (subjects != null) {
+      logger.info("Updated {} entities possibly in the index", updated.get());
+    }
+    if (dedup != null) {
+      logger.info("Merged {} entities with a document of the index, {} false positives of the subject filter",
+        metrics.merged.get(), dedup.getFalsePositives());
+    }
+    if (malformed.get() != 0) {
+      logger.info("Skipped {} malformed triples", malformed.get());
+    }
+    if (truncated.get() != 0) {
+      logger.info("Truncated {} entities to {} MB of triples and {} values per predicate",
+        new Object[] { truncated.get(), ENTITY_BUDGET / 1048576, TupleTable.MAX_VALUES });
+    }
+    if (governor != null) {
+      logger.info("Heap budget: {} MB, peak of {} MB in flight, waited {} times for {} ms", new Object[] {
+        governor.getBudget() / 1048576, governor.getPeak() / 1048576, governor.getWaits(),
+        governor.getWaitTime() / 1000000 });
+    }
+    logger.info("{} URIs in the term dictionary", TermDictionary.getInstance().size());
+    if (LocalnameCache.MAX_ENTRIES > 0) {
+      final LocalnameCache localnames = LocalnameCache.getInstance();
+      logger.info("Localname cache: {} URIs, {} hits, {} misses, {} evictions", new Object[] { localnames.size(),
+        localnames.getHits(), localnames.getMisses(), localnames.getEvictions() });
     }
-    return counter;
   }
   
   /**
@@ -265,10 +1116,30 @@ public abstract class Indexing implements Iterator<Entity> {
    */
   public void close()
   throws CorruptIndexException, IOException {
-    try {
-      writer.close(); 
-    } finally {
-      indexDir.close();
+    if (prefetcher != null) {
+      prefetcher.close();
+    }
+    // the entities kept for reuse
+    pool.clear();
+    IOException error = null;
+    if (dedup != null) {
+      try {
+        dedup.close();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    for (int i = 0; i < writers.length; i++) {
+      try {
+        writers[i].close();
+      } catch (IOException e) {
+        error = error == null ? e : error;
+      } finally {
+        indexDirs[i].close();
+      }
+    }
+    if (error != null) {
+      throw error;
     }
   }
 
@@ -27,7 +27,7 @@ import java.io.IOException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.Directory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,8 +46,34 @@ public class IndexingCLI {
   private final String          INDEX_DIR   = "index-dir";
   private final String          FORMAT      = "format";
   private final String          COMMIT      = "commit";
+  private final String          COMMIT_INTERVAL = "commit-interval";
+  private final String          COMMIT_BYTES = "commit-bytes";
+  private final String          PROFILE     = "profile";
+  private final String          RAM_BUFFER  = "ram-buffer";
+  private final String          MERGE_FACTOR = "merge-factor";
+  private final String          MERGE_THREADS = "merge-threads";
+  private final String          OPTIMIZE    = "optimize";
+  private final String          PROGRESS    = "progress-interval";
   private final String          STORE       = "store";
   private final String          SKIP_TO     = "skip-to";
+  private final String          THREADS     = "threads";
+  private final String          PARALLEL    = "parallel-archives";
+  private final String          SHARDS      = "shards";
+  private final String          RANK_SORT   = "rank-sort";
+  private final String          PREFETCH    = "prefetch-buffers";
+  private final String          PREFETCH_SIZE = "prefetch-buffer-size";
+  private final String          RESUME      = "resume";
+  private final String          UPDATE      = "update";
+  private final String          ENTITY_BUDGET = "entity-budget";
+  private final String          MAX_VALUES  = "max-values";
+  private final String          DICTIONARY  = "dictionary-size";
+  private final String          DICTIONARY_FREQ = "dictionary-min-frequency";
+  private final String          LOCALNAME_CACHE = "localname-cache";
+  private final String          FILTER_PROFILE = "filter-profile";
+  private final String          DEDUP       = "dedup";
+  private final String          DIRECTORY   = "directory";
+  private final String          HEAP_BUDGET = "heap-budget";
+  private final String          ENTITY_RETAINED = "entity-retained";
   
   private File dumpsDir;
   private File indexDir;
@@ -57,6 +83,15 @@ public class IndexingCLI {
     SINDICE_ED, SINDICE_DE
   }
   
+  /**
+   * Presets of the commit, merge and optimize settings. BULK is meant for
+   * building a large index in one go: commits are driven by time instead of by
+   * documents, merges use several threads, and the index is not optimized.
+   */
+  public static enum Profile {
+    DEFAULT, BULK
+  }
+  
   /**
    * 
    */
@@ -69,11 +104,94 @@ public class IndexingCLI {
           .withRequiredArg().ofType(File.class);
     parser.accepts(FORMAT, "The dataset format, either SINDICE_ED or SINDICE_DE")
           .withRequiredArg().ofType(Format.class);
-    parser.accepts(COMMIT, "Commit documents by batch of X")
-          .withRequiredArg().ofType(Integer.class).defaultsTo(Indexing.COMMIT);
-    parser.accepts(STORE, "Store the triples, incomings and outogings, of entities");
+    parser.accepts(PROFILE, "The preset of the settings below, either DEFAULT or BULK")
+          .withRequiredArg().ofType(Profile.class).defaultsTo(Profile.DEFAULT);
+    parser.accepts(COMMIT, "Commit documents by batch of X, 0 to disable (default: " + Indexing.COMMIT + ")")
+          .withRequiredArg().ofType(Integer.class);
+    parser.accepts(COMMIT_INTERVAL, "Commit every X seconds, 0 to disable (default: 0)")
+          .withRequiredArg().ofType(Integer.class);
+    parser.accepts(COMMIT_BYTES, "Commit every X MB of raw triples, 0 to disable (default: 0)")
+          .withRequiredArg().ofType(Integer.class);
+    parser.accepts(RAM_BUFFER, "The size in MB of the buffer of the index writer (default: " + Indexing.RAM_BUFFER + ")")
+          .withRequiredArg().ofType(Double.class);
+    parser.accepts(MERGE_FACTOR, "The number of segments merged at once (default: " + Indexing.MERGE_FACTOR + ")")
+          .withRequiredArg().ofType(Integer.class);
+    parser.accepts(MERGE_THREADS, "The maximum number of threads merging segments, 0 for Lucene's default (default: 0)")
+          .withRequiredArg().ofType(Integer.class);
+    parser.accepts(OPTIMIZE, "Optimize the index down to X segments at the end, 0 to disable (default: " + Indexing.OPTIMIZE + ")")
+          .withRequiredArg().ofType(Integer.class);
+    parser.accepts(PROGRESS, "Log the indexing metrics every X seconds, 0 to disable (default: " + Indexing.PROGRESS_INTERVAL + ")")
+          .withRequiredArg().ofType(Integer.class);
+    parser.accepts(STORE, "Store the triples, incomings and outogings, of entities, compressed");
     parser.accepts(SKIP_TO, "Skips over the dumps strictly lower than X, e.g., ED-00010.tar.gz is filtered if 10 < X.")
           .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+    parser.accepts(THREADS, "The number of threads flattening and indexing the entities" +
+                            " (per archive if " + PARALLEL + " is greater than 1)")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(Indexing.THREADS);
+    parser.accepts(PARALLEL, "Index X archives concurrently into temporary shards," +
+                             " merged at the end into the index.")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    parser.accepts(SHARDS, "Partition the entities by a hash of their subject into X shard indexes," +
+                           " described by the manifest " + ShardedIndex.MANIFEST + " in the index directory")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    parser.accepts(RANK_SORT, "Order the documents of the index, or of each shard, by the static rank of" +
+                              " the entities, once indexed. Needed by the early termination of the searches.");
+    parser.accepts(PREFETCH, "Decompress the archives ahead of the indexing into X buffers, 0 to disable.")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(Indexing.PREFETCH_BUFFERS);
+    parser.accepts(PREFETCH_SIZE, "The size in KB of a read-ahead buffer")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(Indexing.PREFETCH_BUFFER_SIZE / 1024);
+    parser.accepts(RESUME, "Continue the indexing into an existing index, from the entity following" +
+                           " its last commit");
+    parser.accepts(UPDATE, "Index the archives after the last one of an existing index. An entity" +
+                           " already in the index replaces its documents.");
+    parser.accepts(ENTITY_BUDGET, "The maximum size in MB of the triples of an entity: the triples" +
+                                  " of a larger entity are sampled")
+          .withRequiredArg().ofType(Integer.class).defaultsTo((int) (Indexing.ENTITY_BUDGET / 1048576));
+    parser.accepts(MAX_VALUES, "The maximum number of values of a predicate in an entity: the" +
+                               " following ones are dropped")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(TupleTable.MAX_VALUES);
+    parser.accepts(DICTIONARY, "The maximum number of URIs shared by the entities as int ids")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(TermDictionary.MAX_TERMS);
+    parser.accepts(DICTIONARY_FREQ, "The number of occurrences of a URI before it is added to the dictionary")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(TermDictionary.MIN_FREQUENCY);
+    parser.accepts(LOCALNAME_CACHE, "The maximum number of URIs whose tokens are cached by the analyzer, 0 to disable")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(LocalnameCache.MAX_ENTRIES);
+    parser.accepts(FILTER_PROFILE, "A properties file with the predicates, values and literals indexed," +
+                                   " see FilterProfile. Everything is indexed by default.")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts(DEDUP, "Merge the parts of an entity indexed separately, e.g., split across archives. The" +
+                          " value is the expected number of entities, which sizes the filter of the subjects." +
+                          " Requires --store.")
+          .withRequiredArg().ofType(Long.class);
+    parser.accepts(DIRECTORY, "The implementation of the index directory: FS, MMAP, NIO or SIMPLE")
+          .withRequiredArg().ofType(DirectoryType.class).defaultsTo(Indexing.DIRECTORY);
+    parser.accepts(HEAP_BUDGET, "The size in MB of the entities read but not yet indexed: the reading waits" +
+                                " while it is exceeded. The buffer of the index writer is not included." +
+                                " 0 to disable.")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+    parser.accepts(ENTITY_RETAINED, "The size in KB of the buffers an entity keeps between two entities;" +
+                                    " the larger ones are released (default: " + Entity.RETAINED / 1024 + ")")
+          .withRequiredArg().ofType(Integer.class);
+  }
+  
+  /**
+   * Set the defaults of the profile
+   */
+  private static void applyProfile(final Profile profile) {
+    switch (profile) {
+      case BULK:
+        Indexing.COMMIT = 0;
+        Indexing.COMMIT_INTERVAL = 15 * 60;
+        Indexing.RAM_BUFFER = 512;
+        Indexing.MERGE_FACTOR = 30;
+        Indexing.MERGE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        Indexing.OPTIMIZE = 0;
+        break;
+      case DEFAULT:
+        break;
+      default:
+        throw new IllegalArgumentException("No such profile: " + profile);
+    }
   }
   
   private void printError(final String opt)
@@ -91,8 +209,68 @@ public class IndexingCLI {
     }
     
     Indexing.STORE = opts.has(STORE);
-    Indexing.COMMIT = (Integer) opts.valueOf(COMMIT);
+    applyProfile((Profile) opts.valueOf(PROFILE));
+    if (opts.has(COMMIT)) {
+      Indexing.COMMIT = (Integer) opts.valueOf(COMMIT);
+    }
+    if (opts.has(COMMIT_INTERVAL)) {
+      Indexing.COMMIT_INTERVAL = (Integer) opts.valueOf(COMMIT_INTERVAL);
+    }
+    if (opts.has(COMMIT_BYTES)) {
+      Indexing.COMMIT_BYTES = (Integer) opts.valueOf(COMMIT_BYTES) * 1048576L;
+    }
+    if (opts.has(RAM_BUFFER)) {
+      Indexing.RAM_BUFFER = (Double) opts.valueOf(RAM_BUFFER);
+    }
+    if (opts.has(MERGE_FACTOR)) {
+      Indexing.MERGE_FACTOR = (Integer) opts.valueOf(MERGE_FACTOR);
+    }
+    if (opts.has(MERGE_THREADS)) {
+      Indexing.MERGE_THREADS = (Integer) opts.valueOf(MERGE_THREADS);
+    }
+    if (opts.has(OPTIMIZE)) {
+      Indexing.OPTIMIZE = (Integer) opts.valueOf(OPTIMIZE);
+    }
+    if (opts.has(PROGRESS)) {
+      Indexing.PROGRESS_INTERVAL = (Integer) opts.valueOf(PROGRESS);
+    }
     Indexing.SKIP_TO = (Integer) opts.valueOf(SKIP_TO);
+    Indexing.THREADS = (Integer) opts.valueOf(THREADS);
+    if (Indexing.THREADS < 1) {
+      throw new IllegalArgumentException("The number of threads must be positive: " + Indexing.THREADS);
+    }
+    Indexing.RESUME = opts.has(RESUME);
+    Indexing.UPDATE = opts.has(UPDATE);
+    Indexing.PREFETCH_BUFFERS = (Integer) opts.valueOf(PREFETCH);
+    Indexing.PREFETCH_BUFFER_SIZE = (Integer) opts.valueOf(PREFETCH_SIZE) * 1024;
+    Indexing.ENTITY_BUDGET = (Integer) opts.valueOf(ENTITY_BUDGET) * 1048576L;
+    TupleTable.MAX_VALUES = (Integer) opts.valueOf(MAX_VALUES);
+    if (Indexing.ENTITY_BUDGET < 1 || TupleTable.MAX_VALUES < 1) {
+      throw new IllegalArgumentException("The entity budget and the number of values must be positive: " +
+                                         opts.valueOf(ENTITY_BUDGET) + " MB, " + TupleTable.MAX_VALUES);
+    }
+    TermDictionary.MAX_TERMS = (Integer) opts.valueOf(DICTIONARY);
+    TermDictionary.MIN_FREQUENCY = (Integer) opts.valueOf(DICTIONARY_FREQ);
+    LocalnameCache.MAX_ENTRIES = (Integer) opts.valueOf(LOCALNAME_CACHE);
+    if (LocalnameCache.MAX_ENTRIES < 0) {
+      throw new IllegalArgumentException("The size of the localname cache cannot be negative: " + LocalnameCache.MAX_ENTRIES);
+    }
+    Indexing.DEDUP = opts.has(DEDUP) ? (Long) opts.valueOf(DEDUP) : 0;
+    if (Indexing.DEDUP < 0 || (Indexing.DEDUP > 0 && !Indexing.STORE)) {
+      throw new IllegalArgumentException("The deduplication needs a positive number of entities and --store: " +
+                                         Indexing.DEDUP);
+    }
+    Indexing.DIRECTORY = (DirectoryType) opts.valueOf(DIRECTORY);
+    HeapGovernor.BUDGET = (Integer) opts.valueOf(HEAP_BUDGET) * 1048576L;
+    if (opts.has(ENTITY_RETAINED)) {
+      Entity.RETAINED = (Integer) opts.valueOf(ENTITY_RETAINED) * 1024;
+    }
+    if (HeapGovernor.BUDGET < 0 || Entity.RETAINED < 0) {
+      throw new IllegalArgumentException("The heap budget and the retained size cannot be negative: " +
+                                         opts.valueOf(HEAP_BUDGET) + " MB, " + Entity.RETAINED / 1024 + " KB");
+    }
+    Indexing.FILTER = opts.has(FILTER_PROFILE) ? FilterProfile.load((File) opts.valueOf(FILTER_PROFILE))
+                                               : FilterProfile.NONE;
     
     // FORMAT
     if (opts.has(FORMAT)) {
@@ -113,22 +291,92 @@ public class IndexingCLI {
       printError(INDEX_DIR);
     
     logger.info("Creating index at {} from the files at {}", indexDir.getAbsolutePath(), dumpsDir.getAbsolutePath());
-    final Indexing indexing;
-    switch (format) {
-      case SINDICE_DE:
-        indexing = new SindiceDEIndexing(dumpsDir, FSDirectory.open(indexDir));
-        break;
-      case SINDICE_ED:
-        indexing = new SindiceEDIndexing(dumpsDir, FSDirectory.open(indexDir));
-        break;
-      default:
-        throw new IllegalArgumentException("No such dataset format: " + format);
+    final int parallel = (Integer) opts.valueOf(PARALLEL);
+    final int shards = (Integer) opts.valueOf(SHARDS);
+    if (shards < 1) {
+      throw new IllegalArgumentException("The number of shards must be positive: " + shards);
+    }
+    if (shards > 1 && (parallel > 1 || Indexing.RESUME || Indexing.UPDATE)) {
+      throw new IllegalArgumentException("Cannot resume, update or index archives in parallel with " + SHARDS +
+                                         " greater than 1");
+    }
+    final boolean rankSort = opts.has(RANK_SORT);
+    if (rankSort && (Indexing.RESUME || Indexing.UPDATE)) {
+      throw new IllegalArgumentException("Cannot resume or update an index with " + RANK_SORT);
+    }
+    // a sorted index is written from a temporary unsorted one
+    final File target = rankSort ? new File(indexDir.getAbsolutePath() + ".unsorted") : indexDir;
+    if (parallel > 1) {
+      if (Indexing.RESUME || Indexing.UPDATE) {
+        throw new IllegalArgumentException("Cannot resume or update an index with " + PARALLEL + " greater than 1");
+      }
+      new ParallelIndexing(format, dumpsDir, target, parallel).indexIt();
+    } else {
+      final Directory[] dirs = shards > 1 ? ShardedIndex.create(target, shards)
+                                          : new Directory[] { Indexing.DIRECTORY.open(target) };
+      final Indexing indexing;
+      switch (format) {
+        case SINDICE_DE:
+          indexing = new SindiceDEIndexing(dumpsDir, dirs);
+          break;
+        case SINDICE_ED:
+          indexing = new SindiceEDIndexing(dumpsDir, dirs);
+          break;
+        default:
+          throw new IllegalArgumentException("No such dataset format: " + format);
+      }
+      indexing.indexIt();
+      indexing.close();
+    }
+    if (rankSort) {
+      logger.info("Sorting the index by static rank into {}", indexDir.getAbsolutePath());
+      if (shards > 1) {
+        final Directory[] dirs = ShardedIndex.create(indexDir, shards);
+        for (int i = 0; i < shards; i++) {
+          sort(ShardedIndex.getShardDir(target, i), dirs[i]);
+        }
+      } else {
+        sort(target, Indexing.DIRECTORY.open(indexDir));
+      }
+      delete(target);
+    }
+    if (shards > 1) {
+      ShardedIndex.writeManifest(indexDir, format, shards);
     }
-    indexing.indexIt();
-    indexing.close();
     logger.info("Finished indexing");
   }
   
+  /**
+   * Sort the index at from into to, and close to
+   */
+  private static void sort(final File from, final Directory to)
+  throws IOException {
+    final Directory dir = Indexing.DIRECTORY.open(from);
+    try {
+      RankSorter.sort(dir, to);
+    } finally {
+      dir.close();
+      to.close();
+    }
+  }
+
+  /**
+   * Delete the folder and its content
+   */
+  private static void delete(final File dir) {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isDirectory()) {
+          delete(f);
+        } else {
+          f.delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+  
   public static void main(String[] args)
   throws IOException {
     final IndexingCLI cli = new IndexingCLI();
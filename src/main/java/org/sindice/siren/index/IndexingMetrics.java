@@ -0,0 +1,315 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 8 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.lucene.index.IndexWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of each stage of an indexing run, from the compressed archives to
+ * the index writer. They are exposed through JMX, and logged periodically
+ * with an estimate of the time left, so that it is clear whether a run is
+ * bound by I/O, parsing or Lucene.
+ */
+public class IndexingMetrics implements IndexingMetricsMBean {
+
+  private static final Logger     logger           = LoggerFactory.getLogger(IndexingMetrics.class);
+
+  /* Number of buckets of the entity size histogram, from 1KB to 64MB */
+  private static final int        BUCKETS          = 18;
+
+  final AtomicLong                compressedBytes  = new AtomicLong();
+  final AtomicLong                decompressedBytes = new AtomicLong();
+  final AtomicLong                tarEntries       = new AtomicLong();
+  final AtomicLong                triples          = new AtomicLong();
+  final AtomicLong                entities         = new AtomicLong();
+  final AtomicLong                merged           = new AtomicLong();
+  /* The governor of the entities in flight, null if disabled */
+  HeapGovernor                    governor         = null;
+  private final AtomicLongArray   entitySizes      = new AtomicLongArray(BUCKETS);
+  private final AtomicLong        addTime          = new AtomicLong();
+  private final AtomicLong        addMax           = new AtomicLong();
+  private final AtomicLong        commits          = new AtomicLong();
+  private final AtomicLong        commitTime       = new AtomicLong();
+
+  private final long              totalCompressedBytes;
+  private final IndexWriter[]     writers;
+  private final long              start            = System.nanoTime();
+
+  private ObjectName              name             = null;
+  private ScheduledExecutorService progress        = null;
+
+  /**
+   * @param input the archives of the run
+   * @param writers the writers of the run, one per shard
+   */
+  public IndexingMetrics(final File[] input, final IndexWriter... writers) {
+    long total = 0;
+    for (File archive : input) {
+      total += archive.length();
+    }
+    this.totalCompressedBytes = total;
+    this.writers = writers;
+  }
+
+  /**
+   * Record the size of the raw triples of an entity
+   */
+  void entitySize(final long bytes) {
+    int bucket = 0;
+    while (bucket < BUCKETS - 1 && bytes >= 1L << (bucket + 10)) {
+      bucket++;
+    }
+    entitySizes.incrementAndGet(bucket);
+  }
+
+  /**
+   * Record the time taken to add a document
+   */
+  void addDocument(final long nanos) {
+    addTime.addAndGet(nanos);
+    long max;
+    while (nanos > (max = addMax.get()) && !addMax.compareAndSet(max, nanos)) {
+      // retry
+    }
+  }
+
+  /**
+   * Record the time taken by a commit
+   */
+  void commit(final long nanos) {
+    commits.incrementAndGet();
+    commitTime.addAndGet(nanos);
+  }
+
+  /**
+   * Register the metrics as an MBean, and log them every interval seconds
+   * @param id identifies the run in the name of the MBean
+   * @param interval 0 disables the log
+   */
+  void start(final String id, final int interval) {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      name = new ObjectName("org.sindice.siren.index:type=Indexing,name=" + ObjectName.quote(id));
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      logger.warn("Could not register the metrics of {}: {}", id, e);
+      name = null;
+    }
+    if (interval > 0) {
+      progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread thread = new Thread(r, "progress-" + id);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      progress.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          log();
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Stop the periodic log, log the final metrics and unregister the MBean
+   */
+  void stop() {
+    if (progress != null) {
+      progress.shutdownNow();
+      progress = null;
+    }
+    log();
+    if (name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (JMException e) {
+        logger.warn("Could not unregister {}: {}", name, e);
+      }
+      name = null;
+    }
+  }
+
+  /**
+   * Log the metrics as key=value pairs
+   */
+  void log() {
+    logger.info(String.format("progress entities=%d entities/s=%.1f triples/s=%.1f entries/s=%.1f " +
+        "compressed_mb=%.1f/%.1f decompressed_mb=%.1f add_ms_avg=%.3f add_ms_max=%.1f commits=%d " +
+        "commit_ms_avg=%.1f ram_mb=%.1f eta_s=%d",
+      getEntities(), getEntitiesPerSecond(), getTriplesPerSecond(), getTarEntriesPerSecond(),
+      getCompressedBytes() / 1048576d, getTotalCompressedBytes() / 1048576d, getDecompressedBytes() / 1048576d,
+      getAverageAddDocumentMillis(), getMaxAddDocumentMillis(), getCommits(), getAverageCommitMillis(),
+      getWriterRamBytes() / 1048576d, getEtaSeconds()));
+  }
+
+  private double perSecond(final long count) {
+    final long elapsed = System.nanoTime() - start;
+    return elapsed == 0 ? 0 : count * 1e9 / elapsed;
+  }
+
+  @Override
+  public long getCompressedBytes() {
+    return compressedBytes.get();
+  }
+
+  @Override
+  public long getTotalCompressedBytes() {
+    return totalCompressedBytes;
+  }
+
+  @Override
+  public long getDecompressedBytes() {
+    return decompressedBytes.get();
+  }
+
+  @Override
+  public long getTarEntries() {
+    return tarEntries.get();
+  }
+
+  @Override
+  public long getTriples() {
+    return triples.get();
+  }
+
+  @Override
+  public long getEntities() {
+    return entities.get();
+  }
+
+  @Override
+  public double getEntitiesPerSecond() {
+    return perSecond(entities.get());
+  }
+
+  @Override
+  public double getTriplesPerSecond() {
+    return perSecond(triples.get());
+  }
+
+  @Override
+  public double getTarEntriesPerSecond() {
+    return perSecond(tarEntries.get());
+  }
+
+  @Override
+  public long[] getEntitySizeHistogram() {
+    final long[] histogram = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram[i] = entitySizes.get(i);
+    }
+    return histogram;
+  }
+
+  @Override
+  public double getAverageAddDocumentMillis() {
+    final long n = entities.get();
+    return n == 0 ? 0 : addTime.get() / 1e6 / n;
+  }
+
+  @Override
+  public double getMaxAddDocumentMillis() {
+    return addMax.get() / 1e6;
+  }
+
+  @Override
+  public long getCommits() {
+    return commits.get();
+  }
+
+  @Override
+  public double getAverageCommitMillis() {
+    final long n = commits.get();
+    return n == 0 ? 0 : commitTime.get() / 1e6 / n;
+  }
+
+  @Override
+  public long getWriterRamBytes() {
+    long bytes = 0;
+    for (IndexWriter writer : writers) {
+      bytes += writer.ramSizeInBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public long getLocalnameCacheHits() {
+    return LocalnameCache.MAX_ENTRIES > 0 ? LocalnameCache.getInstance().getHits() : 0;
+  }
+
+  @Override
+  public long getLocalnameCacheMisses() {
+    return LocalnameCache.MAX_ENTRIES > 0 ? LocalnameCache.getInstance().getMisses() : 0;
+  }
+
+  @Override
+  public long getLocalnameCacheEvictions() {
+    return LocalnameCache.MAX_ENTRIES > 0 ? LocalnameCache.getInstance().getEvictions() : 0;
+  }
+
+  @Override
+  public long getMergedEntities() {
+    return merged.get();
+  }
+
+  @Override
+  public long getHeldBytes() {
+    return governor == null ? 0 : governor.getHeld();
+  }
+
+  @Override
+  public long getHeapBudgetWaits() {
+    return governor == null ? 0 : governor.getWaits();
+  }
+
+  @Override
+  public long getEtaSeconds() {
+    final long read = compressedBytes.get();
+    if (read == 0) {
+      return -1;
+    }
+    final double elapsed = (System.nanoTime() - start) / 1e9;
+    return Math.max(0, (long) (elapsed * (totalCompressedBytes - read) / read));
+  }
+
+}
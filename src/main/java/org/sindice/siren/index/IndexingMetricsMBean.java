@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 8 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+/**
+ * The metrics of an indexing run exposed through JMX, see
+ * {@link IndexingMetrics}.
+ */
+public interface IndexingMetricsMBean {
+
+  /** Bytes read from the compressed archives */
+  long getCompressedBytes();
+
+  /** Total size of the compressed archives of the input */
+  long getTotalCompressedBytes();
+
+  /** Bytes of tar content decompressed */
+  long getDecompressedBytes();
+
+  long getTarEntries();
+
+  long getTriples();
+
+  long getEntities();
+
+  double getEntitiesPerSecond();
+
+  double getTriplesPerSecond();
+
+  double getTarEntriesPerSecond();
+
+  /**
+   * Number of entities per size of their raw triples: the bucket i counts the
+   * entities of less than 2^(i + 10) bytes, the last one the larger ones.
+   */
+  long[] getEntitySizeHistogram();
+
+  double getAverageAddDocumentMillis();
+
+  double getMaxAddDocumentMillis();
+
+  long getCommits();
+
+  double getAverageCommitMillis();
+
+  /** Memory used by the index writer buffer */
+  long getWriterRamBytes();
+
+  /** Lookups of URIs found in the localname cache, see {@link LocalnameCache} */
+  long getLocalnameCacheHits();
+
+  long getLocalnameCacheMisses();
+
+  long getLocalnameCacheEvictions();
+
+  /** Entities merged with a document of the index, see {@link EntityDeduplicator} */
+  long getMergedEntities();
+
+  /** Bytes of the entities in flight, see {@link HeapGovernor} */
+  long getHeldBytes();
+
+  /** Number of times the reading stage waited for the heap budget */
+  long getHeapBudgetWaits();
+
+  /** Estimated time left in seconds, from the position in the compressed input */
+  long getEtaSeconds();
+
+}
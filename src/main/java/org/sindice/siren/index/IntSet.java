@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 1 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A set of ints which keeps the order of insertion. Each key is given the
+ * index at which it was inserted, from 0 to {@link #size()} - 1. The arrays
+ * are kept across calls to {@link #clear()} so that the set can be reused.
+ */
+public class IntSet {
+
+  /* the keys, in the order of insertion */
+  private int[] keys;
+  private int   size = 0;
+  /* open addressing table: the index of a key plus one, 0 if the slot is empty */
+  private int[] table;
+  private int   mask;
+
+  public IntSet() {
+    this(8);
+  }
+
+  public IntSet(final int capacity) {
+    keys = new int[capacity];
+    table = new int[tableSize(capacity)];
+    mask = table.length - 1;
+  }
+
+  private static int tableSize(final int capacity) {
+    int size = 16;
+    while (size < capacity * 2) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  private static int hash(final int key) {
+    final int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Add the key to the set if it is not already in it.
+   * @return the index of the key
+   */
+  public int add(final int key) {
+    int slot = hash(key) & mask;
+    for (int index; (index = table[slot]) != 0; slot = (slot + 1) & mask) {
+      if (keys[index - 1] == key) {
+        return index - 1;
+      }
+    }
+    if (size == keys.length) {
+      keys = ArrayUtil.grow(keys, size + 1);
+    }
+    keys[size++] = key;
+    if (size * 2 > table.length) {
+      rehash();
+    } else {
+      table[slot] = size;
+    }
+    return size - 1;
+  }
+
+  /**
+   * @return the index of the key, or -1 if it is not in the set
+   */
+  public int indexOf(final int key) {
+    int slot = hash(key) & mask;
+    for (int index; (index = table[slot]) != 0; slot = (slot + 1) & mask) {
+      if (keys[index - 1] == key) {
+        return index - 1;
+      }
+    }
+    return -1;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    mask = table.length - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(keys[i]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = i + 1;
+    }
+  }
+
+  /**
+   * The key inserted at the given index
+   */
+  public int get(final int index) {
+    return keys[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    if (size != 0) {
+      Arrays.fill(table, 0);
+      size = 0;
+    }
+  }
+
+  /**
+   * Clear the set, and release its arrays if they hold more than capacity
+   * keys
+   */
+  public void trim(final int capacity) {
+    if (keys.length > capacity) {
+      keys = new int[capacity];
+      table = new int[tableSize(capacity)];
+      mask = table.length - 1;
+      size = 0;
+    } else {
+      clear();
+    }
+  }
+
+  /**
+   * The memory held by the arrays, in bytes
+   */
+  public long ramBytesUsed() {
+    return (keys.length + table.length) * (long) RamUsageEstimator.NUM_BYTES_INT;
+  }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 1 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * The terms of an entity that are not in the {@link TermDictionary}, i.e.,
+ * literals, blank nodes, and infrequent URIs. Each distinct term is stored
+ * once and is given the index at which it was added.
+ */
+public class LocalTerms {
+
+  private String[] terms = new String[16];
+  private int      size  = 0;
+  /* open addressing table: the index of a term plus one, 0 if the slot is empty */
+  private int[]    table = new int[32];
+
+  /**
+   * Add the term if it is not already in it.
+   * @return the index of the term
+   */
+  public int add(final String term) {
+    int slot = term.hashCode() & (table.length - 1);
+    for (int index; (index = table[slot]) != 0; slot = (slot + 1) & (table.length - 1)) {
+      if (terms[index - 1].equals(term)) {
+        return index - 1;
+      }
+    }
+    if (size == terms.length) {
+      final String[] newTerms = new String[ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
+      System.arraycopy(terms, 0, newTerms, 0, size);
+      terms = newTerms;
+    }
+    terms[size++] = term;
+    if (size * 2 > table.length) {
+      rehash();
+    } else {
+      table[slot] = size;
+    }
+    return size - 1;
+  }
+
+  /**
+   * @return the index of the term, or -1 if it is not there
+   */
+  public int indexOf(final String term) {
+    int slot = term.hashCode() & (table.length - 1);
+    for (int index; (index = table[slot]) != 0; slot = (slot + 1) & (table.length - 1)) {
+      if (terms[index - 1].equals(term)) {
+        return index - 1;
+      }
+    }
+    return -1;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    for (int i = 0; i < size; i++) {
+      int slot = terms[i].hashCode() & (table.length - 1);
+      while (table[slot] != 0) {
+        slot = (slot + 1) & (table.length - 1);
+      }
+      table[slot] = i + 1;
+    }
+  }
+
+  public String get(final int index) {
+    return terms[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    if (size != 0) {
+      Arrays.fill(terms, 0, size, null);
+      Arrays.fill(table, 0);
+      size = 0;
+    }
+  }
+
+  /**
+   * Clear the terms, and release the arrays if they hold more than capacity
+   * terms
+   */
+  public void trim(final int capacity) {
+    if (terms.length > capacity) {
+      terms = new String[capacity];
+      int tableSize = 32;
+      while (tableSize < capacity * 2) {
+        tableSize <<= 1;
+      }
+      table = new int[tableSize];
+      size = 0;
+    } else {
+      clear();
+    }
+  }
+
+  /**
+   * The memory held by the arrays and the terms, in bytes
+   */
+  public long ramBytesUsed() {
+    long bytes = terms.length * (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF +
+                 table.length * (long) RamUsageEstimator.NUM_BYTES_INT;
+    for (int i = 0; i < size; i++) {
+      bytes += RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + terms[i].length() * (long) RamUsageEstimator.NUM_BYTES_CHAR;
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 22 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of the tokens of the URIs of the tuples, as split by the
+ * localname normalisation of the analyzer, see {@link CachedTupleAnalyzer}.
+ * The predicates and the common classes and objects are then split once,
+ * instead of once per occurrence.<br>
+ * A URI is looked up on the chars of the token, without creating a string.
+ * The cache is a table of buckets of {@link #WAYS} URIs; a bucket evicts the
+ * first URI not used since the last eviction, i.e., the second chance
+ * approximation of the least recently used one. Lookups and additions are
+ * lock-free: an addition may be lost under contention, which costs a miss.
+ * The hits, misses and evictions are counted to size the cache.
+ */
+public class LocalnameCache {
+
+  /* Maximum number of URIs in the cache, rounded up to a power of 2, 0 to disable it */
+  public static int                          MAX_ENTRIES = 1 << 16;
+
+  /* Number of URIs per bucket */
+  private static final int                   WAYS        = 4;
+
+  private static LocalnameCache              instance    = null;
+
+  private final AtomicReferenceArray<Entry>  table;
+  /* the mask of the buckets */
+  private final int                          mask;
+
+  private final AtomicLong                   hits        = new AtomicLong();
+  private final AtomicLong                   misses      = new AtomicLong();
+  private final AtomicLong                   evictions   = new AtomicLong();
+
+  /**
+   * A URI and its tokens, in order, lowercased. A token with an increment
+   * equal to {@link #INHERIT} keeps the position increment of the previous
+   * one. A token is either kept, or removed as a stop word or for its length.
+   */
+  static class Entry {
+
+    static final int  INHERIT = -1;
+
+    static final byte KEEP    = 0;
+    static final byte STOP    = 1;
+    static final byte LENGTH  = 2;
+
+    final char[]      uri;
+    final int         hash;
+    final char[][]    terms;
+    final String[]    types;
+    final int[]       increments;
+    final byte[]      kinds;
+    /* true if used since the last eviction in the bucket */
+    boolean           referenced = false;
+
+    Entry(final char[] uri, final int hash, final char[][] terms, final String[] types, final int[] increments,
+          final byte[] kinds) {
+      this.uri = uri;
+      this.hash = hash;
+      this.terms = terms;
+      this.types = types;
+      this.increments = increments;
+      this.kinds = kinds;
+    }
+
+  }
+
+  /**
+   * The cache shared by the analyzers, created with {@link #MAX_ENTRIES} on
+   * the first call.
+   */
+  public static synchronized LocalnameCache getInstance() {
+    if (instance == null) {
+      instance = new LocalnameCache(MAX_ENTRIES);
+    }
+    return instance;
+  }
+
+  public LocalnameCache(final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("Invalid localname cache: " + maxEntries + " URIs");
+    }
+    int buckets = 1;
+    while (buckets * WAYS < maxEntries) {
+      buckets <<= 1;
+    }
+    this.table = new AtomicReferenceArray<Entry>(buckets * WAYS);
+    this.mask = buckets - 1;
+  }
+
+  static int hash(final char[] chars, final int length) {
+    int h = 0;
+    for (int i = 0; i < length; i++) {
+      h = 31 * h + chars[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * The entry of the URI in chars[0, length[, or null if it is not in the
+   * cache
+   */
+  Entry get(final char[] chars, final int length, final int hash) {
+    final int bucket = (hash & mask) * WAYS;
+    for (int i = bucket; i < bucket + WAYS; i++) {
+      final Entry e = table.get(i);
+      if (e != null && e.hash == hash && equals(e.uri, chars, length)) {
+        e.referenced = true;
+        return e;
+      }
+    }
+    return null;
+  }
+
+  private static boolean equals(final char[] uri, final char[] chars, final int length) {
+    if (uri.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (uri[i] != chars[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add the entry to its bucket, in place of a free slot or of the first
+   * entry not referenced
+   */
+  void put(final Entry entry) {
+    final int bucket = (entry.hash & mask) * WAYS;
+    for (int i = bucket; i < bucket + WAYS; i++) {
+      if (table.get(i) == null && table.compareAndSet(i, null, entry)) {
+        return;
+      }
+    }
+    // second chance: the referenced entries are spared once
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = bucket; i < bucket + WAYS; i++) {
+        final Entry e = table.get(i);
+        if (e != null && e.referenced) {
+          e.referenced = false;
+        } else if (table.compareAndSet(i, e, entry)) {
+          if (e != null) {
+            evictions.incrementAndGet();
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Add the lookups counted by an analyzer
+   */
+  void count(final long hits, final long misses) {
+    this.hits.addAndGet(hits);
+    this.misses.addAndGet(misses);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * The number of URIs in the cache
+   */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < table.length(); i++) {
+      if (table.get(i) != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+}
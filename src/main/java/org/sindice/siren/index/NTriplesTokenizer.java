@@ -0,0 +1,465 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 22 Jun 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+/**
+ * Scans N-Triples in their UTF-8 encoded form, one triple at a time. The
+ * subject, predicate and object of the current triple are exposed as spans
+ * over the bytes, and are only decoded into strings on demand.<br>
+ * The terms are decoded in the form used in the tuples, i.e., URIs between
+ * angle brackets and literals as quoted strings with their language or
+ * datatype. A malformed line is skipped, and the scan resumes at the next
+ * line.
+ */
+public class NTriplesTokenizer {
+
+  /* The terms of a triple, see #start(int) */
+  public static final int SUBJECT   = 0;
+  public static final int PREDICATE = 1;
+  public static final int OBJECT    = 2;
+
+  private byte[]  bytes;
+  private int     pos;
+  private int     end;
+  /* Number of malformed lines skipped since the last reset */
+  private int     errors;
+  /* Maximum number of bytes of the label of a literal object, 0 if not limited */
+  private int     maxLiteralLength = 0;
+
+  /* spans of the current triple: [start, end[ */
+  private int     sStart, sEnd;
+  private int     pStart, pEnd;
+  private int     oStart, oEnd;
+  /* true if the span contains an escape sequence */
+  private boolean sEscaped, pEscaped, oEscaped;
+  /* the closing quote of a literal object */
+  private int     oLabelEnd;
+
+  /* the end position and escape flag of the last scanned term */
+  private int     termEnd;
+  private boolean termEscaped;
+  /* the closing quote of the last scanned literal */
+  private int     labelEnd;
+
+  private final StringBuilder sb = new StringBuilder();
+  private final UTF8Decoder   decoder = new UTF8Decoder();
+
+  /**
+   * Scan the N-Triples in bytes, from offset to offset + length.
+   */
+  public void reset(final byte[] bytes, final int offset, final int length) {
+    this.bytes = bytes;
+    this.pos = offset;
+    this.end = offset + length;
+    this.errors = 0;
+  }
+
+  /**
+   * Move to the next well-formed triple.
+   * @return false if there are no more triples
+   */
+  public boolean next() {
+    while (pos < end) {
+      skipWhitespaces();
+      if (pos >= end) {
+        return false;
+      }
+      final byte c = bytes[pos];
+      if (c == '\n' || c == '\r') { // empty line
+        pos++;
+      } else if (c == '#') { // comment
+        skipLine();
+      } else if (parseTriple()) {
+        return true;
+      } else {
+        errors++;
+        skipLine();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Truncate the label of the literal objects to their first maxLength bytes,
+   * without splitting a character nor an escape sequence. The bytes dropped
+   * are not decoded.
+   * @param maxLength the maximum number of bytes, 0 if not limited
+   */
+  public void setMaxLiteralLength(final int maxLength) {
+    this.maxLiteralLength = maxLength;
+  }
+
+  /**
+   * The number of malformed lines skipped since the last reset
+   */
+  public int getErrors() {
+    return errors;
+  }
+
+  private boolean parseTriple() {
+    // subject
+    if (!parseResource()) {
+      return false;
+    }
+    sStart = pos;
+    sEnd = termEnd;
+    sEscaped = termEscaped;
+    pos = termEnd;
+    skipWhitespaces();
+    // predicate
+    if (pos >= end || bytes[pos] != '<' || !parseURI()) {
+      return false;
+    }
+    pStart = pos;
+    pEnd = termEnd;
+    pEscaped = termEscaped;
+    pos = termEnd;
+    skipWhitespaces();
+    // object
+    if (pos >= end) {
+      return false;
+    }
+    if (bytes[pos] == '"') {
+      if (!parseLiteral()) {
+        return false;
+      }
+      oLabelEnd = labelEnd;
+    } else if (!parseResource()) {
+      return false;
+    }
+    oStart = pos;
+    oEnd = termEnd;
+    oEscaped = termEscaped;
+    pos = termEnd;
+    skipWhitespaces();
+    // end of statement
+    if (pos >= end || bytes[pos] != '.') {
+      return false;
+    }
+    pos++;
+    skipWhitespaces();
+    if (pos < end && bytes[pos] != '\n' && bytes[pos] != '\r') {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Scan a URI or a blank node starting at pos
+   */
+  private boolean parseResource() {
+    if (pos >= end) {
+      return false;
+    }
+    if (bytes[pos] == '<') {
+      return parseURI();
+    }
+    if (bytes[pos] == '_' && pos + 1 < end && bytes[pos + 1] == ':') {
+      return parseBNode();
+    }
+    return false;
+  }
+
+  private boolean parseURI() {
+    termEscaped = false;
+    for (int i = pos + 1; i < end; i++) {
+      switch (bytes[i]) {
+        case '>':
+          termEnd = i + 1;
+          return true;
+        case '\\':
+          termEscaped = true;
+          break;
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+          return false;
+      }
+    }
+    return false;
+  }
+
+  private boolean parseBNode() {
+    termEscaped = false;
+    int i = pos + 2;
+    while (i < end && !isDelimiter(bytes[i])) {
+      i++;
+    }
+    termEnd = i;
+    return i > pos + 2;
+  }
+
+  private boolean parseLiteral() {
+    termEscaped = false;
+    int i = pos + 1;
+    // label
+    for (;; i++) {
+      if (i >= end || bytes[i] == '\n' || bytes[i] == '\r') {
+        return false;
+      }
+      if (bytes[i] == '\\') {
+        termEscaped = true;
+        i++;
+      } else if (bytes[i] == '"') {
+        labelEnd = i++;
+        break;
+      }
+    }
+    termEnd = i;
+    if (i < end && bytes[i] == '@') { // language
+      i++;
+      while (i < end && (isLetterOrDigit(bytes[i]) || bytes[i] == '-')) {
+        i++;
+      }
+      termEnd = i;
+    } else if (i + 1 < end && bytes[i] == '^' && bytes[i + 1] == '^') { // datatype
+      final boolean escaped = termEscaped;
+      final int start = pos;
+      pos = i + 2;
+      final boolean valid = pos < end && bytes[pos] == '<' && parseURI();
+      pos = start;
+      termEscaped |= escaped;
+      return valid;
+    }
+    return true;
+  }
+
+  private void skipWhitespaces() {
+    while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t')) {
+      pos++;
+    }
+  }
+
+  private void skipLine() {
+    while (pos < end && bytes[pos] != '\n') {
+      pos++;
+    }
+    if (pos < end) {
+      pos++;
+    }
+  }
+
+  private static boolean isDelimiter(final byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  private static boolean isLetterOrDigit(final byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+  }
+
+  /**
+   * Returns true if the predicate of the current triple is equal to the UTF-8
+   * encoded term, including its angle brackets.
+   */
+  public boolean isPredicate(final byte[] term) {
+    if (pEnd - pStart != term.length) {
+      return false;
+    }
+    for (int i = 0; i < term.length; i++) {
+      if (bytes[pStart + i] != term[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the predicate of the current triple has the same bytes as
+   * the one of the triple at the given span.
+   */
+  public boolean isPredicate(final int start, final int end) {
+    if (pEnd - pStart != end - start) {
+      return false;
+    }
+    for (int i = 0; i < end - start; i++) {
+      if (bytes[pStart + i] != bytes[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The bytes being scanned
+   */
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  /**
+   * The start of the span of the given term of the current triple
+   * @param term one of {@link #SUBJECT}, {@link #PREDICATE}, {@link #OBJECT}
+   */
+  public int start(final int term) {
+    switch (term) {
+      case SUBJECT:
+        return sStart;
+      case PREDICATE:
+        return pStart;
+      default:
+        return oStart;
+    }
+  }
+
+  /**
+   * The end, exclusive, of the span of the given term of the current triple
+   * @param term one of {@link #SUBJECT}, {@link #PREDICATE}, {@link #OBJECT}
+   */
+  public int end(final int term) {
+    switch (term) {
+      case SUBJECT:
+        return sEnd;
+      case PREDICATE:
+        return pEnd;
+      default:
+        return oEnd;
+    }
+  }
+
+  /**
+   * Returns true if the given term of the current triple is a URI
+   */
+  public boolean isURI(final int term) {
+    return bytes[start(term)] == '<';
+  }
+
+  /**
+   * The given term of the current triple, decoded
+   * @param term one of {@link #SUBJECT}, {@link #PREDICATE}, {@link #OBJECT}
+   */
+  public String term(final int term) {
+    switch (term) {
+      case SUBJECT:
+        return subject();
+      case PREDICATE:
+        return predicate();
+      default:
+        return object();
+    }
+  }
+
+  /**
+   * The subject of the current triple, between angle brackets
+   */
+  public String subject() {
+    if (bytes[sStart] == '_') { // blank node
+      sb.setLength(0);
+      return sb.append('<').append(decode(sStart, sEnd, false)).append('>').toString();
+    }
+    return decode(sStart, sEnd, sEscaped);
+  }
+
+  public String predicate() {
+    return decode(pStart, pEnd, pEscaped);
+  }
+
+  public String object() {
+    if (maxLiteralLength > 0 && bytes[oStart] == '"' && oLabelEnd - oStart - 1 > maxLiteralLength) {
+      return truncatedLiteral();
+    }
+    return decode(oStart, oEnd, oEscaped);
+  }
+
+  /**
+   * The literal object with the first #maxLiteralLength bytes of its label
+   */
+  private String truncatedLiteral() {
+    final int label = oStart + 1;
+    int cut = label + maxLiteralLength;
+    if (oEscaped) { // do not split an escape sequence
+      for (int i = label; i < cut;) {
+        if (bytes[i] != '\\') {
+          i++;
+          continue;
+        }
+        final int length = bytes[i + 1] == 'u' ? 6 : bytes[i + 1] == 'U' ? 10 : 2;
+        if (i + length > cut) {
+          cut = i;
+          break;
+        }
+        i += length;
+      }
+    }
+    while (cut > label && (bytes[cut] & 0xC0) == 0x80) { // nor a UTF-8 character
+      cut--;
+    }
+    final String term = decoder.toString(bytes, oStart, cut - oStart) +
+                        decoder.toString(bytes, oLabelEnd, oEnd - oLabelEnd);
+    return oEscaped ? unescape(term) : term;
+  }
+
+  private String decode(final int start, final int end, final boolean escaped) {
+    final String term = decoder.toString(bytes, start, end - start);
+    return escaped ? unescape(term) : term;
+  }
+
+  /**
+   * Decode the N-Triples escape sequences
+   */
+  private String unescape(final String term) {
+    sb.setLength(0);
+    for (int i = 0; i < term.length(); i++) {
+      final char c = term.charAt(i);
+      if (c != '\\' || i + 1 >= term.length()) {
+        sb.append(c);
+        continue;
+      }
+      final char e = term.charAt(++i);
+      switch (e) {
+        case 't':
+          sb.append('\t');
+          break;
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'u':
+        case 'U':
+          final int digits = e == 'u' ? 4 : 8;
+          if (i + digits < term.length()) {
+            try {
+              sb.appendCodePoint(Integer.parseInt(term.substring(i + 1, i + 1 + digits), 16));
+              i += digits;
+              break;
+            } catch (IllegalArgumentException ex) {
+              // not an escape sequence: keep it as is
+            }
+          }
+          sb.append('\\').append(e);
+          break;
+        default: // \" \' \\
+          sb.append(e);
+      }
+    }
+    return sb.toString();
+  }
+
+}
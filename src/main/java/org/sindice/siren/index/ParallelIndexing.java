@@ -0,0 +1,279 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 20 Jun 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.sindice.siren.index.IndexingCLI.Format;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index several archives concurrently, each one into its own shard index. The
+ * shards are then merged into the target index with
+ * {@link IndexWriter#addIndexes(Directory...)}.<br>
+ * In the Sindice-ED dataset, an entity can be split across two consecutive
+ * archives. The first and last entities of each shard are therefore not
+ * indexed in the shard, but reconciled with the ones of the adjacent archives:
+ * the parts of an entity with a same subject are merged into one document.
+ */
+public class ParallelIndexing {
+
+  private final Logger      logger = LoggerFactory.getLogger(ParallelIndexing.class);
+
+  private final Format      format;
+  private final File[]      input;
+  private final File        indexDir;
+  /* The folder where the shards are written to */
+  private final File        shardsDir;
+  /* Number of archives indexed concurrently */
+  private final int         parallelism;
+
+  /**
+   * @param format the dataset format
+   * @param inputDir the folder with the dumps
+   * @param indexDir the folder of the final index
+   * @param parallelism the number of archives to index concurrently
+   */
+  public ParallelIndexing(final Format format,
+                          final File inputDir,
+                          final File indexDir,
+                          final int parallelism) {
+    this.format = format;
+    this.input = Indexing.listArchives(inputDir, getPattern(format));
+    if (this.input.length == 0) {
+      throw new RuntimeException("No archive files in the folder: " + inputDir.getAbsolutePath());
+    }
+    this.indexDir = indexDir;
+    this.shardsDir = new File(indexDir.getAbsolutePath() + ".shards");
+    this.parallelism = parallelism;
+  }
+
+  private static String getPattern(final Format format) {
+    switch (format) {
+      case SINDICE_DE:
+        return SindiceDEIndexing.PATTERN;
+      case SINDICE_ED:
+        return SindiceEDIndexing.PATTERN;
+      default:
+        throw new IllegalArgumentException("No such dataset format: " + format);
+    }
+  }
+
+  /**
+   * Index the archives into shards and merge them into the target index.
+   * @throws CorruptIndexException
+   * @throws IOException
+   */
+  public void indexIt()
+  throws CorruptIndexException, IOException {
+    logger.info("Indexing {} archives into shards at {}, {} at a time",
+      new Object[] { input.length, shardsDir.getAbsolutePath(), parallelism });
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    final List<Future<Entity[]>> shards = new ArrayList<Future<Entity[]>>();
+    for (File archive : input) {
+      shards.add(executor.submit(new Shard(archive)));
+    }
+    executor.shutdown();
+
+    final Directory dir = Indexing.DIRECTORY.open(indexDir);
+    final IndexWriter writer = Indexing.initializeIndexWriter(dir);
+    final Directory[] shardDirs = new Directory[input.length];
+    try {
+      final Reconciler reconciler = new Reconciler(writer);
+      // Shards are visited in the archive order, so that adjacent boundaries meet
+      for (int i = 0; i < input.length; i++) {
+        final Entity[] boundaries = getShard(shards.get(i), executor);
+        // the indexed shard is not needed anymore
+        shards.set(i, null);
+        reconciler.add(boundaries[0]);
+        reconciler.add(boundaries[1]);
+        shardDirs[i] = Indexing.DIRECTORY.open(getShardDir(input[i]));
+      }
+      reconciler.flush();
+      logger.info("Merged {} entities split across archives", reconciler.merged);
+
+      logger.info("Merging {} shards into {}", input.length, indexDir.getAbsolutePath());
+      writer.addIndexes(shardDirs);
+      if (Indexing.DEDUP > 0) {
+        // the entities of non adjacent archives
+        logger.info("Merged {} documents of entities indexed in several archives",
+          EntityDeduplicator.mergeDuplicates(writer));
+      }
+      writer.commit(Indexing.completeCheckpoint(writer.maxDoc(), input[input.length - 1]));
+      if (Indexing.OPTIMIZE > 0) {
+        writer.optimize(Indexing.OPTIMIZE);
+      }
+    } finally {
+      try {
+        writer.close();
+      } finally {
+        dir.close();
+        for (Directory shardDir : shardDirs) {
+          if (shardDir != null) {
+            shardDir.close();
+          }
+        }
+      }
+    }
+    deleteShards();
+  }
+
+  /**
+   * Wait for the shard to be indexed. If it failed, the other shards are
+   * cancelled.
+   * @return the head and tail entities of the shard
+   */
+  private Entity[] getShard(final Future<Entity[]> shard,
+                            final ExecutorService executor)
+  throws IOException {
+    try {
+      return shard.get();
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the shards");
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException("Failed to index a shard", e.getCause());
+    }
+  }
+
+  private File getShardDir(final File archive) {
+    return new File(shardsDir, archive.getName().substring(0, archive.getName().indexOf('.')));
+  }
+
+  /**
+   * Delete the shards once merged into the target index
+   */
+  private void deleteShards() {
+    for (File archive : input) {
+      final File shard = getShardDir(archive);
+      final File[] files = shard.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+      shard.delete();
+    }
+    shardsDir.delete();
+  }
+
+  /**
+   * Index one archive into its own shard, and return its head and tail
+   * entities, see {@link Indexing#getHead()}. Only these are kept until the
+   * shard is reconciled.
+   */
+  private class Shard implements Callable<Entity[]> {
+
+    private final File archive;
+
+    public Shard(final File archive) {
+      this.archive = archive;
+    }
+
+    @Override
+    public Entity[] call()
+    throws Exception {
+      final File[] in = new File[] { archive };
+      final Directory dir = Indexing.DIRECTORY.open(getShardDir(archive));
+      final Indexing indexing;
+      switch (format) {
+        case SINDICE_DE:
+          indexing = new SindiceDEIndexing(in, dir);
+          break;
+        case SINDICE_ED:
+          indexing = new SindiceEDIndexing(in, dir);
+          indexing.setKeepBoundaries(true);
+          break;
+        default:
+          throw new IllegalArgumentException("No such dataset format: " + format);
+      }
+      // The shards are merged and optimized afterwards
+      indexing.setOptimize(false);
+      try {
+        indexing.indexIt();
+      } finally {
+        indexing.close();
+      }
+      return new Entity[] { indexing.getHead(), indexing.getTail() };
+    }
+
+  }
+
+  /**
+   * Index the boundary entities of the shards, in the archive order. Successive
+   * entities with a same subject are merged into one document.
+   */
+  private static class Reconciler {
+
+    private final IndexWriter writer;
+    /* The last seen entity, waiting for its possible continuation */
+    private Entity            pending = null;
+    private long              merged  = 0;
+
+    public Reconciler(final IndexWriter writer) {
+      this.writer = writer;
+    }
+
+    public void add(final Entity entity)
+    throws CorruptIndexException, IOException {
+      if (entity == null) {
+        return;
+      }
+      entity.flatten();
+      if (pending != null && pending.subject.equals(entity.subject)) {
+        pending.merge(entity);
+        merged++;
+      } else {
+        flush();
+        pending = entity;
+      }
+    }
+
+    public void flush()
+    throws CorruptIndexException, IOException {
+      if (pending != null) {
+        writer.addDocument(Indexing.toDocument(pending));
+        pending = null;
+      }
+    }
+
+  }
+
+}
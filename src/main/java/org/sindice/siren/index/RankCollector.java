@@ -0,0 +1,134 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 21 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Collect the first k documents matching a query with a score above a
+ * threshold, and stop the search there. On an index sorted with
+ * {@link RankSorter}, these are the k entities with the highest static rank
+ * among the good enough matches, and the postings of a popular term are not
+ * read to their end.<br>
+ * The hits are returned in the order of the index, with their static rank
+ * as score. An instance collects a single search.
+ */
+public class RankCollector extends Collector {
+
+  /* Thrown to stop the search once k documents are collected */
+  private static class Terminated extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+
+  }
+
+  private final float      minScore;
+  private final ScoreDoc[] hits;
+  private int              count = 0;
+
+  private Scorer           scorer;
+  private float[]          ranks;
+  private int              docBase;
+
+  /**
+   * @param k the number of documents to collect
+   * @param minScore the score of the query a document must reach
+   */
+  public RankCollector(final int k, final float minScore) {
+    if (k < 1) {
+      throw new IllegalArgumentException("Invalid number of hits: " + k);
+    }
+    this.hits = new ScoreDoc[k];
+    this.minScore = minScore;
+  }
+
+  /**
+   * Search the first k documents matching the query and the filter
+   * @param filter may be null
+   */
+  public static TopDocs search(final IndexSearcher searcher, final Query query, final Filter filter,
+                               final int k, final float minScore)
+  throws IOException {
+    final RankCollector collector = new RankCollector(k, minScore);
+    try {
+      searcher.search(query, filter, collector);
+    } catch (Terminated e) {
+      // k documents collected
+    }
+    return collector.topDocs();
+  }
+
+  /**
+   * The documents collected, in the order of the index
+   */
+  public TopDocs topDocs() {
+    final ScoreDoc[] scoreDocs = new ScoreDoc[count];
+    System.arraycopy(hits, 0, scoreDocs, 0, count);
+    return new TopDocs(count, scoreDocs, count == 0 ? Float.NaN : scoreDocs[0].score);
+  }
+
+  @Override
+  public void setScorer(final Scorer scorer) {
+    this.scorer = scorer;
+  }
+
+  @Override
+  public void collect(final int doc)
+  throws IOException {
+    if (scorer.score() < minScore) {
+      return;
+    }
+    hits[count++] = new ScoreDoc(docBase + doc, ranks[doc]);
+    if (count == hits.length) {
+      throw new Terminated();
+    }
+  }
+
+  @Override
+  public void setNextReader(final IndexReader reader, final int docBase)
+  throws IOException {
+    this.docBase = docBase;
+    ranks = FieldCache.DEFAULT.getFloats(reader, Indexing.RANK, FieldCache.NUMERIC_UTILS_FLOAT_PARSER);
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    // the index order is the rank order
+    return false;
+  }
+
+}
@@ -0,0 +1,647 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 21 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermFreqVector;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.index.TermVectorMapper;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Rewrite an index with its documents in the decreasing order of their static
+ * rank, see {@link Entity#getStaticRank()}, so that the best entities
+ * matching a query are the first ones met by a search, see
+ * {@link RankCollector}. The deleted documents are dropped.<br>
+ * The index is read through a {@link RankSortingReader}, which renumbers the
+ * documents, and merged into the new index as one segment. The postings of a
+ * term are reordered in memory, and in sorted runs on a temporary file above
+ * {@link #BUFFER} bytes.
+ */
+public class RankSorter {
+
+  /* The commit user data of a sorted index */
+  public static final String RANK_SORTED = "rank-sorted";
+
+  /* The size in bytes of the postings of a term sorted in memory */
+  public static int          BUFFER      = 32 << 20;
+
+  private RankSorter() {
+  }
+
+  /**
+   * Write the documents of the index at from into a new index at to, in the
+   * decreasing order of their rank. The commit user data of the index, e.g.,
+   * its checkpoint, is kept.
+   * @throws IOException if there is already an index at to
+   */
+  public static void sort(final Directory from, final Directory to)
+  throws CorruptIndexException, IOException {
+    if (IndexReader.indexExists(to)) {
+      // the sorted documents would follow the existing ones
+      throw new IOException("The sorted index already exists: " + to);
+    }
+    final IndexReader reader = IndexReader.open(from, true);
+    try {
+      final IndexWriter writer = Indexing.initializeIndexWriter(to);
+      try {
+        writer.addIndexes(new RankSortingReader(reader));
+        final Map<String, String> userData = new HashMap<String, String>(reader.getCommitUserData());
+        userData.put(RANK_SORTED, "true");
+        writer.commit(userData);
+      } finally {
+        writer.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns true if the index of the reader was written by
+   * {@link #sort(Directory, Directory)}
+   */
+  public static boolean isRankSorted(final IndexReader reader) {
+    return "true".equals(reader.getCommitUserData().get(RANK_SORTED));
+  }
+
+  /**
+   * The live documents of reader in the decreasing order of their rank, and
+   * in the order of the index for a same rank
+   */
+  static int[] order(final IndexReader reader)
+  throws IOException {
+    final float[] ranks = FieldCache.DEFAULT.getFloats(reader, Indexing.RANK, FieldCache.NUMERIC_UTILS_FLOAT_PARSER);
+    final long[] keys = new long[reader.numDocs()];
+    int n = 0;
+    for (int doc = 0; doc < reader.maxDoc(); doc++) {
+      if (!reader.isDeleted(doc)) {
+        // the sortable int of the rank, reversed into [0, 2^32[, then the document
+        keys[n++] = ((long) Integer.MAX_VALUE - NumericUtils.floatToSortableInt(ranks[doc])) << 31 | doc;
+      }
+    }
+    Arrays.sort(keys);
+    final int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = (int) (keys[i] & Integer.MAX_VALUE);
+    }
+    return order;
+  }
+
+  /**
+   * A read-only view of an index with its live documents renumbered in the
+   * order of their rank.
+   */
+  static class RankSortingReader extends FilterIndexReader {
+
+    /* the document of the index at each new number, and the reverse, -1 if deleted */
+    private final int[] newToOld;
+    private final int[] oldToNew;
+
+    RankSortingReader(final IndexReader in)
+    throws IOException {
+      super(in);
+      newToOld = order(in);
+      oldToNew = new int[in.maxDoc()];
+      Arrays.fill(oldToNew, -1);
+      for (int i = 0; i < newToOld.length; i++) {
+        oldToNew[newToOld[i]] = i;
+      }
+    }
+
+    @Override
+    public int numDocs() {
+      return newToOld.length;
+    }
+
+    @Override
+    public int maxDoc() {
+      return newToOld.length;
+    }
+
+    @Override
+    public boolean isDeleted(final int n) {
+      return false;
+    }
+
+    @Override
+    public boolean hasDeletions() {
+      return false;
+    }
+
+    @Override
+    public Document document(final int n, final FieldSelector fieldSelector)
+    throws CorruptIndexException, IOException {
+      return in.document(newToOld[n], fieldSelector);
+    }
+
+    @Override
+    public byte[] norms(final String field)
+    throws IOException {
+      final byte[] norms = in.norms(field);
+      if (norms == null) {
+        return null;
+      }
+      final byte[] sorted = new byte[newToOld.length];
+      for (int i = 0; i < newToOld.length; i++) {
+        sorted[i] = norms[newToOld[i]];
+      }
+      return sorted;
+    }
+
+    @Override
+    public void norms(final String field, final byte[] bytes, final int offset)
+    throws IOException {
+      final byte[] sorted = norms(field);
+      if (sorted != null) {
+        System.arraycopy(sorted, 0, bytes, offset, sorted.length);
+      }
+    }
+
+    @Override
+    public TermFreqVector[] getTermFreqVectors(final int docNumber)
+    throws IOException {
+      return in.getTermFreqVectors(newToOld[docNumber]);
+    }
+
+    @Override
+    public TermFreqVector getTermFreqVector(final int docNumber, final String field)
+    throws IOException {
+      return in.getTermFreqVector(newToOld[docNumber], field);
+    }
+
+    @Override
+    public void getTermFreqVector(final int docNumber, final String field, final TermVectorMapper mapper)
+    throws IOException {
+      in.getTermFreqVector(newToOld[docNumber], field, mapper);
+    }
+
+    @Override
+    public void getTermFreqVector(final int docNumber, final TermVectorMapper mapper)
+    throws IOException {
+      in.getTermFreqVector(newToOld[docNumber], mapper);
+    }
+
+    @Override
+    public TermDocs termDocs()
+    throws IOException {
+      return new SortedTermPositions(in.termPositions(), oldToNew);
+    }
+
+    @Override
+    public TermDocs termDocs(final Term term)
+    throws IOException {
+      final TermDocs termDocs = termDocs();
+      termDocs.seek(term);
+      return termDocs;
+    }
+
+    @Override
+    public TermPositions termPositions()
+    throws IOException {
+      return new SortedTermPositions(in.termPositions(), oldToNew);
+    }
+
+    /* The documents are numbered differently: no sub-reader nor cache is shared with in */
+
+    @Override
+    public IndexReader[] getSequentialSubReaders() {
+      return null;
+    }
+
+    @Override
+    public Object getCoreCacheKey() {
+      return this;
+    }
+
+    @Override
+    public Object getDeletesCacheKey() {
+      return this;
+    }
+
+    @Override
+    protected void doSetNorm(final int d, final String f, final byte b) {
+      throw new UnsupportedOperationException("The sorted view is read-only");
+    }
+
+    @Override
+    protected void doDelete(final int n) {
+      throw new UnsupportedOperationException("The sorted view is read-only");
+    }
+
+    @Override
+    protected void doUndeleteAll() {
+      throw new UnsupportedOperationException("The sorted view is read-only");
+    }
+
+  }
+
+  /**
+   * The postings of a term, with their positions and payloads, renumbered.
+   * The postings are read into memory and sorted by their new document. Once
+   * they exceed {@link RankSorter#BUFFER} bytes, they are written as a sorted
+   * run to a temporary file, and the runs of the term are merged as they are
+   * iterated: the memory used is bounded whatever the frequency of the term.
+   */
+  static class SortedTermPositions implements TermPositions {
+
+    private final TermPositions in;
+    private final int[]         oldToNew;
+
+    /* the postings of the term, in the order of the index */
+    private int                 count          = 0;
+    private int[]               docs           = new int[16];
+    private int[]               freqs          = new int[16];
+    /* the index of the first position of a posting */
+    private int[]               starts         = new int[16];
+    /* the positions, and the start and length of their payload, -1 if none */
+    private int[]               positions      = new int[64];
+    private int[]               payloadStarts  = new int[64];
+    private int[]               payloadLengths = new int[64];
+    private byte[]              payloads       = new byte[256];
+    /* the postings sorted by their new document: the document then the posting index */
+    private long[]              order          = new long[16];
+
+    /* the current posting, and the index of its next position */
+    private int                 current;
+    private int                 posting;
+    private int                 position;
+
+    /* the sorted runs of postings of the current term, empty if it fits in memory */
+    private final List<Run>     runs           = new ArrayList<Run>();
+    /* the runs being merged, by their current document, and the one of the current posting */
+    private final PriorityQueue<Run> merge     = new PriorityQueue<Run>();
+    private Run                 run            = null;
+    private File                spillFile      = null;
+    private DataOutputStream    spillOut       = null;
+    private RandomAccessFile    spillIn        = null;
+    /* the bytes written to the spill file for the current term */
+    private long                spilled        = 0;
+
+    SortedTermPositions(final TermPositions in, final int[] oldToNew) {
+      this.in = in;
+      this.oldToNew = oldToNew;
+    }
+
+    @Override
+    public void seek(final Term term)
+    throws IOException {
+      in.seek(term);
+      load();
+    }
+
+    @Override
+    public void seek(final TermEnum termEnum)
+    throws IOException {
+      in.seek(termEnum);
+      load();
+    }
+
+    private void load()
+    throws IOException {
+      count = 0;
+      runs.clear();
+      merge.clear();
+      run = null;
+      int nPositions = 0;
+      int nBytes = 0;
+      while (in.next()) {
+        final int doc = oldToNew[in.doc()];
+        if (doc == -1) {
+          continue;
+        }
+        if (count == docs.length) {
+          docs = ArrayUtil.grow(docs, count + 1);
+          freqs = ArrayUtil.grow(freqs, docs.length);
+          starts = ArrayUtil.grow(starts, docs.length);
+          order = ArrayUtil.grow(order, docs.length);
+        }
+        final int freq = in.freq();
+        docs[count] = doc;
+        freqs[count] = freq;
+        starts[count] = nPositions;
+        order[count] = (long) doc << 32 | count;
+        count++;
+        if (nPositions + freq > positions.length) {
+          positions = ArrayUtil.grow(positions, nPositions + freq);
+          payloadStarts = ArrayUtil.grow(payloadStarts, positions.length);
+          payloadLengths = ArrayUtil.grow(payloadLengths, positions.length);
+        }
+        for (int i = 0; i < freq; i++, nPositions++) {
+          positions[nPositions] = in.nextPosition();
+          payloadLengths[nPositions] = -1;
+          if (in.isPayloadAvailable()) {
+            final int length = in.getPayloadLength();
+            payloads = ArrayUtil.grow(payloads, nBytes + length);
+            in.getPayload(payloads, nBytes);
+            payloadStarts[nPositions] = nBytes;
+            payloadLengths[nPositions] = length;
+            nBytes += length;
+          }
+        }
+        // the postings, the sort keys and the positions with their payloads
+        if (count * 20L + nPositions * 12L + nBytes > BUFFER) {
+          spill();
+          nPositions = 0;
+          nBytes = 0;
+        }
+      }
+      if (!runs.isEmpty()) {
+        if (count > 0) {
+          spill();
+        }
+        spillOut.flush();
+        for (Run r : runs) {
+          if (r.next()) {
+            merge.add(r);
+          }
+        }
+      } else {
+        Arrays.sort(order, 0, count);
+      }
+      current = -1;
+    }
+
+    /**
+     * Write the postings in memory as a sorted run of the spill file
+     */
+    private void spill()
+    throws IOException {
+      if (runs.isEmpty()) { // the first run of the term: the file is overwritten
+        if (spillFile == null) {
+          spillFile = File.createTempFile("rank-sort", ".postings");
+          spillFile.deleteOnExit();
+        } else {
+          spillOut.close();
+          spillIn.close();
+        }
+        spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16));
+        spillIn = new RandomAccessFile(spillFile, "r");
+        spilled = 0;
+      }
+      Arrays.sort(order, 0, count);
+      final long start = spilled;
+      for (int i = 0; i < count; i++) {
+        final int p = (int) order[i];
+        spillOut.writeInt(docs[p]);
+        spillOut.writeInt(freqs[p]);
+        spilled += 8;
+        for (int j = starts[p]; j < starts[p] + freqs[p]; j++) {
+          spillOut.writeInt(positions[j]);
+          spillOut.writeInt(payloadLengths[j]);
+          spilled += 8;
+          if (payloadLengths[j] > 0) {
+            spillOut.write(payloads, payloadStarts[j], payloadLengths[j]);
+            spilled += payloadLengths[j];
+          }
+        }
+      }
+      runs.add(new Run(start, count));
+      count = 0;
+    }
+
+    @Override
+    public boolean next()
+    throws IOException {
+      if (!runs.isEmpty()) {
+        if (run != null) {
+          run.skipPositions();
+          if (run.next()) {
+            merge.add(run);
+          }
+        }
+        run = merge.poll();
+        return run != null;
+      }
+      if (current + 1 >= count) {
+        current = count;
+        return false;
+      }
+      posting = (int) order[++current];
+      position = starts[posting];
+      return true;
+    }
+
+    @Override
+    public int doc() {
+      return run != null ? run.doc : docs[posting];
+    }
+
+    @Override
+    public int freq() {
+      return run != null ? run.freq : freqs[posting];
+    }
+
+    @Override
+    public int read(final int[] docs, final int[] freqs)
+    throws IOException {
+      int n = 0;
+      while (n < docs.length && next()) {
+        docs[n] = doc();
+        freqs[n] = freq();
+        n++;
+      }
+      return n;
+    }
+
+    @Override
+    public boolean skipTo(final int target)
+    throws IOException {
+      do {
+        if (!next()) {
+          return false;
+        }
+      } while (doc() < target);
+      return true;
+    }
+
+    @Override
+    public int nextPosition()
+    throws IOException {
+      if (run != null) {
+        return run.nextPosition();
+      }
+      return positions[position++];
+    }
+
+    @Override
+    public int getPayloadLength() {
+      if (run != null) {
+        return Math.max(0, run.payloadLength);
+      }
+      return Math.max(0, payloadLengths[position - 1]);
+    }
+
+    @Override
+    public byte[] getPayload(byte[] data, int offset) {
+      final int length = getPayloadLength();
+      if (data == null || data.length - offset < length) {
+        data = new byte[length];
+        offset = 0;
+      }
+      if (run != null) {
+        System.arraycopy(run.payload, 0, data, offset, length);
+      } else {
+        System.arraycopy(payloads, payloadStarts[position - 1], data, offset, length);
+      }
+      return data;
+    }
+
+    @Override
+    public boolean isPayloadAvailable() {
+      if (run != null) {
+        return run.payloadLength != -1;
+      }
+      return position > 0 && payloadLengths[position - 1] != -1;
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+      try {
+        in.close();
+      } finally {
+        if (spillFile != null) {
+          spillOut.close();
+          spillIn.close();
+          spillFile.delete();
+        }
+      }
+    }
+
+    /**
+     * A sorted run of postings of the spill file, read sequentially
+     */
+    private class Run implements Comparable<Run> {
+
+      private final DataInputStream data;
+      /* the number of postings left in the run */
+      private int                   left;
+      /* the current posting, the number of its positions left and the current payload */
+      int                           doc;
+      int                           freq;
+      private int                   positionsLeft  = 0;
+      int                           payloadLength  = -1;
+      byte[]                        payload        = new byte[16];
+
+      Run(final long start, final int count) {
+        this.data = new DataInputStream(new BufferedInputStream(new InputStream() {
+
+          private long pos = start;
+
+          @Override
+          public int read()
+          throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+          }
+
+          @Override
+          public int read(final byte[] b, final int off, final int len)
+          throws IOException {
+            final int n = spillIn.getChannel().read(ByteBuffer.wrap(b, off, len), pos);
+            if (n > 0) {
+              pos += n;
+            }
+            return n;
+          }
+
+        }, 1 << 16));
+        this.left = count;
+      }
+
+      /**
+       * Move to the next posting of the run
+       */
+      boolean next()
+      throws IOException {
+        if (left == 0) {
+          return false;
+        }
+        left--;
+        doc = data.readInt();
+        freq = data.readInt();
+        positionsLeft = freq;
+        payloadLength = -1;
+        return true;
+      }
+
+      int nextPosition()
+      throws IOException {
+        positionsLeft--;
+        final int position = data.readInt();
+        payloadLength = data.readInt();
+        if (payloadLength > 0) {
+          payload = ArrayUtil.grow(payload, payloadLength);
+          data.readFully(payload, 0, payloadLength);
+        }
+        return position;
+      }
+
+      /**
+       * Skip the positions of the current posting not read
+       */
+      void skipPositions()
+      throws IOException {
+        while (positionsLeft > 0) {
+          nextPosition();
+        }
+      }
+
+      @Override
+      public int compareTo(final Run other) {
+        return doc < other.doc ? -1 : doc == other.doc ? 0 : 1;
+      }
+
+    }
+
+  }
+
+}
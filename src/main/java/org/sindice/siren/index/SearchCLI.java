@@ -0,0 +1,262 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 13 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.sindice.siren.index.TopicSearch.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run a file of topics against an entity index, and write a TREC run file.
+ * See {@link TopicQueryParser} for the syntax of the queries. A query on a
+ * {@link ShardedIndex} is run over its shards in parallel.
+ */
+public class SearchCLI {
+
+  private static final Logger   logger      = LoggerFactory.getLogger(SearchCLI.class);
+  
+  private final OptionParser    parser;
+  private OptionSet             opts;
+
+  private final String          HELP        = "help";
+  private final String          INDEX_DIR   = "index-dir";
+  private final String          TOPICS      = "topics";
+  private final String          RUN         = "run";
+  private final String          TAG         = "tag";
+  private final String          TOP_K       = "top-k";
+  private final String          THREADS     = "threads";
+  private final String          TYPE_CACHE  = "type-cache";
+  private final String          EARLY_TERMINATION = "early-termination";
+  private final String          DIRECTORY   = "directory";
+  private final String          WARM        = "warm";
+  private final String          WARM_TOPICS = "warm-topics";
+  private final String          WARM_COUNT  = "warm-count";
+  private final String          REOPEN      = "reopen-interval";
+  
+  public SearchCLI() {
+    parser = new OptionParser();
+    parser.accepts(HELP, "Print this help.");
+    parser.accepts(INDEX_DIR, "The directory of the index, or of the shards of a sharded index")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts(TOPICS, "The file of topics, one per line: the topic id and its query")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts(RUN, "The run file where the results are written")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts(TAG, "The name of the run")
+          .withRequiredArg().ofType(String.class).defaultsTo("siren");
+    parser.accepts(TOP_K, "The number of results per topic")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+    parser.accepts(THREADS, "The number of topics searched concurrently")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors());
+    parser.accepts(TYPE_CACHE, "The memory in MB of the cached bitsets of the required types, 0 to disable")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(64);
+    parser.accepts(EARLY_TERMINATION, "Return the first top-k results with at least this score, in the order of " +
+        "the index, instead of the best top-k. The index should be sorted by static rank, see the indexing option rank-sort")
+          .withRequiredArg().ofType(Float.class);
+    parser.accepts(DIRECTORY, "The implementation of the index directory: FS, MMAP, NIO or SIMPLE")
+          .withRequiredArg().ofType(DirectoryType.class).defaultsTo(DirectoryType.FS);
+    parser.accepts(WARM, "Preload the postings of the tuples and of the types before searching");
+    parser.accepts(WARM_TOPICS, "A file of topics, e.g., a query log, whose last topics are replayed before searching")
+          .withRequiredArg().ofType(File.class);
+    parser.accepts(WARM_COUNT, "The number of topics replayed from the end of the warm-up topics")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(100);
+    parser.accepts(REOPEN, "Check every X seconds for a new commit of the index, and swap in a warmed searcher" +
+                           " of it. 0 to disable.")
+          .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+  }
+  
+  private void printError(final String opt)
+  throws IOException {
+    parser.printHelpOn(System.out);
+    throw new IOException("Missing option: " + opt);
+  }
+  
+  public final void parseAndExecute(final String[] cmds)
+  throws IOException {
+    opts = parser.parse(cmds);
+    if (opts.has(HELP)) {
+      parser.printHelpOn(System.out);
+      return;
+    }
+    for (String opt : new String[] { INDEX_DIR, TOPICS, RUN }) {
+      if (!opts.has(opt)) {
+        printError(opt);
+      }
+    }
+    final File indexDir = (File) opts.valueOf(INDEX_DIR);
+    final File topicsFile = (File) opts.valueOf(TOPICS);
+    final File runFile = (File) opts.valueOf(RUN);
+    
+    final List<Topic> topics = TopicSearch.readTopics(topicsFile);
+    logger.info("Searching {} topics from {} in {}", new Object[] { topics.size(), topicsFile, indexDir });
+    Indexing.DIRECTORY = (DirectoryType) opts.valueOf(DIRECTORY);
+    final IndexReader reader;
+    /* the directory of an index with one shard, closed after its reader */
+    final Directory dir;
+    /* runs a query over the shards, whose top-k are merged by the searcher */
+    final ExecutorService fanOut;
+    if (ShardedIndex.isSharded(indexDir)) {
+      if (opts.has(EARLY_TERMINATION)) {
+        // the shards are searched one after the other: the first one would get all the results
+        throw new IllegalArgumentException("Early termination is not supported on a sharded index");
+      }
+      // the reader closes the directories of the shards
+      reader = ShardedIndex.open(indexDir);
+      dir = null;
+      fanOut = Executors.newFixedThreadPool(ShardedIndex.getShards(indexDir));
+    } else {
+      dir = Indexing.DIRECTORY.open(indexDir);
+      try {
+        reader = IndexReader.open(dir, true);
+      } catch (IOException e) {
+        dir.close();
+        throw e;
+      }
+      fanOut = null;
+    }
+    final int typeCache = (Integer) opts.valueOf(TYPE_CACHE);
+    final TypeFilterCache typeFilters = typeCache > 0 ? new TypeFilterCache(typeCache * 1048576L) : null;
+    if (typeFilters != null) {
+      typeFilters.register(reader);
+    }
+    final SearcherManager manager;
+    try {
+      manager = new SearcherManager(reader, fanOut, createWarmer(typeFilters));
+    } catch (RuntimeException e) {
+      close(reader, dir);
+      throw e;
+    } catch (IOException e) {
+      close(reader, dir);
+      throw e;
+    }
+    final int reopen = (Integer) opts.valueOf(REOPEN);
+    final ScheduledExecutorService reopener = reopen > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+    if (reopener != null) {
+      reopener.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            manager.maybeReopen();
+          } catch (IOException e) {
+            logger.error("Failed to reopen the index " + indexDir, e);
+          }
+        }
+      }, reopen, reopen, TimeUnit.SECONDS);
+    }
+    final Writer run = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(runFile), "UTF-8"));
+    try {
+      final TopicSearch search = new TopicSearch(manager, new TopicQueryParser(),
+        (Integer) opts.valueOf(THREADS), (Integer) opts.valueOf(TOP_K));
+      if (typeFilters != null) {
+        search.setTypeFilterCache(typeFilters);
+      }
+      if (opts.has(EARLY_TERMINATION)) {
+        if (!RankSorter.isRankSorted(reader)) {
+          logger.warn("The index {} is not sorted by static rank: the results are in the order of indexing", indexDir);
+        }
+        search.setEarlyTermination((Float) opts.valueOf(EARLY_TERMINATION));
+      }
+      final long start = System.nanoTime();
+      final long[] latencies = search.run(topics, run, (String) opts.valueOf(TAG));
+      final long elapsed = System.nanoTime() - start;
+      TopicSearch.logLatencies(latencies);
+      logger.info("Wrote the run {} in {} ms", runFile, elapsed / 1000000);
+      if (typeFilters != null) {
+        logger.info("Type filters: {} hits, {} misses, {} bytes", new Object[] { typeFilters.getHits(),
+          typeFilters.getMisses(), typeFilters.getBytes() });
+      }
+    } finally {
+      run.close();
+      if (reopener != null) {
+        reopener.shutdownNow();
+      }
+      try {
+        manager.close();
+      } finally {
+        if (fanOut != null) {
+          fanOut.shutdown();
+        }
+        // after the readers of the manager, which read from it
+        if (dir != null) {
+          dir.close();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Close the reader, and then its directory if not null
+   */
+  private static void close(final IndexReader reader, final Directory dir)
+  throws IOException {
+    try {
+      reader.close();
+    } finally {
+      if (dir != null) {
+        dir.close();
+      }
+    }
+  }
+  
+  /**
+   * The warmer of the searchers, or null if there is no warm-up
+   */
+  private IndexWarmer createWarmer(final TypeFilterCache typeFilters)
+  throws IOException {
+    if (!opts.has(WARM) && !opts.has(WARM_TOPICS)) {
+      return null;
+    }
+    List<Topic> topics = Collections.emptyList();
+    if (opts.has(WARM_TOPICS)) {
+      // the most recent topics are at the end of a log
+      topics = TopicSearch.readTopics((File) opts.valueOf(WARM_TOPICS));
+      topics = topics.subList(Math.max(0, topics.size() - (Integer) opts.valueOf(WARM_COUNT)), topics.size());
+    }
+    return new IndexWarmer(opts.has(WARM), topics, new TopicQueryParser(), typeFilters);
+  }
+  
+  public static void main(String[] args)
+  throws IOException {
+    final SearchCLI cli = new SearchCLI();
+    
+    cli.parseAndExecute(args);
+  }
+  
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 25 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Share a searcher between threads, and replace it by a searcher of the
+ * latest commit of the index when the index changes. The new searcher is
+ * warmed up with an {@link IndexWarmer} before it is swapped in: the queries
+ * never run against a cold searcher.<br>
+ * A searcher is used between {@link #acquire()} and {@link #release(IndexSearcher)}:
+ * the reader of a replaced searcher is closed once the last query using it
+ * releases it.
+ */
+public class SearcherManager {
+
+  private static final Logger   logger = LoggerFactory.getLogger(SearcherManager.class);
+
+  /* runs a query over the sub-readers, e.g., the shards; may be null */
+  private final ExecutorService executor;
+  /* may be null */
+  private final IndexWarmer     warmer;
+  private IndexSearcher         current;
+  /* Only one reopen at a time */
+  private final Object          reopenLock = new Object();
+
+  /**
+   * The reader is owned by the manager from now on, and closed with it.
+   * @param reader the reader of the index
+   * @param executor runs a query over the sub-readers of the index, as
+   * {@link IndexSearcher#IndexSearcher(IndexReader, ExecutorService)}; may be null
+   * @param warmer warms the searchers up, including this first one; may be null
+   * @throws IOException
+   */
+  public SearcherManager(final IndexReader reader, final ExecutorService executor, final IndexWarmer warmer)
+  throws IOException {
+    this.executor = executor;
+    this.warmer = warmer;
+    this.current = newSearcher(reader);
+  }
+
+  private IndexSearcher newSearcher(final IndexReader reader)
+  throws IOException {
+    final IndexSearcher searcher = executor != null ? new IndexSearcher(reader, executor) : new IndexSearcher(reader);
+    if (warmer != null) {
+      warmer.warm(searcher);
+    }
+    return searcher;
+  }
+
+  /**
+   * The current searcher, to be given back with {@link #release(IndexSearcher)}
+   */
+  public synchronized IndexSearcher acquire() {
+    if (current == null) {
+      throw new IllegalStateException("The searcher manager is closed");
+    }
+    current.getIndexReader().incRef();
+    return current;
+  }
+
+  /**
+   * Give back a searcher obtained with {@link #acquire()}
+   * @throws IOException
+   */
+  public void release(final IndexSearcher searcher)
+  throws IOException {
+    searcher.getIndexReader().decRef();
+  }
+
+  /**
+   * Open a searcher on the latest commit of the index, warm it up and swap it
+   * in, if the index has changed.
+   * @return true if the searcher has been replaced
+   * @throws IOException
+   */
+  public boolean maybeReopen()
+  throws IOException {
+    synchronized (reopenLock) {
+      final IndexSearcher searcher = acquire();
+      try {
+        final IndexReader reader = searcher.getIndexReader().reopen();
+        if (reader == searcher.getIndexReader()) {
+          return false;
+        }
+        final IndexSearcher newSearcher;
+        try {
+          newSearcher = newSearcher(reader);
+        } catch (IOException e) {
+          reader.close();
+          throw e;
+        }
+        swap(newSearcher);
+        logger.info("Swapped in a searcher of {} documents", reader.numDocs());
+        return true;
+      } finally {
+        release(searcher);
+      }
+    }
+  }
+
+  private void swap(final IndexSearcher searcher)
+  throws IOException {
+    final IndexSearcher old;
+    synchronized (this) {
+      old = current;
+      current = searcher;
+    }
+    if (old != null) {
+      // the reference of the manager: closed once the running queries release it
+      release(old);
+    }
+  }
+
+  /**
+   * Close the current searcher once released by the running queries
+   * @throws IOException
+   */
+  public void close()
+  throws IOException {
+    synchronized (reopenLock) {
+      swap(null);
+    }
+  }
+
+}
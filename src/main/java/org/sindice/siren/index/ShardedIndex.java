@@ -0,0 +1,282 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 16 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.sindice.siren.index.IndexingCLI.Format;
+
+/**
+ * An index partitioned into shards by a hash of the subject of the entities.
+ * The shards are sub-folders of the index folder, written concurrently by
+ * {@link Indexing} in one pass over the dumps. The layout is described by the
+ * manifest {@link #MANIFEST} in the index folder: the number of shards, the
+ * hash function, and the folder and number of documents of each shard.<br>
+ * A sharded index is searched through {@link #open(File)}, a reader over all
+ * the shards: given an executor, an IndexSearcher runs a query over the shards
+ * in parallel, and merges their top-k.
+ */
+public class ShardedIndex {
+
+  /* The manifest of a sharded index, in the index folder */
+  public static final String  MANIFEST   = "shards.properties";
+
+  /* The keys of the manifest */
+  private static final String FORMAT     = "format";
+  private static final String SHARDS     = "shards";
+  private static final String HASH       = "hash";
+  private static final String DOCS       = "docs";
+  private static final String SHARD      = "shard.";
+  /* The hash function of #shard(String, int), as described in the manifest */
+  private static final String FNV1A_64   = "fnv1a-64(subject) >>> 1 mod shards";
+
+  private ShardedIndex() {
+  }
+
+  /**
+   * The shard of an entity: the 64 bits FNV-1a hash of the chars of its
+   * subject, modulo the number of shards
+   * @param subject the subject of the entity
+   * @param shards the number of shards
+   */
+  public static int shard(final String subject, final int shards) {
+    if (shards == 1) {
+      return 0;
+    }
+    return (int) ((Utils.fnv1a64(subject) >>> 1) % shards);
+  }
+
+  /**
+   * The folder of a shard
+   */
+  static File getShardDir(final File indexDir, final int shard) {
+    return new File(indexDir, "shard-" + shard);
+  }
+
+  /**
+   * Returns true if the index at indexDir is sharded
+   */
+  public static boolean isSharded(final File indexDir) {
+    return new File(indexDir, MANIFEST).exists();
+  }
+
+  /**
+   * Open the directories of the shards of a new sharded index.
+   * @param indexDir the folder of the index
+   * @param shards the number of shards
+   * @throws IOException if the index already exists
+   */
+  public static Directory[] create(final File indexDir, final int shards)
+  throws IOException {
+    if (shards < 1) {
+      throw new IllegalArgumentException("The number of shards must be positive: " + shards);
+    }
+    if (isSharded(indexDir)) {
+      // the entities would not be added to the shards they are in
+      throw new IOException("The sharded index already exists: " + indexDir);
+    }
+    final Directory[] dirs = new Directory[shards];
+    for (int i = 0; i < shards; i++) {
+      dirs[i] = Indexing.DIRECTORY.open(getShardDir(indexDir, i));
+    }
+    return dirs;
+  }
+
+  /**
+   * Write the manifest of the sharded index, once the shards are closed.
+   * @param indexDir the folder of the index
+   * @param format the format of the indexed dataset
+   * @param shards the number of shards
+   * @throws IOException
+   */
+  public static void writeManifest(final File indexDir, final Format format, final int shards)
+  throws IOException {
+    final Properties manifest = new Properties();
+    manifest.setProperty(FORMAT, format.toString());
+    manifest.setProperty(SHARDS, Integer.toString(shards));
+    manifest.setProperty(HASH, FNV1A_64);
+    long docs = 0;
+    for (int i = 0; i < shards; i++) {
+      final Directory dir = Indexing.DIRECTORY.open(getShardDir(indexDir, i));
+      try {
+        final IndexReader reader = IndexReader.open(dir, true);
+        try {
+          manifest.setProperty(SHARD + i, getShardDir(indexDir, i).getName());
+          manifest.setProperty(SHARD + i + "." + DOCS, Integer.toString(reader.numDocs()));
+          docs += reader.numDocs();
+        } finally {
+          reader.close();
+        }
+      } finally {
+        dir.close();
+      }
+    }
+    manifest.setProperty(DOCS, Long.toString(docs));
+    final OutputStream out = new FileOutputStream(new File(indexDir, MANIFEST));
+    try {
+      manifest.store(out, "Entity index partitioned by subject");
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Properties readManifest(final File indexDir)
+  throws IOException {
+    final Properties manifest = new Properties();
+    final InputStream in = new FileInputStream(new File(indexDir, MANIFEST));
+    try {
+      manifest.load(in);
+    } finally {
+      in.close();
+    }
+    if (!FNV1A_64.equals(manifest.getProperty(HASH))) {
+      throw new IOException("Unknown hash function in the manifest of " + indexDir + ": " + manifest.getProperty(HASH));
+    }
+    return manifest;
+  }
+
+  /**
+   * The number of shards of the index at indexDir
+   * @throws IOException
+   */
+  public static int getShards(final File indexDir)
+  throws IOException {
+    return Integer.parseInt(readManifest(indexDir).getProperty(SHARDS));
+  }
+
+  /**
+   * Open a read-only reader over all the shards of the index at indexDir. The
+   * shards and their directories are closed with the reader, or with the last
+   * of its reopened readers.
+   * @throws IOException
+   */
+  public static IndexReader open(final File indexDir)
+  throws IOException {
+    final Properties manifest = readManifest(indexDir);
+    final int shards = Integer.parseInt(manifest.getProperty(SHARDS));
+    final Directory[] dirs = new Directory[shards];
+    final IndexReader[] readers = new IndexReader[shards];
+    try {
+      for (int i = 0; i < shards; i++) {
+        final String shardDir = manifest.getProperty(SHARD + i);
+        if (shardDir == null) {
+          throw new IOException("Shard " + i + " missing from the manifest of " + indexDir);
+        }
+        dirs[i] = Indexing.DIRECTORY.open(new File(indexDir, shardDir));
+        readers[i] = IndexReader.open(dirs[i], true);
+      }
+    } catch (IOException e) {
+      for (int i = 0; i < shards; i++) {
+        if (readers[i] != null) {
+          readers[i].close();
+        }
+        if (dirs[i] != null) {
+          dirs[i].close();
+        }
+      }
+      throw e;
+    }
+    return new ShardsReader(readers, dirs, new AtomicInteger(1));
+  }
+
+  /**
+   * A reader over the shards, which owns their readers and their directories.
+   * A reopened reader shares the directories: they are closed with the last
+   * reader.
+   */
+  private static class ShardsReader extends MultiReader {
+
+    private final Directory[]   dirs;
+    /* Number of open readers over the directories */
+    private final AtomicInteger refs;
+
+    /**
+     * @param readers the readers of the shards, owned by the new reader
+     */
+    ShardsReader(final IndexReader[] readers, final Directory[] dirs, final AtomicInteger refs)
+    throws IOException {
+      super(readers, false); // the shards are ref-counted, as they may be shared after a reopen
+      for (IndexReader reader : readers) {
+        reader.decRef();
+      }
+      this.dirs = dirs;
+      this.refs = refs;
+    }
+
+    @Override
+    public synchronized IndexReader reopen()
+    throws IOException {
+      ensureOpen();
+      final IndexReader[] readers = new IndexReader[subReaders.length];
+      boolean changed = false;
+      try {
+        for (int i = 0; i < subReaders.length; i++) {
+          readers[i] = subReaders[i].reopen();
+          changed |= readers[i] != subReaders[i];
+        }
+      } catch (IOException e) {
+        for (int i = 0; i < subReaders.length; i++) {
+          if (readers[i] != null && readers[i] != subReaders[i]) {
+            readers[i].close();
+          }
+        }
+        throw e;
+      }
+      if (!changed) {
+        return this;
+      }
+      for (int i = 0; i < subReaders.length; i++) {
+        if (readers[i] == subReaders[i]) { // shared with this reader
+          readers[i].incRef();
+        }
+      }
+      refs.incrementAndGet();
+      return new ShardsReader(readers, dirs, refs);
+    }
+
+    @Override
+    protected synchronized void doClose()
+    throws IOException {
+      try {
+        super.doClose();
+      } finally {
+        if (refs.decrementAndGet() == 0) {
+          for (Directory dir : dirs) {
+            dir.close();
+          }
+        }
+      }
+    }
+
+  }
+
+}
@@ -32,8 +32,8 @@ import org.apache.lucene.store.Directory;
  */
 public class SindiceDEIndexing extends Indexing {
   
-  /* the current entity */
-  private final Entity entity = new Entity();
+  /* The regular expression of the archive files */
+  public static final String PATTERN = "DE-[0-9]+\\.tar\\.gz";
   
   /**
    * @param inputDir
@@ -44,37 +44,50 @@ public class SindiceDEIndexing extends Indexing {
     super(inputDir, dir);
   }
 
+  /**
+   * @param input the archive files
+   * @param indexDir
+   * @throws IOException
+   */
+  public SindiceDEIndexing(File[] input, Directory dir) throws IOException {
+    super(input, dir);
+  }
+
+  /**
+   * @param inputDir
+   * @param shards the shards of the index
+   * @throws IOException
+   */
+  public SindiceDEIndexing(File inputDir, Directory[] shards) throws IOException {
+    super(inputDir, shards);
+  }
+
   @Override
   protected String getPattern() {
-    return "DE-[0-9]+\\.tar\\.gz";
+    return PATTERN;
   }
 
   @Override
   public Entity next() {
-    entity.clear();
+    final Entity entity = acquireEntity();
     try {
       // metadata
-      Utils.getFile(reader, tarEntry.getSize(), entity.sbMetadata);
+      Utils.getMetadata(reader, tarEntry.getSize(), entity);
+      entity.contexts++;
       // outgoing-triples.nt
       if (!hasNext()) {
         logger.info("Error while Trying to get the outgoing-triples.nt from {}, entry name: {}",
           input[inputPos].getAbsolutePath(), tarEntry.getName());
         throw new IllegalStateException("entry file missing");
       }
-      Utils.getFile(reader, tarEntry.getSize(), entity.sb);
+      getTriples(entity, true);
       // incoming-triples.nt
       if (!hasNext()) {
         logger.info("Error while Trying to get the incoming-triples.nt from {}, entry name: {}",
           input[inputPos].getAbsolutePath(), tarEntry.getName());
         throw new IllegalStateException("entry file missing");
       }
-      Utils.getFile(reader, tarEntry.getSize(), entity.sb);
-      // Strip outgoing triples from rdf:type statements
-      Utils.sortAndFlattenNTriples(entity.sb, entity.outTuples, entity.type, true);
-      Utils.sortAndFlattenNTriples(entity.sb, entity.inTuples, null, false);
-      final int newLine = entity.sbMetadata.indexOf("\n");
-      entity.context = entity.sbMetadata.substring(0, newLine);
-      entity.subject = entity.sbMetadata.substring(newLine + 1);
+      getTriples(entity, false);
     } catch (IOException e) {
       logger.info("Couldn't read a compressed file from {}, entry name: {}",
         input[inputPos].getAbsolutePath(), tarEntry.getName());
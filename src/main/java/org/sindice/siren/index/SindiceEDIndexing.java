@@ -32,9 +32,8 @@ import org.apache.lucene.store.Directory;
  */
 public class SindiceEDIndexing extends Indexing {
 
-  /* the current entity */
-  private final Entity entity = new Entity();
-  private final long MAX_ENTITY_SIZE = 64L*1048576L; // 64MB
+  /* The regular expression of the archive files */
+  public static final String PATTERN = "ED-[0-9]+\\.tar\\.gz";
   
   /**
    * @param inputDir
@@ -45,27 +44,42 @@ public class SindiceEDIndexing extends Indexing {
     super(inputDir, dir);
   }
 
+  /**
+   * @param input the archive files
+   * @param indexDir
+   * @throws IOException
+   */
+  public SindiceEDIndexing(File[] input, Directory dir) throws IOException {
+    super(input, dir);
+  }
+
+  /**
+   * @param inputDir
+   * @param shards the shards of the index
+   * @throws IOException
+   */
+  public SindiceEDIndexing(File inputDir, Directory[] shards) throws IOException {
+    super(inputDir, shards);
+  }
+
   @Override
   protected String getPattern() {
-    return "ED-[0-9]+\\.tar\\.gz";
+    return PATTERN;
   }
 
   @Override
   public Entity next() {
     final String entityID = tarEntry.getName().substring(0, tarEntry.getName().indexOf('/') + 1);
-    long entityByteSize = 0;
     
-    entity.clear();
+    final Entity entity = acquireEntity();
     try {
       do {
         /*
          * metadata
          */
-        if (entity.sbMetadata.length() == 0) {
-          Utils.getFile(reader, tarEntry.getSize(), entity.sbMetadata);
-          final int newLine = entity.sbMetadata.indexOf("\n");
-          entity.context = entity.sbMetadata.substring(0, newLine);
-          entity.subject = entity.sbMetadata.substring(newLine + 1);          
+        entity.contexts++;
+        if (entity.subject.length() == 0) {
+          Utils.getMetadata(reader, tarEntry.getSize(), entity);
         } else // the metadata has already been read.
           reader.skip(tarEntry.getSize());
         /*
@@ -76,10 +90,7 @@ public class SindiceEDIndexing extends Indexing {
             input[inputPos].getAbsolutePath(), tarEntry.getName());
           throw new IllegalStateException("entry file missing");
         }
-        entityByteSize += tarEntry.getSize();
-        Utils.getFile(reader, tarEntry.getSize(), entity.sb);
-        // Strip outgoing triples from rdf:type statements
-        Utils.sortAndFlattenNTriples(entity.sb, entity.outTuples, entity.type, true);
+        getTriples(entity, true);
         /*
          * incoming-triples.nt
          */
@@ -88,15 +99,8 @@ public class SindiceEDIndexing extends Indexing {
             input[inputPos].getAbsolutePath(), tarEntry.getName());
           throw new IllegalStateException("entry file missing");
         }
-        entityByteSize += tarEntry.getSize();
-        if (entityByteSize > MAX_ENTITY_SIZE) {
-          // Too big entity: just keep outgoing-triples, as they are the most informative ones.
-          reader.skip(tarEntry.getSize());
-          entity.inTuples.clear();
-        } else {
-          Utils.getFile(reader, tarEntry.getSize(), entity.sb);
-          Utils.sortAndFlattenNTriples(entity.sb, entity.inTuples, null, false);
-        }
+        // outgoing-triples are the most informative ones: they take precedence over the budget
+        getTriples(entity, false);
       } while (hasNext(entityID)); // while documents describe the same entity
     } catch (IOException e) {
       logger.info("Couldn't read a compressed file from {}, entry name: ",
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 18 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.zip.DataFormatException;
+
+import org.apache.lucene.document.CompressionTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.SetBasedFieldSelector;
+
+/**
+ * The tuples of an entity as a stored binary field, see {@link Indexing#STORE}.
+ * The distinct terms of the entity are sorted and front-coded, since the URIs
+ * share long namespace prefixes; the tuples refer to the terms by their rank.
+ * The block is then deflated. A block is:
+ * <ul>
+ * <li>the number of terms, then each term as the number of chars shared with
+ * the previous one, and the rest of the term in UTF-8 with its length;</li>
+ * <li>the outgoing then the incoming tuples: the number of predicates, then
+ * each predicate with the number of its values and the values.</li>
+ * </ul>
+ * The numbers are written as variable length ints.<br>
+ * The tuples of a document are decoded on the first access only: load the
+ * documents with {@link #SELECTOR}, so that the block is not even read from
+ * the index unless it is accessed.
+ */
+public class StoredTuples {
+
+  /*
+   * Loads the subject and the types of a document, and the tuples only when
+   * they are accessed
+   */
+  public static final FieldSelector SELECTOR = new SetBasedFieldSelector(
+    new HashSet<String>(Arrays.asList(Indexing.SUBJECT, Indexing.TYPE)),
+    Collections.singleton(Indexing.TUPLES));
+
+  private final Fieldable field;
+  /* the stored types, see Entity#getTypes */
+  private final String    types;
+  /* the decoded block, null until accessed */
+  private String[]        terms;
+  private int[][]         outTuples;
+  private int[][]         inTuples;
+
+  /**
+   * @param doc a document with a {@link Indexing#TUPLES} field
+   */
+  public StoredTuples(final Document doc) {
+    field = doc.getFieldable(Indexing.TUPLES);
+    if (field == null) {
+      throw new IllegalArgumentException("The tuples of the entity " + doc.get(Indexing.SUBJECT) + " are not stored");
+    }
+    types = doc.get(Indexing.TYPE);
+  }
+
+  /**
+   * The tuples in the form of {@link Entity#getTriples(boolean)}
+   * @param out true for the outgoing tuples, false for the incoming ones
+   * @throws IOException if the block is corrupted
+   */
+  public String getTriples(final boolean out)
+  throws IOException {
+    if (terms == null) {
+      decode();
+    }
+    final int[][] tuples = out ? outTuples : inTuples;
+    final StringBuilder sb = new StringBuilder();
+    for (int[] tuple : tuples) {
+      for (int term : tuple) {
+        sb.append(terms[term]).append(' ');
+      }
+      sb.append(".\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Add the stored tuples and types to a flattened entity, e.g., another part
+   * of the same entity. The document counts as one more context of the entity.
+   * @throws IOException if the block is corrupted
+   */
+  void mergeInto(final Entity entity)
+  throws IOException {
+    if (terms == null) {
+      decode();
+    }
+    final int[] ids = new int[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      ids[i] = entity.termId(terms[i]);
+    }
+    mergeInto(outTuples, ids, entity.outTuples);
+    mergeInto(inTuples, ids, entity.inTuples);
+    if (types != null) {
+      for (String type : types.split("\\s+")) {
+        if (type.length() != 0 && !type.equals(".")) {
+          entity.type.add(entity.termId(type));
+        }
+      }
+    }
+    entity.contexts++;
+  }
+
+  private static void mergeInto(final int[][] tuples, final int[] ids, final TupleTable to) {
+    for (int[] tuple : tuples) {
+      final int predicate = to.addPredicate(ids[tuple[0]]);
+      for (int j = 1; j < tuple.length; j++) {
+        to.add(predicate, ids[tuple[j]]);
+      }
+    }
+  }
+
+  /**
+   * Serialize the tuples of a flattened entity
+   */
+  static byte[] encode(final Entity entity) {
+    // the distinct terms of the tuples, and their rank in the sorted order
+    final IntSet ids = new IntSet();
+    addIds(entity.outTuples, ids);
+    addIds(entity.inTuples, ids);
+    final String[] terms = new String[ids.size()];
+    final Integer[] order = new Integer[ids.size()];
+    for (int i = 0; i < terms.length; i++) {
+      terms[i] = entity.term(ids.get(i));
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(final Integer a, final Integer b) {
+        return terms[a].compareTo(terms[b]);
+      }
+    });
+    final int[] rank = new int[terms.length];
+    for (int i = 0; i < order.length; i++) {
+      rank[order[i]] = i;
+    }
+
+    final ByteArray block = new ByteArray();
+    writeVInt(block, terms.length);
+    String previous = "";
+    for (Integer index : order) {
+      final String term = terms[index];
+      int prefix = 0;
+      final int max = Math.min(previous.length(), term.length());
+      while (prefix < max && previous.charAt(prefix) == term.charAt(prefix)) {
+        prefix++;
+      }
+      if (prefix > 0 && Character.isHighSurrogate(term.charAt(prefix - 1))) {
+        prefix--; // do not split a surrogate pair
+      }
+      final byte[] suffix = utf8(term.substring(prefix));
+      writeVInt(block, prefix);
+      writeVInt(block, suffix.length);
+      block.grow(block.length + suffix.length);
+      System.arraycopy(suffix, 0, block.bytes, block.length, suffix.length);
+      block.length += suffix.length;
+      previous = term;
+    }
+    writeTuples(block, entity.outTuples, ids, rank);
+    writeTuples(block, entity.inTuples, ids, rank);
+    return CompressionTools.compress(block.bytes, 0, block.length);
+  }
+
+  private static void addIds(final TupleTable tuples, final IntSet ids) {
+    for (int i = 0; i < tuples.size(); i++) {
+      ids.add(tuples.predicate(i));
+      final IntSet values = tuples.values(i);
+      for (int j = 0; j < values.size(); j++) {
+        ids.add(values.get(j));
+      }
+    }
+  }
+
+  private static void writeTuples(final ByteArray block, final TupleTable tuples, final IntSet ids, final int[] rank) {
+    writeVInt(block, tuples.size());
+    for (int i = 0; i < tuples.size(); i++) {
+      final IntSet values = tuples.values(i);
+      writeVInt(block, rank[ids.indexOf(tuples.predicate(i))]);
+      writeVInt(block, values.size());
+      for (int j = 0; j < values.size(); j++) {
+        writeVInt(block, rank[ids.indexOf(values.get(j))]);
+      }
+    }
+  }
+
+  private static void writeVInt(final ByteArray block, int i) {
+    while ((i & ~0x7F) != 0) {
+      block.append((byte) ((i & 0x7F) | 0x80));
+      i >>>= 7;
+    }
+    block.append((byte) i);
+  }
+
+  static byte[] utf8(final String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void decode()
+  throws IOException {
+    byte[] bytes = field.getBinaryValue();
+    if (field.getBinaryOffset() != 0 || field.getBinaryLength() != bytes.length) {
+      bytes = Arrays.copyOfRange(bytes, field.getBinaryOffset(), field.getBinaryOffset() + field.getBinaryLength());
+    }
+    final Block block;
+    try {
+      block = new Block(CompressionTools.decompress(bytes));
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted tuples: " + e.getMessage());
+    }
+    try {
+      final String[] terms = new String[block.readVInt()];
+      String previous = "";
+      for (int i = 0; i < terms.length; i++) {
+        final int prefix = block.readVInt();
+        final int length = block.readVInt();
+        terms[i] = previous.substring(0, prefix) + new String(block.bytes, block.pos, length, "UTF-8");
+        block.pos += length;
+        previous = terms[i];
+      }
+      outTuples = readTuples(block);
+      inTuples = readTuples(block);
+      this.terms = terms;
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupted tuples: " + e);
+    }
+  }
+
+  /**
+   * @return the tuples, each one being the predicate followed by its values
+   */
+  private static int[][] readTuples(final Block block) {
+    final int[][] tuples = new int[block.readVInt()][];
+    for (int i = 0; i < tuples.length; i++) {
+      final int predicate = block.readVInt();
+      tuples[i] = new int[1 + block.readVInt()];
+      tuples[i][0] = predicate;
+      for (int j = 1; j < tuples[i].length; j++) {
+        tuples[i][j] = block.readVInt();
+      }
+    }
+    return tuples;
+  }
+
+  /**
+   * A decompressed block being read
+   */
+  private static class Block {
+
+    final byte[] bytes;
+    int          pos = 0;
+
+    Block(final byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    int readVInt() {
+      byte b = bytes[pos++];
+      int i = b & 0x7F;
+      for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+        b = bytes[pos++];
+        i |= (b & 0x7F) << shift;
+      }
+      return i;
+    }
+
+  }
+
+}
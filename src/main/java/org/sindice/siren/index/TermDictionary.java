@@ -0,0 +1,239 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 1 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A dictionary of URIs shared by all the indexing threads, which maps the
+ * UTF-8 bytes of a URI to an int id. Looking up a URI is done on its bytes,
+ * without decoding it nor allocating anything.<br>
+ * The memory used is bounded: a URI is only added once it has been looked up
+ * {@link #MIN_FREQUENCY} times, as estimated by a count-min sketch, and at
+ * most {@link #MAX_TERMS} URIs are kept. The counters of the sketch are
+ * halved periodically, so that the lookups of the long tail do not add up
+ * until every URI is admitted. The other URIs are left to the
+ * entities, see {@link LocalTerms}. This way, the predicates and the common
+ * classes and objects are interned, and the long tail of URIs is not.<br>
+ * Lookups are lock-free; additions, which are rare, are synchronized.
+ */
+public class TermDictionary {
+
+  /* Maximum number of URIs in the dictionary */
+  public static int                   MAX_TERMS     = 1 << 18;
+  /* Number of lookups of a URI before it is added to the dictionary */
+  public static int                   MIN_FREQUENCY = 4;
+
+  /* Returned by #get if the URI is not in the dictionary */
+  public static final int             NOT_FOUND     = -1;
+
+  private static TermDictionary       instance      = null;
+
+  /* open addressing table, written under the lock, read without */
+  private final AtomicReferenceArray<Entry> table;
+  private final int                   mask;
+  /* the URI of each id: written before the id is published in the table */
+  private final String[]              terms;
+  private volatile int                size          = 0;
+  private final int                   maxTerms;
+
+  /*
+   * Count-min sketch of the URIs not in the dictionary, with two counters per
+   * URI. The updates are not atomic: a few increments may be lost under
+   * contention, which only delays the admission of a URI.
+   */
+  private final int[]                 sketch        = new int[1 << 20];
+  private final int                   minFrequency;
+  /* Number of lookups counted since the sketch was last halved, see #age */
+  private int                         updates       = 0;
+  /* Number of lookups between two halvings of the sketch */
+  private static final int            AGING_PERIOD  = 1 << 19;
+
+  private static class Entry {
+
+    final byte[] bytes;
+    final int    hash;
+    final int    id;
+
+    Entry(final byte[] bytes, final int hash, final int id) {
+      this.bytes = bytes;
+      this.hash = hash;
+      this.id = id;
+    }
+
+  }
+
+  /**
+   * The dictionary shared by the entities, created with {@link #MAX_TERMS}
+   * and {@link #MIN_FREQUENCY} on the first call.
+   */
+  public static synchronized TermDictionary getInstance() {
+    if (instance == null) {
+      instance = new TermDictionary(MAX_TERMS, MIN_FREQUENCY);
+    }
+    return instance;
+  }
+
+  public TermDictionary(final int maxTerms, final int minFrequency) {
+    if (maxTerms < 0 || minFrequency < 1) {
+      throw new IllegalArgumentException("Invalid dictionary: " + maxTerms + " terms, minimum frequency of " + minFrequency);
+    }
+    int capacity = 16;
+    while (capacity < maxTerms * 2) {
+      capacity <<= 1;
+    }
+    this.table = new AtomicReferenceArray<Entry>(capacity);
+    this.mask = capacity - 1;
+    this.terms = new String[maxTerms];
+    this.maxTerms = maxTerms;
+    this.minFrequency = minFrequency;
+  }
+
+  private static int hash(final byte[] bytes, final int offset, final int length) {
+    int h = 0;
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + bytes[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean equals(final Entry e, final int hash, final byte[] bytes, final int offset, final int length) {
+    if (e.hash != hash || e.bytes.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (e.bytes[i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the id of the URI, or {@link #NOT_FOUND}. A URI not found is
+   * counted towards its admission in the dictionary.
+   * @param bytes the UTF-8 encoded URI, with its angle brackets
+   */
+  public int get(final byte[] bytes, final int offset, final int length) {
+    final int hash = hash(bytes, offset, length);
+    final int id = find(hash, bytes, offset, length);
+    if (id == NOT_FOUND && size < maxTerms) {
+      count(hash);
+    }
+    return id;
+  }
+
+  /**
+   * Count a lookup of the URI in the sketch. With a conservative update, only
+   * the smallest of its counters are incremented, which limits the
+   * overestimation of the URIs sharing a counter with frequent ones.
+   */
+  private void count(final int hash) {
+    final int c1 = hash & (sketch.length - 1);
+    final int c2 = (hash * 0x9E3779B9 >>> 12) & (sketch.length - 1);
+    final int min = Math.min(sketch[c1], sketch[c2]);
+    if (sketch[c1] == min) {
+      sketch[c1]++;
+    }
+    if (sketch[c2] == min) {
+      sketch[c2]++;
+    }
+    if (++updates >= AGING_PERIOD) {
+      age();
+    }
+  }
+
+  /**
+   * Halve the counters of the sketch, so that only the URIs looked up
+   * {@link #MIN_FREQUENCY} times within about one aging period are admitted
+   */
+  private synchronized void age() {
+    if (updates < AGING_PERIOD) { // already halved by another thread
+      return;
+    }
+    updates = 0;
+    for (int i = 0; i < sketch.length; i++) {
+      sketch[i] >>>= 1;
+    }
+  }
+
+  private int find(final int hash, final byte[] bytes, final int offset, final int length) {
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      final Entry e = table.get(slot);
+      if (e == null) {
+        return NOT_FOUND;
+      }
+      if (equals(e, hash, bytes, offset, length)) {
+        return e.id;
+      }
+    }
+  }
+
+  /**
+   * Add the URI to the dictionary if it has been looked up often enough and
+   * the dictionary is not full.
+   * @param bytes the UTF-8 encoded URI, with its angle brackets
+   * @param term the decoded URI
+   * @return the id of the URI, or {@link #NOT_FOUND} if it is not admitted
+   */
+  public int add(final byte[] bytes, final int offset, final int length, final String term) {
+    final int hash = hash(bytes, offset, length);
+    if (size >= maxTerms ||
+        Math.min(sketch[hash & (sketch.length - 1)],
+                 sketch[(hash * 0x9E3779B9 >>> 12) & (sketch.length - 1)]) < minFrequency) {
+      return NOT_FOUND;
+    }
+    synchronized (this) {
+      int slot = hash & mask;
+      for (Entry e; (e = table.get(slot)) != null; slot = (slot + 1) & mask) {
+        if (equals(e, hash, bytes, offset, length)) {
+          return e.id;
+        }
+      }
+      if (size >= maxTerms) {
+        return NOT_FOUND;
+      }
+      final byte[] key = new byte[length];
+      System.arraycopy(bytes, offset, key, 0, length);
+      final int id = size;
+      terms[id] = term;
+      table.set(slot, new Entry(key, hash, id));
+      size = id + 1;
+      return id;
+    }
+  }
+
+  /**
+   * The URI with the given id
+   */
+  public String term(final int id) {
+    return terms[id];
+  }
+
+  /**
+   * The number of URIs in the dictionary
+   */
+  public int size() {
+    return size;
+  }
+
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 13 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.sindice.siren.search.SirenBooleanClause;
+import org.sindice.siren.search.SirenBooleanQuery;
+import org.sindice.siren.search.SirenCellQuery;
+import org.sindice.siren.search.SirenPrimitiveQuery;
+import org.sindice.siren.search.SirenTermQuery;
+import org.sindice.siren.search.SirenTupleClause;
+import org.sindice.siren.search.SirenTupleQuery;
+
+/**
+ * Parse the query of a topic into a SIREn query over the fields of the
+ * index. A query is a list of clauses separated by whitespaces:
+ * <ul>
+ * <li><code>type:URI</code>: the entity has the type URI;</li>
+ * <li><code>out:P=V</code>: an outgoing tuple has the predicate P and the
+ * value V. Either can be *, for any;</li>
+ * <li><code>in:P=V</code>: the same for an incoming tuple;</li>
+ * <li><code>out:V</code>, <code>in:V</code> or <code>V</code>: a cell of an
+ * outgoing, resp. incoming, tuple matches V.</li>
+ * </ul>
+ * A value with whitespaces is written between double quotes. A clause
+ * prefixed with + must match, and one prefixed with - must not. The others
+ * add to the score of the entity.<br>
+ * The predicates and values are analyzed as in the index: a value starting
+ * with http:// or https:// is a URI, and any other is a literal.
+ */
+public class TopicQueryParser {
+
+  private static final String TYPE     = "type:";
+  private static final String OUTGOING = "out:";
+  private static final String INCOMING = "in:";
+  private static final String ANY      = "*";
+
+  private final Analyzer      analyzer;
+
+  public TopicQueryParser() {
+    this(Indexing.createAnalyzer());
+  }
+
+  /**
+   * @param analyzer the analyzer of the index
+   */
+  public TopicQueryParser(final Analyzer analyzer) {
+    this.analyzer = analyzer;
+  }
+
+  /**
+   * Parse the query of a topic
+   * @throws IllegalArgumentException if the query is malformed, or has no
+   * term
+   */
+  public Query parse(final String query) {
+    return parse(query, null);
+  }
+
+  /**
+   * Parse the query of a topic, with the required types set apart so that
+   * they can be applied as a filter, see {@link TypeFilterCache}
+   * @param types the required types are added to it, and are not in the
+   * returned query
+   * @throws IllegalArgumentException if the query is malformed, or has no
+   * term
+   */
+  public Query parse(final String query, final List<String> types) {
+    final BooleanQuery bq = new BooleanQuery();
+    for (String clause : split(query)) {
+      BooleanClause.Occur occur = BooleanClause.Occur.SHOULD;
+      if (clause.startsWith("+")) {
+        occur = BooleanClause.Occur.MUST;
+        clause = clause.substring(1);
+      } else if (clause.startsWith("-")) {
+        occur = BooleanClause.Occur.MUST_NOT;
+        clause = clause.substring(1);
+      }
+      final Query q;
+      if (clause.startsWith(TYPE) && types != null && occur == BooleanClause.Occur.MUST) {
+        types.add("<" + unquote(clause.substring(TYPE.length())) + ">");
+        q = null;
+      } else if (clause.startsWith(TYPE)) {
+        q = new TermQuery(new Term(Indexing.TYPE, "<" + unquote(clause.substring(TYPE.length())) + ">"));
+      } else if (clause.startsWith(OUTGOING)) {
+        q = tuple(Indexing.OUTGOING_TRIPLE, clause.substring(OUTGOING.length()));
+      } else if (clause.startsWith(INCOMING)) {
+        q = tuple(Indexing.INCOMING_TRIPLE, clause.substring(INCOMING.length()));
+      } else {
+        q = tuple(Indexing.OUTGOING_TRIPLE, clause);
+      }
+      if (q != null) {
+        bq.add(q, occur);
+      }
+    }
+    if (bq.clauses().isEmpty() && (types == null || types.isEmpty())) {
+      throw new IllegalArgumentException("No term in the query: " + query);
+    }
+    if (types != null && !types.isEmpty() && !hasRequiredClause(bq)) {
+      // any entity of the types matches, as with the required type clauses
+      bq.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+    }
+    return bq.clauses().size() == 1 && bq.clauses().get(0).getOccur() != BooleanClause.Occur.MUST_NOT
+           ? bq.clauses().get(0).getQuery() : bq;
+  }
+
+  private static boolean hasRequiredClause(final BooleanQuery bq) {
+    for (BooleanClause clause : bq.clauses()) {
+      if (clause.getOccur() == BooleanClause.Occur.MUST) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A tuple query on P=V, or on a single cell V
+   * @return null if there is no term
+   */
+  private Query tuple(final String field, final String clause) {
+    final SirenTupleQuery tq = new SirenTupleQuery();
+    final int eq = indexOfUnquoted(clause, '=');
+    if (eq == -1) {
+      final SirenCellQuery value = cell(field, clause);
+      if (value == null) {
+        return null;
+      }
+      tq.add(value, SirenTupleClause.Occur.MUST);
+      return tq;
+    }
+    final SirenCellQuery predicate = cell(field, clause.substring(0, eq));
+    if (predicate != null) {
+      predicate.setConstraint(0);
+      tq.add(predicate, SirenTupleClause.Occur.MUST);
+    }
+    final SirenCellQuery value = cell(field, clause.substring(eq + 1));
+    if (value != null) {
+      tq.add(value, SirenTupleClause.Occur.MUST);
+    }
+    return tq.clauses().isEmpty() ? null : tq;
+  }
+
+  /**
+   * A cell query with all the terms of text
+   * @return null if there is no term
+   */
+  private SirenCellQuery cell(final String field, final String text) {
+    final String value = unquote(text);
+    if (value.length() == 0 || value.equals(ANY)) {
+      return null;
+    }
+    final List<String> terms = analyze(field, value);
+    if (terms.isEmpty()) {
+      return null;
+    }
+    final SirenPrimitiveQuery query;
+    if (terms.size() == 1) {
+      query = new SirenTermQuery(new Term(field, terms.get(0)));
+    } else {
+      final SirenBooleanQuery bq = new SirenBooleanQuery();
+      for (String term : terms) {
+        bq.add(new SirenTermQuery(new Term(field, term)), SirenBooleanClause.Occur.MUST);
+      }
+      query = bq;
+    }
+    return new SirenCellQuery(query);
+  }
+
+  /**
+   * The terms of the value, as analyzed in the field
+   */
+  private List<String> analyze(final String field, final String value) {
+    final String text;
+    if (value.startsWith("http://") || value.startsWith("https://")) {
+      text = "<" + value + ">";
+    } else { // the analyzer only tokenizes literals between quotes
+      text = "\"" + value.replace("\"", " ") + "\"";
+    }
+    final List<String> terms = new ArrayList<String>();
+    try {
+      final TokenStream stream = analyzer.tokenStream(field, new StringReader(text));
+      final CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+      stream.reset();
+      while (stream.incrementToken()) {
+        terms.add(term.toString());
+      }
+      stream.end();
+      stream.close();
+    } catch (IOException e) { // not with a StringReader
+      throw new IllegalStateException(e);
+    }
+    return terms;
+  }
+
+  /**
+   * Split the query on the whitespaces outside of double quotes
+   */
+  static List<String> split(final String query) {
+    final List<String> clauses = new ArrayList<String>();
+    final StringBuilder sb = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < query.length(); i++) {
+      final char c = query.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      }
+      if (!quoted && Character.isWhitespace(c)) {
+        if (sb.length() > 0) {
+          clauses.add(sb.toString());
+          sb.setLength(0);
+        }
+      } else {
+        sb.append(c);
+      }
+    }
+    if (quoted) {
+      throw new IllegalArgumentException("Unbalanced quotes in the query: " + query);
+    }
+    if (sb.length() > 0) {
+      clauses.add(sb.toString());
+    }
+    return clauses;
+  }
+
+  private static int indexOfUnquoted(final String clause, final char c) {
+    boolean quoted = false;
+    for (int i = 0; i < clause.length(); i++) {
+      if (clause.charAt(i) == '"') {
+        quoted = !quoted;
+      } else if (!quoted && clause.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String unquote(final String value) {
+    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+
+}
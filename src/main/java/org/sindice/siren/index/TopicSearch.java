@@ -0,0 +1,315 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 13 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run a batch of topics concurrently over a shared {@link IndexSearcher}, and
+ * write the results in the format of a TREC run file:
+ * <pre>
+ * topic Q0 subject rank score tag
+ * </pre>
+ * The results are written in the order of the topics. The latency of each
+ * query, i.e., the search and the loading of the subjects, is recorded.
+ */
+public class TopicSearch {
+
+  private static final Logger         logger   = LoggerFactory.getLogger(TopicSearch.class);
+
+  /* Only the subject of a result is loaded */
+  private static final FieldSelector  SUBJECT  = new MapFieldSelector(Indexing.SUBJECT);
+
+  /* the searcher, or null if the searchers are acquired from the manager */
+  private final IndexSearcher         searcher;
+  private final SearcherManager       manager;
+  private final TopicQueryParser      parser;
+  private final int                   threads;
+  private final int                   topK;
+  /* Applies the required types as cached filters, if not null */
+  private TypeFilterCache             typeFilters = null;
+  /* Stop a search at the first topK matches above this score, if not NaN */
+  private float                       minScore    = Float.NaN;
+
+  /**
+   * A topic of the batch
+   */
+  public static class Topic {
+
+    final String id;
+    final String query;
+
+    public Topic(final String id, final String query) {
+      this.id = id;
+      this.query = query;
+    }
+
+  }
+
+  /**
+   * @param searcher the searcher shared by the threads
+   * @param parser the parser of the topics
+   * @param threads the number of queries run concurrently
+   * @param topK the number of results per topic
+   */
+  public TopicSearch(final IndexSearcher searcher, final TopicQueryParser parser, final int threads, final int topK) {
+    if (threads < 1 || topK < 1) {
+      throw new IllegalArgumentException("Invalid batch: " + threads + " threads, " + topK + " results per topic");
+    }
+    this.searcher = searcher;
+    this.manager = null;
+    this.parser = parser;
+    this.threads = threads;
+    this.topK = topK;
+  }
+
+  /**
+   * @param manager provides the searcher of each query, which may change
+   * during the batch
+   * @param parser the parser of the topics
+   * @param threads the number of queries run concurrently
+   * @param topK the number of results per topic
+   */
+  public TopicSearch(final SearcherManager manager, final TopicQueryParser parser, final int threads, final int topK) {
+    if (threads < 1 || topK < 1) {
+      throw new IllegalArgumentException("Invalid batch: " + threads + " threads, " + topK + " results per topic");
+    }
+    this.searcher = null;
+    this.manager = manager;
+    this.parser = parser;
+    this.threads = threads;
+    this.topK = topK;
+  }
+
+  /**
+   * Restrict the topics to their required types with the cached bitsets of
+   * the types, instead of with queries on the type field
+   */
+  public void setTypeFilterCache(final TypeFilterCache typeFilters) {
+    this.typeFilters = typeFilters;
+  }
+
+  /**
+   * Return the first topK matches with a score of at least minScore, in the
+   * order of the index, instead of the topK best scores, see
+   * {@link RankCollector}
+   */
+  public void setEarlyTermination(final float minScore) {
+    this.minScore = minScore;
+  }
+
+  /**
+   * Read a topic file: one topic per line, its id and its query separated by
+   * a whitespace. Empty lines and lines starting with # are skipped.
+   */
+  public static List<Topic> readTopics(final File file)
+  throws IOException {
+    final List<Topic> topics = new ArrayList<Topic>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        final String[] parts = line.split("\\s+", 2);
+        if (parts.length != 2) {
+          throw new IOException("Topic without a query in " + file + ": " + line);
+        }
+        topics.add(new Topic(parts[0], parts[1]));
+      }
+    } finally {
+      reader.close();
+    }
+    return topics;
+  }
+
+  /**
+   * Run the topics and write their results to run
+   * @param tag the name of the run
+   * @return the latency in nanoseconds of each topic, in the order of the
+   * topics
+   */
+  public long[] run(final List<Topic> topics, final Writer run, final String tag)
+  throws IOException {
+    // parse all the topics first, so that a malformed one fails the batch early
+    final List<Query> queries = new ArrayList<Query>(topics.size());
+    final List<Filter> filters = new ArrayList<Filter>(topics.size());
+    parse(topics, parser, typeFilters, queries, filters);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<Result>> results = new ArrayList<Future<Result>>(topics.size());
+    try {
+      for (int i = 0; i < queries.size(); i++) {
+        final Query query = queries.get(i);
+        final Filter filter = filters.get(i);
+        results.add(executor.submit(new Callable<Result>() {
+          @Override
+          public Result call()
+          throws IOException {
+            return search(query, filter);
+          }
+        }));
+      }
+      final long[] latencies = new long[topics.size()];
+      final StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < topics.size(); i++) {
+        final Result result = get(results.get(i));
+        latencies[i] = result.nanos;
+        sb.setLength(0);
+        for (int rank = 0; rank < result.subjects.length; rank++) {
+          sb.append(topics.get(i).id).append(" Q0 ").append(result.subjects[rank]).append(' ')
+            .append(rank + 1).append(' ').append(result.scores[rank]).append(' ').append(tag).append('\n');
+        }
+        run.write(sb.toString());
+      }
+      return latencies;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Parse the topics into their queries and the filters of their required
+   * types, null if typeFilters is null or if a topic has no required type
+   */
+  static void parse(final List<Topic> topics, final TopicQueryParser parser, final TypeFilterCache typeFilters,
+                    final List<Query> queries, final List<Filter> filters) {
+    for (Topic topic : topics) {
+      try {
+        if (typeFilters == null) {
+          queries.add(parser.parse(topic.query));
+          filters.add(null);
+        } else {
+          final List<String> types = new ArrayList<String>();
+          queries.add(parser.parse(topic.query, types));
+          filters.add(types.isEmpty() ? null : typeFilters.filter(types));
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Topic " + topic.id + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  private Result get(final Future<Result> result)
+  throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the results");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException("Search failed", e.getCause());
+    }
+  }
+
+  private Result search(final Query query, final Filter filter)
+  throws IOException {
+    final long start = System.nanoTime();
+    // the documents are loaded from the searcher which found them
+    final IndexSearcher searcher = manager != null ? manager.acquire() : this.searcher;
+    try {
+      final TopDocs td = Float.isNaN(minScore) ? searcher.search(query, filter, topK)
+                                               : RankCollector.search(searcher, query, filter, topK, minScore);
+      final Result result = new Result(td.scoreDocs.length);
+      for (int i = 0; i < td.scoreDocs.length; i++) {
+        final ScoreDoc sd = td.scoreDocs[i];
+        result.subjects[i] = searcher.doc(sd.doc, SUBJECT).get(Indexing.SUBJECT);
+        result.scores[i] = sd.score;
+      }
+      result.nanos = System.nanoTime() - start;
+      return result;
+    } finally {
+      if (manager != null) {
+        manager.release(searcher);
+      }
+    }
+  }
+
+  /**
+   * The ranked subjects of a topic
+   */
+  private static class Result {
+
+    final String[] subjects;
+    final float[]  scores;
+    long           nanos;
+
+    Result(final int size) {
+      subjects = new String[size];
+      scores = new float[size];
+    }
+
+  }
+
+  /**
+   * Log the percentiles of the latencies
+   */
+  public static void logLatencies(final long[] latencies) {
+    if (latencies.length == 0) {
+      return;
+    }
+    final long[] sorted = latencies.clone();
+    Arrays.sort(sorted);
+    logger.info(String.format(Locale.ENGLISH, "%d queries: p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+      sorted.length, percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+      sorted[sorted.length - 1] / 1e6));
+  }
+
+  /**
+   * The percentile of sorted latencies, in milliseconds
+   */
+  static double percentile(final long[] sorted, final double p) {
+    final int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+  }
+
+}
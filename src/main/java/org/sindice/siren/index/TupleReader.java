@@ -0,0 +1,125 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 4 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.Reader;
+
+/**
+ * Reads the tuples of an entity in the form of {@link Entity#getTriples(boolean)},
+ * one term at a time, without building the whole string. The terms are
+ * copied from the strings of the dictionary and of the entity.<br>
+ * The reader is reused for each document of the entity, see
+ * {@link #reset()}.
+ */
+public class TupleReader extends Reader {
+
+  private static final String SPACE = " ";
+  private static final String END   = ".\n";
+
+  private final Entity        entity;
+  private final TupleTable    tuples;
+
+  /* the index of the current predicate */
+  private int                 predicate;
+  /* the index of the next value, -1 if the predicate is next */
+  private int                 value;
+  /* true if a space follows the current term */
+  private boolean             space;
+  /* the string being read, and the position in it */
+  private String              piece;
+  private int                 pos;
+
+  public TupleReader(final Entity entity, final TupleTable tuples) {
+    this.entity = entity;
+    this.tuples = tuples;
+    reset();
+  }
+
+  /**
+   * Read the tuples from the start
+   */
+  @Override
+  public void reset() {
+    predicate = 0;
+    value = -1;
+    space = false;
+    piece = null;
+    pos = 0;
+  }
+
+  /**
+   * Move to the next string to read
+   * @return false if the tuples have all been read
+   */
+  private boolean next() {
+    pos = 0;
+    if (space) {
+      piece = SPACE;
+      space = false;
+      return true;
+    }
+    if (predicate == tuples.size()) {
+      piece = null;
+      return false;
+    }
+    final IntSet values = tuples.values(predicate);
+    if (value == -1) {
+      piece = entity.term(tuples.predicate(predicate));
+    } else if (value < values.size()) {
+      piece = entity.term(values.get(value));
+    } else {
+      piece = END;
+      predicate++;
+      value = -1;
+      return true;
+    }
+    value++;
+    space = true;
+    return true;
+  }
+
+  @Override
+  public int read(final char[] cbuf, final int off, final int len) {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    while (n < len) {
+      if ((piece == null || pos == piece.length()) && !next()) {
+        break;
+      }
+      final int count = Math.min(len - n, piece.length() - pos);
+      piece.getChars(pos, pos + count, cbuf, off + n);
+      pos += count;
+      n += count;
+    }
+    return n == 0 ? -1 : n;
+  }
+
+  /**
+   * Nothing to release: the reader is reset for the next document
+   */
+  @Override
+  public void close() {
+  }
+
+}
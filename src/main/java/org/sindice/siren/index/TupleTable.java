@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 1 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * The tuples of an entity, in one direction: the set of values of each
+ * predicate. Predicates and values are term ids, as given by
+ * {@link Entity#termId(NTriplesTokenizer, int)}. The predicates and their
+ * values are kept in the order they were added.
+ */
+public class TupleTable {
+
+  /*
+   * Maximum number of values of a predicate: the values after the first
+   * MAX_VALUES ones are dropped
+   */
+  public static int       MAX_VALUES = 65535;
+
+  private final IntSet    predicates = new IntSet();
+  /* the values of the predicate at the same index, reused across clears */
+  private IntSet[]        values     = new IntSet[8];
+
+  /**
+   * Add the predicate to the table if it is not already in it.
+   * @return the index of the predicate
+   */
+  public int addPredicate(final int predicate) {
+    final int index = predicates.add(predicate);
+    if (index == values.length) {
+      final IntSet[] newValues = new IntSet[values.length * 2];
+      System.arraycopy(values, 0, newValues, 0, values.length);
+      values = newValues;
+    }
+    if (values[index] == null) {
+      values[index] = new IntSet();
+    }
+    return index;
+  }
+
+  /**
+   * Returns true if the predicate at the given index has {@link #MAX_VALUES}
+   * values.
+   */
+  public boolean isFull(final int index) {
+    return values[index].size() >= MAX_VALUES;
+  }
+
+  /**
+   * Add a value to the predicate at the given index, unless it is full.
+   */
+  public void add(final int index, final int value) {
+    if (!isFull(index)) {
+      values[index].add(value);
+    }
+  }
+
+  /**
+   * The number of predicates
+   */
+  public int size() {
+    return predicates.size();
+  }
+
+  /**
+   * The predicate at the given index
+   */
+  public int predicate(final int index) {
+    return predicates.get(index);
+  }
+
+  /**
+   * The values of the predicate at the given index
+   */
+  public IntSet values(final int index) {
+    return values[index];
+  }
+
+  public void clear() {
+    for (int i = 0; i < predicates.size(); i++) {
+      values[i].clear();
+    }
+    predicates.clear();
+  }
+
+  /**
+   * Clear the table, and release the sets which hold more than capacity ints,
+   * as well as the sets of the predicates after the first capacity ones
+   */
+  public void trim(final int capacity) {
+    predicates.trim(capacity);
+    if (values.length > capacity) {
+      final IntSet[] newValues = new IntSet[Math.max(8, Integer.highestOneBit(capacity))];
+      System.arraycopy(values, 0, newValues, 0, newValues.length);
+      values = newValues;
+    }
+    for (IntSet set : values) {
+      if (set != null) {
+        set.trim(capacity);
+      }
+    }
+  }
+
+  /**
+   * The memory held by the predicates and the sets of values, in bytes
+   */
+  public long ramBytesUsed() {
+    long bytes = predicates.ramBytesUsed() + values.length * (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    for (IntSet set : values) {
+      if (set != null) {
+        bytes += set.ramBytesUsed();
+      }
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 15 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReader.ReaderFinishedListener;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Cache the documents of an entity type as bitsets, so that restricting a
+ * query to a type costs an intersection with a bitset instead of a walk
+ * through the postings of the type.<br>
+ * The bitsets are kept per segment, with the core cache key of the segment:
+ * after a reopen, only the new segments are computed. The least recently
+ * used bitsets are evicted once the cache exceeds its memory budget, and the
+ * bitsets of a segment are dropped when the segment is closed, provided that
+ * the reader has been registered with {@link #register(IndexReader)}.<br>
+ * The deleted documents are not removed from the bitsets, since the scorers
+ * skip them already. An instance is thread-safe.
+ */
+public class TypeFilterCache {
+
+  private final long                          maxBytes;
+  private long                                bytes     = 0;
+  /* The bitsets in access order */
+  private final LinkedHashMap<Key, OpenBitSet> cache    = new LinkedHashMap<Key, OpenBitSet>(16, 0.75f, true);
+
+  private long                                hits      = 0;
+  private long                                misses    = 0;
+
+  /* Drop the bitsets of a closed segment */
+  private final ReaderFinishedListener        purge     = new ReaderFinishedListener() {
+    @Override
+    public void finished(final IndexReader reader) {
+      purge(reader.getCoreCacheKey());
+    }
+  };
+
+  /**
+   * @param maxBytes the memory budget of the bitsets
+   */
+  public TypeFilterCache(final long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Drop the bitsets of the segments of reader when they are closed, e.g.,
+   * after they have been merged away and the reader reopened.
+   */
+  public void register(final IndexReader reader) {
+    reader.addReaderFinishedListener(purge);
+  }
+
+  /**
+   * A filter of the entities with all the given types
+   * @param types the types, as indexed in {@link Indexing#TYPE}, e.g., with
+   * the angle brackets of URIs
+   */
+  public Filter filter(final List<String> types) {
+    if (types.isEmpty()) {
+      throw new IllegalArgumentException("No type to filter on");
+    }
+    return new TypeFilter(new ArrayList<String>(types));
+  }
+
+  /**
+   * The documents of the segment reader with the type
+   */
+  OpenBitSet bitset(final IndexReader reader, final String type)
+  throws IOException {
+    final Key key = new Key(reader.getCoreCacheKey(), type);
+    synchronized (this) {
+      final OpenBitSet bits = cache.get(key);
+      if (bits != null) {
+        hits++;
+        return bits;
+      }
+      misses++;
+    }
+    // concurrent misses on the same key compute the same bitset
+    final OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    final TermDocs docs = reader.termDocs(new Term(Indexing.TYPE, type));
+    try {
+      while (docs.next()) {
+        bits.fastSet(docs.doc());
+      }
+    } finally {
+      docs.close();
+    }
+    put(key, bits);
+    return bits;
+  }
+
+  private synchronized void put(final Key key, final OpenBitSet bits) {
+    final OpenBitSet previous = cache.put(key, bits);
+    if (previous != null) {
+      bytes -= sizeOf(previous);
+    }
+    bytes += sizeOf(bits);
+    final Iterator<OpenBitSet> it = cache.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= sizeOf(it.next());
+      it.remove();
+    }
+  }
+
+  private synchronized void purge(final Object coreKey) {
+    final Iterator<Map.Entry<Key, OpenBitSet>> it = cache.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<Key, OpenBitSet> e = it.next();
+      if (e.getKey().coreKey == coreKey) {
+        bytes -= sizeOf(e.getValue());
+        it.remove();
+      }
+    }
+  }
+
+  private static long sizeOf(final OpenBitSet bits) {
+    return (long) bits.getBits().length * RamUsageEstimator.NUM_BYTES_LONG;
+  }
+
+  /**
+   * The memory used by the bitsets, in bytes
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * A type in a segment
+   */
+  private static class Key {
+
+    final Object coreKey;
+    final String type;
+
+    Key(final Object coreKey, final String type) {
+      this.coreKey = coreKey;
+      this.type = type;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key k = (Key) o;
+      return coreKey == k.coreKey && type.equals(k.type);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(coreKey) * 31 + type.hashCode();
+    }
+
+  }
+
+  /**
+   * The intersection of the bitsets of the types
+   */
+  private class TypeFilter extends Filter {
+
+    private static final long  serialVersionUID = 1L;
+
+    private final List<String> types;
+
+    TypeFilter(final List<String> types) {
+      this.types = types;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader)
+    throws IOException {
+      final OpenBitSet first = bitset(reader, types.get(0));
+      if (types.size() == 1) {
+        return first;
+      }
+      // the cached bitsets are shared: intersect a copy
+      final OpenBitSet bits = (OpenBitSet) first.clone();
+      for (int i = 1; i < types.size(); i++) {
+        bits.intersect(bitset(reader, types.get(i)));
+      }
+      return bits;
+    }
+
+    @Override
+    public String toString() {
+      return "TypeFilter" + types;
+    }
+
+  }
+
+}
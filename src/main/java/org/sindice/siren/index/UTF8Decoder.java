@@ -0,0 +1,83 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 24 Jun 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.index;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Decode UTF-8 bytes into a reusable array of chars. Malformed sequences are
+ * replaced by U+FFFD. An instance is not thread-safe.
+ */
+public class UTF8Decoder {
+
+  private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+                                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private char[]               chars   = new char[256];
+
+  /**
+   * Decode the bytes into the array returned by {@link #chars()}.
+   * @return the number of decoded chars
+   */
+  public int decode(final byte[] bytes, final int offset, final int length) {
+    // A UTF-8 sequence never decodes into more chars than it has bytes
+    if (chars.length < length) {
+      chars = ArrayUtil.grow(chars, length);
+    }
+    // ASCII prefix
+    int i = 0;
+    while (i < length && bytes[offset + i] >= 0) {
+      chars[i] = (char) bytes[offset + i];
+      i++;
+    }
+    if (i == length) {
+      return length;
+    }
+    final CharBuffer out = CharBuffer.wrap(chars, i, chars.length - i);
+    decoder.reset();
+    decoder.decode(ByteBuffer.wrap(bytes, offset + i, length - i), out, true);
+    decoder.flush(out);
+    return out.position();
+  }
+
+  /**
+   * Decode the bytes into a string
+   */
+  public String toString(final byte[] bytes, final int offset, final int length) {
+    final int n = decode(bytes, offset, length);
+    return new String(chars, 0, n);
+  }
+
+  /**
+   * The chars decoded by the last call to {@link #decode(byte[], int, int)}
+   */
+  public char[] chars() {
+    return chars;
+  }
+
+}
@@ -15,51 +15,105 @@
  */
 package org.sindice.siren.index;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.StringReader;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.io.UnsupportedEncodingException;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.openrdf.model.Statement;
-import org.openrdf.model.URI;
-import org.openrdf.rio.RDFHandlerException;
-import org.openrdf.rio.RDFParseException;
-import org.openrdf.rio.RDFParser;
-import org.openrdf.rio.helpers.StatementCollector;
-import org.openrdf.rio.ntriples.NTriplesParser;
 
 /**
  * Helper functions for indexing
  */
 public class Utils {
 
-  /* byte array used for reading the compressed tar files */
-  private static final ByteBuffer     bbuffer   = ByteBuffer.allocate(1024);
-  private static final String         RDF_TYPE  = "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>";
-  private static final StringBuilder  sb        = new StringBuilder();
-  private static RDFParser            parser    = null;
-  private static StatementCollector   collector = null;  
+  private static final byte[] RDF_TYPE;
+  static {
+    try {
+      RDF_TYPE = "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>".getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-  // Efficient byte to char conversion
-  private static final int BYTE_RANGE = (1 + Byte.MAX_VALUE) - Byte.MIN_VALUE;
-  private static byte[] allBytes = new byte[BYTE_RANGE];
-  private static char[] byteToChars = new char[BYTE_RANGE];
+  /**
+   * The 64 bits FNV-1a hash of the chars of s. It routes the entities to the
+   * shards of an index, as recorded in its manifest: it must not change.
+   */
+  static long fnv1a64(final String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    return h;
+  }
 
-  static {
-    for (int i = Byte.MIN_VALUE; i <= Byte.MAX_VALUE; i++) {
-      allBytes[i - Byte.MIN_VALUE] = (byte) i;
+  /*
+   * The helpers are called concurrently by the indexing threads: the buffers
+   * and the tokenizer are therefore kept per thread.
+   */
+
+  /* the content of the metadata entries */
+  private static final ThreadLocal<ByteArray> metadata = new ThreadLocal<ByteArray>() {
+    @Override
+    protected ByteArray initialValue() {
+      return new ByteArray();
+    }
+  };
+  /* the chunks of an entry sampled by #getFile(TarArchiveInputStream, long, ByteArray, long) */
+  private static final ThreadLocal<byte[]> chunk = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[1 << 16];
+    }
+  };
+  private static final ThreadLocal<UTF8Decoder> decoder = new ThreadLocal<UTF8Decoder>() {
+    @Override
+    protected UTF8Decoder initialValue() {
+      return new UTF8Decoder();
+    }
+  };
+  private static final ThreadLocal<NTriplesTokenizer> tokenizer = new ThreadLocal<NTriplesTokenizer>() {
+    @Override
+    protected NTriplesTokenizer initialValue() {
+      return new NTriplesTokenizer();
+    }
+  };
+
+  /**
+   * Read the metadata entry of an entity: the URL of the document the entity
+   * is from, and the URI of the entity on the next line.
+   * 
+   * @param reader
+   *          the TarArchiveInputStream reader
+   * @param size
+   *          the number of bytes to read
+   * @param entity
+   *          the entity which context and subject are set
+   * @throws IOException
+   */
+  public static void getMetadata(final TarArchiveInputStream reader, final long size, final Entity entity)
+  throws IOException {
+    final ByteArray bytes = metadata.get();
+    final UTF8Decoder decoder = Utils.decoder.get();
+
+    bytes.clear();
+    getFile(reader, size, bytes);
+    final int length = decoder.decode(bytes.bytes, 0, bytes.length);
+    final char[] chars = decoder.chars();
+    int newLine = 0;
+    while (newLine < length && chars[newLine] != '\n') {
+      newLine++;
     }
-    String allBytesString = new String(allBytes, 0, Byte.MAX_VALUE - Byte.MIN_VALUE);
-    for (int i = 0; i < (Byte.MAX_VALUE - Byte.MIN_VALUE); i++) {
-      byteToChars[i] = allBytesString.charAt(i);
+    if (newLine == length) {
+      throw new IOException("Malformed metadata: " + new String(chars, 0, length));
     }
+    entity.context = new String(chars, 0, newLine);
+    entity.subject = new String(chars, newLine + 1, length - newLine - 1);
   }
   
   /**
-   * Read size bytes from the reader at the current position
+   * Append the content of the current tar entry to data. A line break is
+   * inserted between the entries, so that N-Triples files can be concatenated.
    * 
    * @param reader
    *          the TarArchiveInputStream reader
@@ -69,28 +123,99 @@ public class Utils {
    *          the buffer to store the content
    * @throws IOException
    */
-  public static void getFile(final TarArchiveInputStream reader, long size, final StringBuilder data)
+  public static void getFile(final TarArchiveInputStream reader, final long size, final ByteArray data)
   throws IOException {
-    bbuffer.clear();
-    while (size > bbuffer.capacity()) {
-      reader.read(bbuffer.array(), 0, bbuffer.capacity());
-      size -= bbuffer.capacity();
-      toAsciiString(data, bbuffer.capacity());
-      bbuffer.clear();
+    if (data.length > 0 && data.bytes[data.length - 1] != '\n') {
+      data.append((byte) '\n');
+    }
+    if (data.length + size > Integer.MAX_VALUE) {
+      throw new IOException("Entry too large: " + size + " bytes");
+    }
+    data.grow(data.length + (int) size);
+    int remaining = (int) size;
+    while (remaining > 0) {
+      final int n = reader.read(data.bytes, data.length, remaining);
+      if (n == -1) {
+        throw new EOFException("Truncated entry: " + remaining + " bytes missing");
+      }
+      data.length += n;
+      remaining -= n;
     }
-    reader.read(bbuffer.array(), 0, (int) size);
-    toAsciiString(data, (int) size);
   }
-
+  
   /**
-   * Convert the byte array in the platform encoding
-   * @param data the string buffer
-   * @param length number of bytes to decode
+   * Append the content of the current tar entry to data, as
+   * {@link #getFile(TarArchiveInputStream, long, ByteArray)}, without data
+   * growing beyond limit bytes. An entry which does not fit is streamed in
+   * chunks, and sampled: one line every stride lines is kept, starting with the
+   * first one, the stride being the smallest one for which the sample fits on
+   * average. The sample is thus the same from one run to the other. The lines
+   * which would still overflow data are dropped.
+   * 
+   * @param reader
+   *          the TarArchiveInputStream reader
+   * @param size
+   *          the number of bytes to read
+   * @param data
+   *          the buffer to store the content
+   * @param limit
+   *          the maximum length of data
+   * @return true if some lines of the entry were dropped
+   * @throws IOException
    */
-  private static final void toAsciiString(final StringBuilder data, final int length) {
-    for (int i = 0; i < length; i++) {
-      data.append(byteToChars[(int) bbuffer.get(i) - Byte.MIN_VALUE]);
+  public static boolean getFile(final TarArchiveInputStream reader, final long size, final ByteArray data, final long limit)
+  throws IOException {
+    // the room left, minus the line break between the entries
+    final long room = Math.min(limit, Integer.MAX_VALUE) - data.length - 1;
+    if (size <= room) {
+      getFile(reader, size, data);
+      return false;
+    }
+    if (room > 0 && data.length > 0 && data.bytes[data.length - 1] != '\n') {
+      data.append((byte) '\n');
     }
+    final long stride = room <= 0 ? Long.MAX_VALUE : (size + room - 1) / room;
+    final int end = (int) Math.max(data.length, data.length + room);
+    final byte[] chunk = Utils.chunk.get();
+    long remaining = size;
+    long line = 0;
+    /* the start of the current line in data, if it is kept */
+    int lineStart = data.length;
+    boolean keep = stride != Long.MAX_VALUE;
+    while (remaining > 0) {
+      final int n = reader.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+      if (n == -1) {
+        throw new EOFException("Truncated entry: " + remaining + " bytes missing");
+      }
+      remaining -= n;
+      int from = 0;
+      while (from < n) {
+        int eol = from;
+        while (eol < n && chunk[eol] != '\n') {
+          eol++;
+        }
+        final boolean complete = eol < n;
+        if (complete) {
+          eol++;
+        }
+        if (keep) {
+          if (data.length + eol - from > end) { // the line does not fit: drop it
+            data.length = lineStart;
+            keep = false;
+          } else {
+            data.grow(data.length + eol - from);
+            System.arraycopy(chunk, from, data.bytes, data.length, eol - from);
+            data.length += eol - from;
+          }
+        }
+        if (complete) {
+          keep = ++line % stride == 0;
+          lineStart = data.length;
+        }
+        from = eol;
+      }
+    }
+    return true;
   }
   
   /**
@@ -100,77 +225,73 @@ public class Utils {
    * The sorted and flatten representation is generally more efficient in term
    * of index size than the normal flatten approach.
    * 
-   * @param triples
-   * @param map
+   * @param triples the UTF-8 encoded n-triples, cleared afterwards
+   * @param entity the entity which gives the ids of the terms
+   * @param tuples
    * @param types
    * @param isOut
+   * @return the number of malformed triples that were skipped
    */
-  public static void sortAndFlattenNTriples(final StringBuilder triples, final HashMap<String, HashSet<String>> map, final HashSet<String> types, final boolean isOut) {
-    flattenNTriples(triples, map, types, isOut);
+  public static int sortAndFlattenNTriples(final ByteArray triples, final Entity entity, final TupleTable tuples, final IntSet types, final boolean isOut) {
+    return flattenNTriples(triples, entity, tuples, types, isOut, FilterProfile.NONE);
   }
   
-  private static void initParser() {
-    if (parser == null) {
-      parser = (RDFParser) new NTriplesParser();
-      collector = new StatementCollector();
-      parser.setRDFHandler(collector);
-    }
-    collector.clear();
+  /**
+   * Same as {@link #sortAndFlattenNTriples(ByteArray, Entity, TupleTable, IntSet, boolean)},
+   * with only the triples accepted by the filter profile.
+   */
+  public static int sortAndFlattenNTriples(final ByteArray triples, final Entity entity, final TupleTable tuples,
+                                           final IntSet types, final boolean isOut, final FilterProfile filter) {
+    return flattenNTriples(triples, entity, tuples, types, isOut, filter);
   }
-
+  
   /**
    * Flatten a list of triples to n-tuples containing many objects for the same
-   * predicate. Generate one n-tuple per predicate.
+   * predicate. Generate one n-tuple per predicate.<br>
+   * The terms are converted to ids: only the ones which are not in the
+   * dictionary are decoded into strings.
    * 
-   * @param values
+   * @param triples
    *          The list of n-triples.
-   * @return The n-tuples concatenated.
+   * @param filter
+   *          The predicates, values and literals indexed
+   * @return the number of malformed triples that were skipped
    */
-  private static void flattenNTriples(final StringBuilder triples, final Map<String, HashSet<String>> map, final HashSet<String> types, final boolean isOut) {
-    try {
-      initParser();
-      parser.parse(new StringReader(triples.toString()), "");
-      for (Statement st : collector.getStatements()) {
-        sb.setLength(0);
-        final String subject = sb.append('<').append(st.getSubject().toString()).append('>').toString();
-        sb.setLength(0);
-        final String predicate = sb.append('<').append(st.getPredicate().toString()).append('>').toString();
-        sb.setLength(0);
-        final String object = (st.getObject() instanceof URI) ? sb.append('<').append(st.getObject().toString()).append('>').toString()
-                                                              : st.getObject().toString();
-        if (types != null && predicate.equals(RDF_TYPE)) {
-          types.add(object);
-        } else {
-          HashSet<String> hs = map.get(predicate);
-          final String toAdd = isOut ? object : subject;
-          if (hs == null) {
-            hs = new HashSet<String>();
-            map.put(predicate, hs);
-          }
-          if (hs.size() < 65535) // 2 ^ 16 - 1
-            hs.add(toAdd);
-        }
+  private static int flattenNTriples(final ByteArray triples, final Entity entity, final TupleTable tuples,
+                                     final IntSet types, final boolean isOut, final FilterProfile filter) {
+    final NTriplesTokenizer tokenizer = Utils.tokenizer.get();
+    final int value = isOut ? NTriplesTokenizer.OBJECT : NTriplesTokenizer.SUBJECT;
+    final int maxValues = filter.getMaxValues(isOut);
+    /* the index of the last predicate, reused while the triples share it, -1 if filtered */
+    int predicate = -1;
+    /* the span of the last predicate, empty before the first one */
+    int pStart = 0, pEnd = 0;
+
+    tokenizer.reset(triples.bytes, 0, triples.length);
+    tokenizer.setMaxLiteralLength(filter.getMaxLiteralLength());
+    while (tokenizer.next()) {
+      entity.triples++;
+      if (types != null && tokenizer.isPredicate(RDF_TYPE)) {
+        types.add(entity.termId(tokenizer, NTriplesTokenizer.OBJECT));
+        continue;
+      }
+      if (pEnd == 0 || !tokenizer.isPredicate(pStart, pEnd)) {
+        predicate = filter.accepts(tokenizer, isOut) ? tuples.addPredicate(entity.termId(tokenizer, NTriplesTokenizer.PREDICATE))
+                                                     : -1;
+        pStart = tokenizer.start(NTriplesTokenizer.PREDICATE);
+        pEnd = tokenizer.end(NTriplesTokenizer.PREDICATE);
+      }
+      if (predicate == -1) { // filtered, without decoding the value
+        continue;
+      }
+      if (tuples.values(predicate).size() < maxValues) {
+        tuples.add(predicate, entity.termId(tokenizer, value));
+      } else { // the first values of the predicate are kept
+        entity.truncated = true;
       }
-    } catch (RDFParseException e1) {
-    } catch (RDFHandlerException e1) {
-    } catch (IOException e1) {
-    }
-    triples.setLength(0);
-  }
-  
-  /**
-   * Outputs elements of the hashset into a string, separated by a whitespace
-   * and ending with a dot.
-   * @param set
-   * @return
-   */
-  public static String toString(final HashSet<String> set) {
-    sb.setLength(0);
-    for (String s : set) {
-      sb.append(s).append(' ');
     }
-    sb.append(".\n");
-    return sb.toString();
+    triples.clear();
+    return tokenizer.getErrors();
   }
   
 }
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 22 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Payload;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+import org.sindice.siren.analysis.TupleAnalyzer;
+import org.sindice.siren.analysis.TupleAnalyzer.URINormalisation;
+import org.sindice.siren.index.CachedTupleAnalyzer;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.LocalnameCache;
+import org.sindice.siren.index.SindiceEDIndexing;
+import org.sindice.siren.index.StoredTuples;
+
+/**
+ * 
+ */
+public class CachedTupleAnalyzerTest {
+
+  /**
+   * The cached tokens of the URIs are the ones of the {@link TupleAnalyzer},
+   * with a cache small enough to evict URIs
+   */
+  @Test
+  public void testSameTokens()
+  throws Exception {
+    final Directory dir = new RAMDirectory();
+    Indexing.STORE = true;
+    try {
+      new SindiceEDIndexing(new File("./src/test/resources"), dir).indexIt();
+    } finally {
+      Indexing.STORE = false;
+    }
+
+    final TupleAnalyzer expected = new TupleAnalyzer(new StandardAnalyzer(Version.LUCENE_31));
+    expected.setURINormalisation(URINormalisation.LOCALNAME);
+    final LocalnameCache cache = new LocalnameCache(256);
+    final Analyzer actual = new CachedTupleAnalyzer(new StandardAnalyzer(Version.LUCENE_31), cache);
+
+    final IndexReader reader = IndexReader.open(dir);
+    for (int doc = 0; doc < reader.maxDoc(); doc++) {
+      final StoredTuples tuples = new StoredTuples(reader.document(doc, StoredTuples.SELECTOR));
+      for (String triples : new String[] { tuples.getTriples(true), tuples.getTriples(false) }) {
+        assertEquals(triples, tokens(expected, triples), tokens(actual, triples));
+      }
+    }
+    reader.close();
+    dir.close();
+    assertTrue(cache.getHits() > 0);
+    assertTrue(cache.getEvictions() > 0);
+    assertTrue(cache.size() <= 256);
+  }
+
+  private List<String> tokens(final Analyzer analyzer, final String triples)
+  throws Exception {
+    final List<String> tokens = new ArrayList<String>();
+    final TokenStream ts = analyzer.reusableTokenStream(Indexing.OUTGOING_TRIPLE, new StringReader(triples));
+    final CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+    final TypeAttribute type = ts.addAttribute(TypeAttribute.class);
+    final PositionIncrementAttribute posIncr = ts.addAttribute(PositionIncrementAttribute.class);
+    final OffsetAttribute offset = ts.addAttribute(OffsetAttribute.class);
+    final PayloadAttribute payload = ts.addAttribute(PayloadAttribute.class);
+    ts.reset();
+    while (ts.incrementToken()) {
+      final Payload p = payload.getPayload();
+      tokens.add(term + " " + type.type() + " " + posIncr.getPositionIncrement() + " " + offset.startOffset() + "-" +
+                 offset.endOffset() + " " + (p == null ? "" : new String(p.toByteArray(), "ISO-8859-1")));
+    }
+    ts.end();
+    return tokens;
+  }
+
+}
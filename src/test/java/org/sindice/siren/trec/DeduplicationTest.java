@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 24 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sindice.siren.trec.IndexTestUtils.copy;
+import static org.sindice.siren.trec.IndexTestUtils.terms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.IndexingCLI.Format;
+import org.sindice.siren.index.ParallelIndexing;
+import org.sindice.siren.index.SindiceEDIndexing;
+import org.sindice.siren.trec.IndexTestUtils.IndexPair;
+
+/**
+ * 
+ */
+public class DeduplicationTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    Indexing.DEDUP = 0;
+    Indexing.STORE = false;
+  }
+
+  /**
+   * Two dumps with the same entities
+   */
+  private File dumps()
+  throws IOException {
+    final File dumps = folder.newFolder("dumps");
+    copy(new File(IndexTestUtils.INPUT, "ED-00001.tar.gz"), new File(dumps, "ED-00001.tar.gz"));
+    copy(new File(IndexTestUtils.INPUT, "ED-00001.tar.gz"), new File(dumps, "ED-00002.tar.gz"));
+    return dumps;
+  }
+
+  /**
+   * Each subject has one document, with the tuples of all the parts of the
+   * entity
+   */
+  private void assertDeduplicated(final IndexReader all, final IndexReader merged)
+  throws IOException {
+    final Set<String> subjects = terms(all, Indexing.SUBJECT);
+    assertTrue(all.numDocs() > subjects.size());
+    assertEquals(subjects.size(), merged.numDocs());
+    assertEquals(subjects, terms(merged, Indexing.SUBJECT));
+    assertEquals(terms(all, Indexing.OUTGOING_TRIPLE), terms(merged, Indexing.OUTGOING_TRIPLE));
+    assertEquals(terms(all, Indexing.INCOMING_TRIPLE), terms(merged, Indexing.INCOMING_TRIPLE));
+    assertEquals(terms(all, Indexing.TYPE), terms(merged, Indexing.TYPE));
+  }
+
+  @Test
+  public void testAcrossDumps()
+  throws Exception {
+    final IndexPair indexes = new IndexPair(Format.SINDICE_ED, dumps());
+    try {
+      Indexing.STORE = true;
+      Indexing.DEDUP = 10000;
+      indexes.indexModified();
+      assertDeduplicated(indexes.getFull(), indexes.getModified());
+    } finally {
+      indexes.close();
+    }
+  }
+
+  @Test
+  public void testParallel()
+  throws Exception {
+    final File dumps = dumps();
+    final Directory all = IndexTestUtils.index(Format.SINDICE_ED, dumps);
+
+    Indexing.STORE = true;
+    Indexing.DEDUP = 10000;
+    final File index = folder.newFolder("index");
+    new ParallelIndexing(Format.SINDICE_ED, dumps, index, 2).indexIt();
+    final Directory dedup = FSDirectory.open(index);
+    final IndexReader allReader = IndexReader.open(all);
+    final IndexReader dedupReader = IndexReader.open(dedup);
+    try {
+      assertDeduplicated(allReader, dedupReader);
+    } finally {
+      allReader.close();
+      dedupReader.close();
+      all.close();
+      dedup.close();
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testNotStored()
+  throws Exception {
+    Indexing.DEDUP = 10000;
+    new SindiceEDIndexing(IndexTestUtils.INPUT, new RAMDirectory());
+  }
+
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 19 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sindice.siren.index.ByteArray;
+import org.sindice.siren.index.Entity;
+import org.sindice.siren.index.EntityRepack;
+import org.sindice.siren.index.EntityStore;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.IndexingCLI.Format;
+import org.sindice.siren.index.SindiceEDIndexing;
+import org.sindice.siren.index.StoredTuples;
+
+/**
+ * 
+ */
+public class EntityStoreTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private String toString(final ByteArray raw)
+  throws IOException {
+    return new String(raw.bytes(), 0, raw.length(), "UTF-8");
+  }
+
+  /**
+   * The raw triples of the parts of an entity, joined by a line break in the
+   * order of the archive
+   */
+  private String concat(final List<String> parts) {
+    final StringBuilder sb = new StringBuilder();
+    for (String part : parts) {
+      if (part.length() == 0) {
+        continue;
+      }
+      if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '\n') {
+        sb.append('\n');
+      }
+      sb.append(part);
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testRepackED()
+  throws Exception {
+    final File archive = new File("./src/test/resources/ED-00001.tar.gz");
+    final File store = folder.newFolder("store");
+    // small blocks, so that the entities are spread over many blocks
+    final long entities = EntityRepack.repack(Format.SINDICE_ED, archive, store, 1024);
+
+    // the raw triples of each part of the entities, in the order of the archive
+    final Map<String, List<String>> outParts = new HashMap<String, List<String>>();
+    final Map<String, List<String>> inParts = new HashMap<String, List<String>>();
+    final Indexing parts = new SindiceEDIndexing(new File[] { archive }, new RAMDirectory());
+    try {
+      while (parts.hasNext()) {
+        final Entity part = parts.next();
+        if (!outParts.containsKey(part.getSubject())) {
+          outParts.put(part.getSubject(), new ArrayList<String>());
+          inParts.put(part.getSubject(), new ArrayList<String>());
+        }
+        outParts.get(part.getSubject()).add(toString(part.getRawTriples(true)));
+        inParts.get(part.getSubject()).add(toString(part.getRawTriples(false)));
+      }
+    } finally {
+      parts.close();
+    }
+
+    final Directory dir = new RAMDirectory();
+    Indexing.STORE = true;
+    try {
+      new SindiceEDIndexing(new File[] { archive }, dir).indexIt();
+    } finally {
+      Indexing.STORE = false;
+    }
+
+    final EntityStore entityStore = new EntityStore(store);
+    final IndexReader reader = IndexReader.open(dir);
+    try {
+      assertEquals(reader.numDocs(), entities);
+      assertEquals(entities, entityStore.size());
+      int multiParts = 0;
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        final Document doc = reader.document(i, StoredTuples.SELECTOR);
+        final String subject = doc.get(Indexing.SUBJECT);
+        final Entity entity = entityStore.get(subject);
+        assertNotNull(subject, entity);
+        // the raw triples of the parts, which may be in several blocks
+        assertEquals(subject, concat(outParts.get(subject)), toString(entity.getRawTriples(true)));
+        assertEquals(subject, concat(inParts.get(subject)), toString(entity.getRawTriples(false)));
+        if (reader.docFreq(new Term(Indexing.SUBJECT, subject)) > 1) {
+          // each document holds the tuples of one part only
+          multiParts++;
+          continue;
+        }
+        // the triples of an entity in one part are the ones indexed
+        entity.flatten();
+        final StoredTuples tuples = new StoredTuples(doc);
+        assertEquals(tuples.getTriples(true), entity.getTriples(true));
+        assertEquals(tuples.getTriples(false), entity.getTriples(false));
+      }
+      assertTrue(multiParts > 0);
+      assertNull(entityStore.get("http://example.org/no-such-entity"));
+      // before the first and after the last subject of the container
+      assertNull(entityStore.get("<"));
+      assertNull(entityStore.get("<\uffff>"));
+    } finally {
+      reader.close();
+      entityStore.close();
+      dir.close();
+    }
+  }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 26 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.sindice.siren.index.IndexingCLI.Format;
+import org.sindice.siren.index.SindiceDEIndexing;
+import org.sindice.siren.index.SindiceEDIndexing;
+
+/**
+ * Fixtures shared by the indexing tests
+ */
+public class IndexTestUtils {
+
+  /* The folder of the test archives */
+  public static final File INPUT = new File("./src/test/resources");
+
+  private IndexTestUtils() {
+  }
+
+  /**
+   * Index the archives of the format in input into a new directory, with the
+   * current settings of the indexing
+   */
+  public static Directory index(final Format format, final File input)
+  throws Exception {
+    final Directory dir = new RAMDirectory();
+    switch (format) {
+      case SINDICE_DE:
+        new SindiceDEIndexing(input, dir).indexIt();
+        break;
+      case SINDICE_ED:
+        new SindiceEDIndexing(input, dir).indexIt();
+        break;
+      default:
+        throw new IllegalArgumentException("No such dataset format: " + format);
+    }
+    return dir;
+  }
+
+  /**
+   * The terms of the field in the index
+   */
+  public static Set<String> terms(final IndexReader reader, final String field)
+  throws IOException {
+    final Set<String> terms = new HashSet<String>();
+    final TermEnum te = reader.terms(new Term(field, ""));
+    try {
+      do {
+        if (te.term() == null || !te.term().field().equals(field)) {
+          break;
+        }
+        terms.add(te.term().text());
+      } while (te.next());
+    } finally {
+      te.close();
+    }
+    return terms;
+  }
+
+  /**
+   * The number of terms of the field in the index
+   */
+  public static int countTerms(final IndexReader reader, final String field)
+  throws IOException {
+    return terms(reader, field).size();
+  }
+
+  /**
+   * Copy the file from into to
+   */
+  public static void copy(final File from, final File to)
+  throws IOException {
+    final InputStream in = new FileInputStream(from);
+    try {
+      final OutputStream out = new FileOutputStream(to);
+      try {
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The same archives indexed twice, in order to compare the index with the
+   * default settings to the one with the settings under test: the first one
+   * is indexed on creation, the second one by {@link #indexModified()} once
+   * the settings are changed. The pair must be closed in a finally block.
+   */
+  public static class IndexPair {
+
+    private final Format      format;
+    private final File        input;
+    private final Directory   fullDir;
+    private final IndexReader full;
+    private Directory         modifiedDir = null;
+    private IndexReader       modified    = null;
+
+    public IndexPair(final Format format)
+    throws Exception {
+      this(format, INPUT);
+    }
+
+    public IndexPair(final Format format, final File input)
+    throws Exception {
+      this.format = format;
+      this.input = input;
+      this.fullDir = index(format, input);
+      try {
+        this.full = IndexReader.open(fullDir);
+      } catch (IOException e) {
+        fullDir.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Index the archives again, with the current settings
+     */
+    public void indexModified()
+    throws Exception {
+      final Directory dir = index(format, input);
+      try {
+        modified = IndexReader.open(dir);
+      } catch (IOException e) {
+        dir.close();
+        throw e;
+      }
+      modifiedDir = dir;
+    }
+
+    /**
+     * The index with the default settings
+     */
+    public IndexReader getFull() {
+      return full;
+    }
+
+    /**
+     * The index with the settings under test
+     */
+    public IndexReader getModified() {
+      return modified;
+    }
+
+    public void close()
+    throws IOException {
+      try {
+        full.close();
+        fullDir.close();
+      } finally {
+        if (modified != null) {
+          modified.close();
+          modifiedDir.close();
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 22 Jun 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sindice.siren.index.NTriplesTokenizer;
+
+/**
+ *
+ */
+public class NTriplesTokenizerTest {
+
+  private NTriplesTokenizer tokenize(final String triples)
+  throws Exception {
+    final byte[] bytes = triples.getBytes("UTF-8");
+    final NTriplesTokenizer tokenizer = new NTriplesTokenizer();
+    tokenizer.reset(bytes, 0, bytes.length);
+    return tokenizer;
+  }
+
+  @Test
+  public void testTerms()
+  throws Exception {
+    final NTriplesTokenizer tokenizer = tokenize(
+      "<http://s> <http://p> <http://o> .\n" +
+      "_:b1 <http://p> \"Caf\u00e9\"@fr .\n" +
+      "<http://s>\t<http://p>\t\"3.92\"^^<http://www.w3.org/2001/XMLSchema#float>.\r\n" +
+      "<http://s> <http://p> _:b2 .");
+
+    assertTrue(tokenizer.next());
+    assertEquals("<http://s>", tokenizer.subject());
+    assertEquals("<http://p>", tokenizer.predicate());
+    assertEquals("<http://o>", tokenizer.object());
+    assertTrue(tokenizer.next());
+    assertEquals("<_:b1>", tokenizer.subject());
+    assertEquals("\"Caf\u00e9\"@fr", tokenizer.object());
+    assertTrue(tokenizer.next());
+    assertEquals("\"3.92\"^^<http://www.w3.org/2001/XMLSchema#float>", tokenizer.object());
+    assertTrue(tokenizer.next());
+    assertEquals("_:b2", tokenizer.object());
+    assertFalse(tokenizer.next());
+    assertEquals(0, tokenizer.getErrors());
+  }
+
+  @Test
+  public void testEscapes()
+  throws Exception {
+    final NTriplesTokenizer tokenizer = tokenize(
+      "<http://s/\\u00E9> <http://p> \"a \\\"quoted\\\" \\\\ line\\n\\u00e9\" .\n");
+
+    assertTrue(tokenizer.next());
+    assertEquals("<http://s/\u00e9>", tokenizer.subject());
+    assertEquals("\"a \"quoted\" \\ line\n\u00e9\"", tokenizer.object());
+    assertFalse(tokenizer.next());
+  }
+
+  @Test
+  public void testMalformedLines()
+  throws Exception {
+    final NTriplesTokenizer tokenizer = tokenize(
+      "# a comment\n" +
+      "<http://s> <http://p> \"unterminated .\n" +
+      "\n" +
+      "<http://s> <http://p> <http://o1> .\n" +
+      "<http://s> \"literal\" <http://o> .\n" +
+      "<http://s> <http://p> <http://o2> . trailing\n" +
+      "<http://s> <http://p> <http://o3> .\n");
+
+    assertTrue(tokenizer.next());
+    assertEquals("<http://o1>", tokenizer.object());
+    assertTrue(tokenizer.next());
+    assertEquals("<http://o3>", tokenizer.object());
+    assertFalse(tokenizer.next());
+    assertEquals(3, tokenizer.getErrors());
+  }
+
+  @Test
+  public void testTruncatedLiterals()
+  throws Exception {
+    final NTriplesTokenizer tokenizer = tokenize(
+      "<http://s> <http://p> \"Caf\u00e9 au lait\"@fr .\n" +
+      "<http://s> <http://p> \"ab\\u00e9cd\"^^<http://t> .\n" +
+      "<http://s> <http://p> \"short\" .\n" +
+      "<http://s> <http://p> <http://a/long/uri> .\n");
+    tokenizer.setMaxLiteralLength(4);
+
+    assertTrue(tokenizer.next());
+    // neither a character nor an escape sequence is split
+    assertEquals("\"Caf\"@fr", tokenizer.object());
+    assertTrue(tokenizer.next());
+    assertEquals("\"ab\"^^<http://t>", tokenizer.object());
+    assertTrue(tokenizer.next());
+    assertEquals("\"shor\"", tokenizer.object());
+    assertTrue(tokenizer.next());
+    assertEquals("<http://a/long/uri>", tokenizer.object());
+    assertFalse(tokenizer.next());
+  }
+
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 21 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.RankCollector;
+import org.sindice.siren.index.RankSorter;
+import org.sindice.siren.index.SindiceEDIndexing;
+import org.sindice.siren.index.TopicQueryParser;
+
+/**
+ * 
+ */
+public class RankSorterTest {
+
+  private static final String[] QUERIES = { "out:hascurrency=usd", "+out:hascurrency=* -out:*=usd",
+                                            "\"Galway\" in:*=*", "abstract" };
+
+  private Directory     unsorted;
+  private Directory     sorted;
+  private IndexSearcher expected;
+  private IndexSearcher actual;
+
+  @Before
+  public void setUp()
+  throws Exception {
+    unsorted = new RAMDirectory();
+    new SindiceEDIndexing(new File("./src/test/resources"), unsorted).indexIt();
+    sorted = new RAMDirectory();
+    RankSorter.sort(unsorted, sorted);
+    expected = new IndexSearcher(unsorted);
+    actual = new IndexSearcher(sorted);
+  }
+
+  @After
+  public void tearDown()
+  throws Exception {
+    expected.close();
+    actual.close();
+    unsorted.close();
+    sorted.close();
+  }
+
+  @Test
+  public void testSort()
+  throws Exception {
+    final IndexReader reader = actual.getIndexReader();
+    assertTrue(RankSorter.isRankSorted(reader));
+    assertEquals(expected.getIndexReader().numDocs(), reader.numDocs());
+    final float[] ranks = FieldCache.DEFAULT.getFloats(reader, Indexing.RANK, FieldCache.NUMERIC_UTILS_FLOAT_PARSER);
+    for (int doc = 1; doc < reader.maxDoc(); doc++) {
+      assertTrue(ranks[doc] <= ranks[doc - 1]);
+    }
+    assertTrue(ranks[0] > ranks[reader.maxDoc() - 1]);
+
+    // the documents are only renumbered: same matches, same scores
+    final TopicQueryParser parser = new TopicQueryParser();
+    for (String q : QUERIES) {
+      final Query query = parser.parse(q);
+      final TopDocs before = expected.search(query, 10000);
+      final TopDocs after = actual.search(query, 10000);
+      assertTrue(q, before.totalHits > 0);
+      assertEquals(q, before.totalHits, after.totalHits);
+      assertEquals(q, scores(expected, before), scores(actual, after));
+    }
+  }
+
+  @Test
+  public void testEarlyTermination()
+  throws Exception {
+    final IndexReader reader = actual.getIndexReader();
+    final float[] ranks = FieldCache.DEFAULT.getFloats(reader, Indexing.RANK, FieldCache.NUMERIC_UTILS_FLOAT_PARSER);
+    final Query query = new TopicQueryParser().parse("abstract");
+    final TopDocs all = actual.search(query, 10000);
+    assertTrue(all.totalHits > 5);
+
+    // the 5 matches with the highest rank
+    final int[] docs = new int[all.scoreDocs.length];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = all.scoreDocs[i].doc;
+    }
+    Arrays.sort(docs);
+    final TopDocs top = RankCollector.search(actual, query, null, 5, 0);
+    assertEquals(5, top.scoreDocs.length);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(docs[i], top.scoreDocs[i].doc);
+      assertEquals(ranks[docs[i]], top.scoreDocs[i].score, 0);
+    }
+
+    // only the matches above the threshold
+    final float minScore = all.scoreDocs[all.scoreDocs.length / 2].score;
+    for (ScoreDoc sd : RankCollector.search(actual, query, null, 5, minScore).scoreDocs) {
+      assertTrue(scores(actual, all).get(reader.document(sd.doc).get(Indexing.SUBJECT)) >= minScore);
+    }
+  }
+
+  /**
+   * The postings of the frequent terms are sorted in runs spilled to disk,
+   * and merged into the same postings as the ones sorted in memory
+   */
+  @Test
+  public void testSpilledPostings()
+  throws Exception {
+    final Directory spilled = new RAMDirectory();
+    final int buffer = RankSorter.BUFFER;
+    try {
+      RankSorter.BUFFER = 256;
+      RankSorter.sort(unsorted, spilled);
+    } finally {
+      RankSorter.BUFFER = buffer;
+    }
+
+    final IndexReader inMemory = actual.getIndexReader();
+    final IndexReader onDisk = IndexReader.open(spilled);
+    try {
+      int maxDocFreq = 0;
+      final TermEnum terms = inMemory.terms();
+      while (terms.next()) {
+        final Term term = terms.term();
+        maxDocFreq = Math.max(maxDocFreq, terms.docFreq());
+        assertEquals(term.toString(), terms.docFreq(), onDisk.docFreq(term));
+        assertPostings(term, inMemory.termPositions(term), onDisk.termPositions(term));
+      }
+      terms.close();
+      // a term with many postings was spilled into several runs
+      assertTrue(maxDocFreq * 20 > 4 * 256);
+    } finally {
+      onDisk.close();
+      spilled.close();
+    }
+  }
+
+  private void assertPostings(final Term term, final TermPositions expected, final TermPositions actual)
+  throws Exception {
+    while (expected.next()) {
+      assertTrue(term.toString(), actual.next());
+      assertEquals(term.toString(), expected.doc(), actual.doc());
+      assertEquals(term.toString(), expected.freq(), actual.freq());
+      for (int i = 0; i < expected.freq(); i++) {
+        assertEquals(term.toString(), expected.nextPosition(), actual.nextPosition());
+        assertEquals(term.toString(), expected.isPayloadAvailable(), actual.isPayloadAvailable());
+        if (expected.isPayloadAvailable()) {
+          assertEquals(term.toString(), Arrays.toString(expected.getPayload(null, 0)),
+            Arrays.toString(actual.getPayload(null, 0)));
+        }
+      }
+    }
+    assertTrue(term.toString(), !actual.next());
+    expected.close();
+    actual.close();
+  }
+
+  private Map<String, Float> scores(final IndexSearcher searcher, final TopDocs td)
+  throws Exception {
+    final Map<String, Float> scores = new HashMap<String, Float>();
+    for (ScoreDoc sd : td.scoreDocs) {
+      scores.put(searcher.doc(sd.doc).get(Indexing.SUBJECT), sd.score);
+    }
+    return scores;
+  }
+
+}
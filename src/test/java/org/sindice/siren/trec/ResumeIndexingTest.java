@@ -0,0 +1,151 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 4 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Test;
+import org.sindice.siren.index.Entity;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.SindiceDEIndexing;
+import org.sindice.siren.index.SindiceEDIndexing;
+
+/**
+ * 
+ */
+public class ResumeIndexingTest {
+
+  private final File input = new File("./src/test/resources");
+
+  @After
+  public void tearDown() {
+    Indexing.COMMIT = 10000;
+    Indexing.RESUME = false;
+  }
+
+  /**
+   * The sorted subjects of the indexed entities
+   */
+  private List<String> subjects(final Directory dir)
+  throws IOException {
+    final IndexReader reader = IndexReader.open(dir);
+    final List<String> subjects = new ArrayList<String>();
+    for (int i = 0; i < reader.maxDoc(); i++) {
+      subjects.add(reader.document(i).get(Indexing.SUBJECT));
+    }
+    reader.close();
+    Collections.sort(subjects);
+    return subjects;
+  }
+
+  @Test
+  public void testResumeDE()
+  throws Exception {
+    final Directory complete = new RAMDirectory();
+    new SindiceDEIndexing(input, complete).indexIt();
+
+    final Directory dir = new RAMDirectory();
+    Indexing.COMMIT = 1;
+    // Stops reading after the first entity, as a crash would
+    final Indexing crashing = new SindiceDEIndexing(input, dir) {
+      private int left = 1;
+      @Override
+      public Entity next() {
+        if (left-- == 0) {
+          throw new IllegalStateException("crash");
+        }
+        return super.next();
+      }
+      @Override
+      public void close()
+      throws IOException {
+        writers[0].rollback();
+      }
+    };
+    try {
+      crashing.indexIt();
+      fail();
+    } catch (IllegalStateException e) {
+      crashing.close();
+    }
+    final Map<String, String> checkpoint = IndexReader.getCommitUserData(dir);
+    assertEquals("1", checkpoint.get(Indexing.CHECKPOINT_ENTITIES));
+    assertEquals("DE-00001.tar.gz", checkpoint.get(Indexing.CHECKPOINT_ARCHIVE));
+    assertEquals(1, subjects(dir).size());
+
+    Indexing.RESUME = true;
+    new SindiceDEIndexing(input, dir).indexIt();
+    assertEquals(subjects(complete), subjects(dir));
+    assertEquals("true", IndexReader.getCommitUserData(dir).get(Indexing.CHECKPOINT_COMPLETE));
+  }
+
+  @Test
+  public void testResumeED()
+  throws Exception {
+    final Directory complete = new RAMDirectory();
+    new SindiceEDIndexing(input, complete).indexIt();
+
+    final Directory dir = new RAMDirectory();
+    Indexing.COMMIT = 100;
+    // Stops reading after 150 entities, as a crash would
+    final Indexing crashing = new SindiceEDIndexing(input, dir) {
+      private int left = 150;
+      @Override
+      public Entity next() {
+        if (left-- == 0) {
+          throw new IllegalStateException("crash");
+        }
+        return super.next();
+      }
+      @Override
+      public void close()
+      throws IOException {
+        writers[0].rollback();
+      }
+    };
+    try {
+      crashing.indexIt();
+      fail();
+    } catch (IllegalStateException e) {
+      crashing.close();
+    }
+    assertEquals("100", IndexReader.getCommitUserData(dir).get(Indexing.CHECKPOINT_ENTITIES));
+    assertEquals(100, subjects(dir).size());
+
+    Indexing.RESUME = true;
+    new SindiceEDIndexing(input, dir).indexIt();
+    assertEquals(subjects(complete), subjects(dir));
+  }
+
+}
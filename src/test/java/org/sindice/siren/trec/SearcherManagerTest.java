@@ -0,0 +1,108 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 25 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sindice.siren.index.DirectoryType;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.IndexWarmer;
+import org.sindice.siren.index.SearcherManager;
+import org.sindice.siren.index.SindiceEDIndexing;
+import org.sindice.siren.index.TopicQueryParser;
+import org.sindice.siren.index.TopicSearch;
+import org.sindice.siren.index.TopicSearch.Topic;
+
+/**
+ * 
+ */
+public class SearcherManagerTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private String run(final TopicSearch search, final List<Topic> topics)
+  throws Exception {
+    final StringWriter run = new StringWriter();
+    search.run(topics, run, "test");
+    return run.toString();
+  }
+
+  @Test
+  public void testReopen()
+  throws Exception {
+    final File index = folder.newFolder("index");
+    final SindiceEDIndexing indexing = new SindiceEDIndexing(new File("./src/test/resources"),
+      DirectoryType.MMAP.open(index));
+    indexing.indexIt();
+    indexing.close();
+
+    final Directory dir = DirectoryType.MMAP.open(index);
+    final List<Topic> topics = Arrays.asList(new Topic("1", "out:hascurrency=usd"),
+      new Topic("2", "+out:hascurrency=* -out:*=usd"));
+    final IndexWarmer warmer = new IndexWarmer(true, topics, new TopicQueryParser(), null);
+    final SearcherManager manager = new SearcherManager(IndexReader.open(dir, true), null, warmer);
+    final TopicSearch search = new TopicSearch(manager, new TopicQueryParser(), 2, 1000);
+    final String before = run(search, topics);
+    assertTrue(before.length() > 0);
+    assertFalse(manager.maybeReopen());
+
+    // a query running during the swap keeps its searcher
+    final IndexSearcher old = manager.acquire();
+    final int docs = old.getIndexReader().numDocs();
+    final String subject = old.doc(0).get(Indexing.SUBJECT);
+    final IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_31,
+      new WhitespaceAnalyzer(Version.LUCENE_31)));
+    writer.deleteDocuments(new Term(Indexing.SUBJECT, subject));
+    writer.close();
+
+    assertTrue(manager.maybeReopen());
+    assertEquals(docs, old.getIndexReader().numDocs());
+    assertEquals(subject, old.doc(0).get(Indexing.SUBJECT));
+    manager.release(old);
+    final IndexSearcher searcher = manager.acquire();
+    assertTrue(searcher.getIndexReader().numDocs() < docs);
+    manager.release(searcher);
+    assertFalse(manager.maybeReopen());
+    manager.close();
+    dir.close();
+  }
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 16 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.IndexingCLI;
+import org.sindice.siren.index.ShardedIndex;
+import org.sindice.siren.index.SindiceEDIndexing;
+import org.sindice.siren.search.SirenTermQuery;
+
+/**
+ * 
+ */
+public class ShardedIndexTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final File           input  = new File("./src/test/resources");
+
+  /**
+   * The shard function is the one recorded in the manifest, checked against
+   * the FNV-1a test vectors of "a" and "foobar"
+   */
+  @Test
+  public void testShardFunction() {
+    assertEquals(0, ShardedIndex.shard("a", 1));
+    assertEquals((int) ((0xaf63dc4c8601ec8cL >>> 1) % 7), ShardedIndex.shard("a", 7));
+    assertEquals((int) ((0x85944171f73967e8L >>> 1) % 16), ShardedIndex.shard("foobar", 16));
+  }
+
+  @Test
+  public void testShards()
+  throws Exception {
+    final File index = new File(folder.getRoot(), "index");
+    new IndexingCLI().parseAndExecute(new String[] { "--dumps-dir", input.getPath(), "--index-dir", index.getPath(),
+                                                     "--format", "SINDICE_ED", "--shards", "3" });
+    assertTrue(ShardedIndex.isSharded(index));
+    assertEquals(3, ShardedIndex.getShards(index));
+
+    final Directory dir = new RAMDirectory();
+    new SindiceEDIndexing(input, dir).indexIt();
+    final IndexSearcher single = new IndexSearcher(dir);
+
+    final IndexReader reader = ShardedIndex.open(index);
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    final IndexSearcher sharded = new IndexSearcher(reader, executor);
+    try {
+      assertEquals(single.getIndexReader().numDocs(), reader.numDocs());
+      // each entity is in the shard of its subject
+      final IndexReader[] shards = reader.getSequentialSubReaders();
+      assertEquals(3, shards.length);
+      for (int i = 0; i < shards.length; i++) {
+        assertTrue(shards[i].numDocs() > 0);
+        for (int doc = 0; doc < shards[i].maxDoc(); doc++) {
+          assertEquals(i, ShardedIndex.shard(shards[i].document(doc).get(Indexing.SUBJECT), shards.length));
+        }
+      }
+      // the merged top-k of the shards are the ones of the single index
+      final SirenTermQuery query = new SirenTermQuery(new Term(Indexing.OUTGOING_TRIPLE, "abstract"));
+      final TopDocs expected = single.search(query, 1000);
+      final TopDocs actual = sharded.search(query, 1000);
+      assertTrue(expected.totalHits > 0);
+      assertEquals(expected.totalHits, actual.totalHits);
+      assertEquals(subjects(single, expected), subjects(sharded, actual));
+    } finally {
+      sharded.close();
+      reader.close();
+      executor.shutdown();
+      single.close();
+      dir.close();
+    }
+  }
+
+  /**
+   * A reopened reader shares the directories of the shards: they stay open
+   * until the last reader is closed
+   */
+  @Test
+  public void testReopen()
+  throws Exception {
+    final File index = new File(folder.getRoot(), "index");
+    new IndexingCLI().parseAndExecute(new String[] { "--dumps-dir", input.getPath(), "--index-dir", index.getPath(),
+                                                     "--format", "SINDICE_ED", "--shards", "2" });
+    final Properties manifest = new Properties();
+    final InputStream in = new FileInputStream(new File(index, ShardedIndex.MANIFEST));
+    try {
+      manifest.load(in);
+    } finally {
+      in.close();
+    }
+    final File shard = new File(index, manifest.getProperty("shard.0"));
+
+    final IndexReader reader = ShardedIndex.open(index);
+    final int docs = reader.numDocs();
+    assertTrue(reader.reopen() == reader);
+
+    addDocument(shard, "<http://example.org/new/1>");
+    final IndexReader reopened = reader.reopen();
+    reader.close();
+    assertEquals(docs + 1, reopened.numDocs());
+
+    addDocument(shard, "<http://example.org/new/2>");
+    final IndexReader reopenedAgain = reopened.reopen();
+    reopened.close();
+    assertEquals(docs + 2, reopenedAgain.numDocs());
+    assertEquals(1, reopenedAgain.docFreq(new Term(Indexing.SUBJECT, "<http://example.org/new/2>")));
+    reopenedAgain.close();
+  }
+
+  private void addDocument(final File shard, final String subject)
+  throws Exception {
+    final Directory dir = FSDirectory.open(shard);
+    final IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_31,
+      new WhitespaceAnalyzer(Version.LUCENE_31)));
+    final Document doc = new Document();
+    doc.add(new Field(Indexing.SUBJECT, subject, Field.Store.YES, Field.Index.NOT_ANALYZED));
+    writer.addDocument(doc);
+    writer.close();
+    dir.close();
+  }
+
+  private Set<String> subjects(final IndexSearcher searcher, final TopDocs td)
+  throws Exception {
+    final Set<String> subjects = new HashSet<String>();
+    for (ScoreDoc sd : td.scoreDocs) {
+      subjects.add(searcher.doc(sd.doc).get(Indexing.SUBJECT));
+    }
+    return subjects;
+  }
+
+}
@@ -22,10 +22,13 @@
 package org.sindice.siren.trec;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sindice.siren.trec.IndexTestUtils.countTerms;
 
 import java.io.File;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TopDocs;
@@ -33,11 +36,15 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.junit.Test;
 import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.IndexingCLI.Format;
 import org.sindice.siren.index.SindiceDEIndexing;
+import org.sindice.siren.index.StoredTuples;
+import org.sindice.siren.index.TupleTable;
 import org.sindice.siren.search.SirenCellQuery;
 import org.sindice.siren.search.SirenTermQuery;
 import org.sindice.siren.search.SirenTupleQuery;
 import org.sindice.siren.search.SirenTupleClause.Occur;
+import org.sindice.siren.trec.IndexTestUtils.IndexPair;
 
 
 /**
@@ -73,5 +80,62 @@ public class SindiceDEIndexingTest {
     
     dir.close();
   }
-  
+
+  /**
+   * Entities over the budget are indexed, with a sample of their triples
+   */
+  @Test
+  public void testEntityBudget()
+  throws Exception {
+    final IndexPair indexes = new IndexPair(Format.SINDICE_DE);
+    try {
+      final long budget = Indexing.ENTITY_BUDGET;
+      final int values = TupleTable.MAX_VALUES;
+      try {
+        Indexing.ENTITY_BUDGET = 512;
+        TupleTable.MAX_VALUES = 2;
+        indexes.indexModified();
+      } finally {
+        Indexing.ENTITY_BUDGET = budget;
+        TupleTable.MAX_VALUES = values;
+      }
+
+      final IndexReader full = indexes.getFull();
+      final IndexReader sampled = indexes.getModified();
+      assertEquals(full.numDocs(), sampled.numDocs());
+      assertTrue(countTerms(sampled, Indexing.OUTGOING_TRIPLE) < countTerms(full, Indexing.OUTGOING_TRIPLE));
+    } finally {
+      indexes.close();
+    }
+  }
+
+
+  /**
+   * The stored tuples are loaded lazily, and decoded into their text form
+   */
+  @Test
+  public void testStoredTuples()
+  throws Exception {
+    final Directory dir;
+    Indexing.STORE = true;
+    try {
+      dir = IndexTestUtils.index(Format.SINDICE_DE, IndexTestUtils.INPUT);
+    } finally {
+      Indexing.STORE = false;
+    }
+
+    final IndexSearcher searcher = new IndexSearcher(dir);
+    final TopDocs td = searcher.search(new SirenTermQuery(outgoingField.createTerm("rna")), 10);
+    assertEquals(1, td.totalHits);
+    final Document doc = searcher.getIndexReader().document(td.scoreDocs[0].doc, StoredTuples.SELECTOR);
+    assertEquals("http://eprints.rkbexplorer.com/id/caltech/eprints-7519", doc.get(Indexing.SUBJECT));
+    assertTrue(doc.getFieldable(Indexing.TUPLES).isLazy());
+    final StoredTuples tuples = new StoredTuples(doc);
+    final String outgoing = tuples.getTriples(true);
+    assertTrue(outgoing.toLowerCase().contains("rna"));
+    assertTrue(outgoing.endsWith(".\n"));
+    searcher.close();
+    dir.close();
+  }
+
 }
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 26 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sindice.siren.index.TermDictionary;
+
+/**
+ * 
+ */
+public class TermDictionaryTest {
+
+  /**
+   * Look up the URI as an entity does, and add it if it is frequent enough
+   */
+  private int lookup(final TermDictionary dictionary, final String uri)
+  throws Exception {
+    final byte[] bytes = uri.getBytes("UTF-8");
+    final int id = dictionary.get(bytes, 0, bytes.length);
+    return id != TermDictionary.NOT_FOUND ? id : dictionary.add(bytes, 0, bytes.length, uri);
+  }
+
+  @Test
+  public void testFrequentTerms()
+  throws Exception {
+    final TermDictionary dictionary = new TermDictionary(1024, 4);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(TermDictionary.NOT_FOUND, lookup(dictionary, "<http://p>"));
+    }
+    final int id = lookup(dictionary, "<http://p>");
+    assertTrue(id != TermDictionary.NOT_FOUND);
+    assertEquals(id, lookup(dictionary, "<http://p>"));
+    assertEquals("<http://p>", dictionary.term(id));
+  }
+
+  /**
+   * A flood of URIs looked up once does not fill the dictionary, and a
+   * frequent URI is still admitted afterwards
+   */
+  @Test
+  public void testFloodOfSingletons()
+  throws Exception {
+    final TermDictionary dictionary = new TermDictionary(1 << 18, 4);
+    for (int i = 0; i < 3000000; i++) {
+      lookup(dictionary, "<http://example.org/resource/" + i + ">");
+    }
+    assertTrue("admitted " + dictionary.size() + " singletons", dictionary.size() < (1 << 18) / 10);
+
+    int id = TermDictionary.NOT_FOUND;
+    for (int i = 0; i < 100 && id == TermDictionary.NOT_FOUND; i++) {
+      id = lookup(dictionary, "<http://xmlns.com/foaf/0.1/name>");
+    }
+    assertTrue(id != TermDictionary.NOT_FOUND);
+  }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 13 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sindice.siren.index.SindiceEDIndexing;
+import org.sindice.siren.index.TopicQueryParser;
+import org.sindice.siren.index.TopicSearch;
+import org.sindice.siren.index.TopicSearch.Topic;
+import org.sindice.siren.index.TypeFilterCache;
+
+/**
+ * 
+ */
+public class TopicSearchTest {
+
+  private static Directory     dir;
+  private static IndexSearcher searcher;
+
+  @BeforeClass
+  public static void setUp()
+  throws Exception {
+    dir = new RAMDirectory();
+    final SindiceEDIndexing indexED = new SindiceEDIndexing(new File("./src/test/resources"), dir);
+    indexED.indexIt();
+    searcher = new IndexSearcher(dir);
+  }
+
+  @AfterClass
+  public static void tearDown()
+  throws Exception {
+    searcher.close();
+    dir.close();
+  }
+
+  private String[] run(final List<Topic> topics, final int threads)
+  throws Exception {
+    return run(topics, threads, null);
+  }
+
+  private String[] run(final List<Topic> topics, final int threads, final TypeFilterCache typeFilters)
+  throws Exception {
+    final StringWriter run = new StringWriter();
+    final TopicSearch search = new TopicSearch(searcher, new TopicQueryParser(), threads, 1000);
+    search.setTypeFilterCache(typeFilters);
+    final long[] latencies = search.run(topics, run, "test");
+    assertEquals(topics.size(), latencies.length);
+    return run.toString().split("\n");
+  }
+
+  @Test
+  public void testTupleQuery()
+  throws Exception {
+    // the same query as in SindiceEDIndexingTest
+    final String[] lines = run(Arrays.asList(new Topic("1", "out:hascurrency=usd")), 1);
+    assertEquals(47, lines.length);
+    for (int i = 0; i < lines.length; i++) {
+      final String[] cols = lines[i].split(" ");
+      assertEquals(6, cols.length);
+      assertEquals("1", cols[0]);
+      assertEquals("Q0", cols[1]);
+      assertEquals(i + 1, Integer.parseInt(cols[3]));
+      assertEquals("test", cols[5]);
+      if (i > 0) {
+        assertTrue(Float.parseFloat(cols[4]) <= Float.parseFloat(lines[i - 1].split(" ")[4]));
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentBatch()
+  throws Exception {
+    final List<Topic> topics = Arrays.asList(
+      new Topic("1", "out:hascurrency=usd"),
+      new Topic("2", "+out:hascurrency=* -out:*=usd"),
+      new Topic("3", "\"Galway\" in:*=*"),
+      new Topic("4", "out:hascurrency=usd"));
+    final String[] sequential = run(topics, 1);
+    final String[] concurrent = run(topics, 4);
+    assertEquals(Arrays.asList(sequential), Arrays.asList(concurrent));
+    // the results are written in the order of the topics
+    String last = "1";
+    for (String line : concurrent) {
+      final String topic = line.split(" ")[0];
+      assertTrue(topic.compareTo(last) >= 0);
+      last = topic;
+    }
+  }
+
+  /**
+   * The topic and the subject of each result, sorted
+   */
+  private List<String> results(final String[] lines) {
+    final List<String> results = new ArrayList<String>();
+    for (String line : lines) {
+      final String[] cols = line.split(" ");
+      results.add(cols[0] + " " + cols[2]);
+    }
+    Collections.sort(results);
+    return results;
+  }
+
+  @Test
+  public void testTypeFilters()
+  throws Exception {
+    final List<Topic> topics = Arrays.asList(
+      new Topic("1", "+type:http://purl.org/commerce#Price out:hascurrency=usd"),
+      new Topic("2", "+type:http://xmlns.com/foaf/0.1/Person"),
+      new Topic("3", "+type:http://purl.org/commerce#Price +type:http://purl.org/goodrelations/v1#UnitPriceSpecification -out:*=usd"));
+    final List<String> expected = results(run(topics, 2));
+    assertTrue(expected.size() > 0);
+
+    final TypeFilterCache typeFilters = new TypeFilterCache(1 << 20);
+    typeFilters.register(searcher.getIndexReader());
+    // the filters do not score, only the matching entities are compared
+    assertEquals(expected, results(run(topics, 2, typeFilters)));
+    final long misses = typeFilters.getMisses();
+    assertTrue(typeFilters.getBytes() > 0);
+    assertEquals(expected, results(run(topics, 2, typeFilters)));
+    assertEquals(misses, typeFilters.getMisses());
+    assertTrue(typeFilters.getHits() > 0);
+
+    // a budget too small for a single bitset computes them each time
+    final TypeFilterCache tiny = new TypeFilterCache(1);
+    assertEquals(expected, results(run(topics, 1, tiny)));
+    assertEquals(0, tiny.getBytes());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testMalformedTopic()
+  throws Exception {
+    run(Arrays.asList(new Topic("1", "out:\"usd")), 1);
+  }
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2011, Campinas Stephane
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+/**
+ * @project trec-entity-tool
+ * @author Campinas Stephane [ 6 Jul 2011 ]
+ * @link stephane.campinas@deri.org
+ */
+package org.sindice.siren.trec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sindice.siren.trec.IndexTestUtils.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sindice.siren.index.Indexing;
+import org.sindice.siren.index.SindiceEDIndexing;
+
+/**
+ * 
+ */
+public class UpdateIndexingTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    Indexing.UPDATE = false;
+  }
+
+  /**
+   * The number of live documents of each subject
+   */
+  private Map<String, Integer> subjects(final IndexReader reader)
+  throws IOException {
+    final Map<String, Integer> subjects = new HashMap<String, Integer>();
+    for (int i = 0; i < reader.maxDoc(); i++) {
+      if (!reader.isDeleted(i)) {
+        final String subject = reader.document(i).get(Indexing.SUBJECT);
+        final Integer count = subjects.get(subject);
+        subjects.put(subject, count == null ? 1 : count + 1);
+      }
+    }
+    return subjects;
+  }
+
+  /**
+   * The terms of the field in the live documents. The terms of deleted
+   * documents stay in the index until their segment is merged.
+   */
+  private Set<String> liveTerms(final IndexReader reader, final String field)
+  throws IOException {
+    final Set<String> terms = new HashSet<String>();
+    final TermEnum te = reader.terms(new Term(field, ""));
+    final TermDocs td = reader.termDocs();
+    try {
+      do {
+        if (te.term() == null || !te.term().field().equals(field)) {
+          break;
+        }
+        td.seek(te);
+        if (td.next()) {
+          terms.add(te.term().text());
+        }
+      } while (te.next());
+    } finally {
+      te.close();
+      td.close();
+    }
+    return terms;
+  }
+
+  /**
+   * The live documents of the index at dir are those of the expected index
+   */
+  private void assertSameIndex(final IndexReader expected, final Directory dir)
+  throws IOException {
+    final IndexReader reader = IndexReader.open(dir);
+    try {
+      assertEquals(expected.numDocs(), reader.numDocs());
+      assertEquals(subjects(expected), subjects(reader));
+      assertEquals(liveTerms(expected, Indexing.OUTGOING_TRIPLE), liveTerms(reader, Indexing.OUTGOING_TRIPLE));
+      assertEquals(liveTerms(expected, Indexing.INCOMING_TRIPLE), liveTerms(reader, Indexing.INCOMING_TRIPLE));
+      assertEquals(liveTerms(expected, Indexing.TYPE), liveTerms(reader, Indexing.TYPE));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testUpdate()
+  throws Exception {
+    // The second dump has the same entities as the first one
+    final File dumps = folder.newFolder("dumps");
+    final File first = new File(dumps, "ED-00001.tar.gz");
+    final File second = new File(dumps, "ED-00002.tar.gz");
+    copy(new File(IndexTestUtils.INPUT, "ED-00001.tar.gz"), first);
+    copy(first, second);
+
+    // The index built from the second dump alone
+    final Directory rebuilt = new RAMDirectory();
+    new SindiceEDIndexing(new File[] { second }, rebuilt).indexIt();
+    final IndexReader expected = IndexReader.open(rebuilt);
+
+    final File index = folder.newFolder("index");
+    final Directory dir = FSDirectory.open(index);
+    try {
+      // Some entities have several parts, each indexed as a document
+      assertTrue(expected.numDocs() > subjects(expected).size());
+      Indexing indexing = new SindiceEDIndexing(new File[] { first }, FSDirectory.open(index));
+      indexing.indexIt();
+      indexing.close();
+
+      // Only the second dump is indexed, and replaces the documents of the first
+      Indexing.UPDATE = true;
+      indexing = new SindiceEDIndexing(dumps, FSDirectory.open(index));
+      indexing.indexIt();
+      indexing.close();
+      assertSameIndex(expected, dir);
+      assertEquals("ED-00002.tar.gz", IndexReader.getCommitUserData(dir).get(Indexing.CHECKPOINT_LAST_ARCHIVE));
+
+      // Nothing new
+      indexing = new SindiceEDIndexing(dumps, FSDirectory.open(index));
+      indexing.indexIt();
+      indexing.close();
+      assertSameIndex(expected, dir);
+    } finally {
+      expected.close();
+      rebuilt.close();
+      dir.close();
+    }
+  }
+
+}